@@ -61,9 +61,9 @@ program demarcation
   integer(kind = int32) :: nu
   integer(kind = int32) :: nrep
   integer(kind = int32) :: lengthseq
-  integer(kind = int32) :: realdata(1000)
+  integer(kind = int32) :: realdata(10000)
   integer(kind = int32) :: jwhichxavg
-  real(kind = real32)   :: crit(1000)
+  real(kind = real32)   :: crit(10000)
   common/bldanny/numcrit,nu,nrep,lengthseq,realdata,crit,jwhichxavg
   ! Provide default file names to use.
   inputFile = 'demarcationIn.dat'
@@ -183,9 +183,9 @@ program demarcation
     integer(kind = int32) :: nu
     integer(kind = int32) :: nrep
     integer(kind = int32) :: lengthseq
-    integer(kind = int32) :: realdata(1000)
+    integer(kind = int32) :: realdata(10000)
     integer(kind = int32) :: jwhichxavg
-    real(kind = real32)   :: crit(1000)
+    real(kind = real32)   :: crit(10000)
     common/bldanny/numcrit,nu,nrep,lengthseq,realdata,crit,jwhichxavg
     ! Open the input file.
     open (unit = input_unit, file = fname, action = 'read', &
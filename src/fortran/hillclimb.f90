@@ -67,9 +67,9 @@ program hillclimb
   integer(kind = int32) :: nu
   integer(kind = int32) :: nrep
   integer(kind = int32) :: lengthseq
-  integer(kind = int32) :: realdata(1000)
+  integer(kind = int32) :: realdata(10000)
   integer(kind = int32) :: jwhichxavg
-  real(kind = real32)   :: crit(1000)
+  real(kind = real32)   :: crit(10000)
   common/bldanny/numcrit,nu,nrep,lengthseq,realdata,crit,jwhichxavg
   ! The function to be used by the Nelder-Mead minimization function.
   procedure(nelmeadFunction), pointer :: functn
@@ -182,9 +182,9 @@ program hillclimb
     integer(kind = int32) :: nu
     integer(kind = int32) :: nrep
     integer(kind = int32) :: lengthseq
-    integer(kind = int32) :: realdata(1000)
+    integer(kind = int32) :: realdata(10000)
     integer(kind = int32) :: jwhichxavg
-    real(kind = real32)   :: crit(1000)
+    real(kind = real32)   :: crit(10000)
     common/bldanny/numcrit,nu,nrep,lengthseq,realdata,crit,jwhichxavg
     ! Make sure omega does not exceed the maximum value
     if (params(1) .lt. maximum) then
@@ -239,9 +239,9 @@ program hillclimb
     integer(kind = int32) :: nu
     integer(kind = int32) :: nrep
     integer(kind = int32) :: lengthseq
-    integer(kind = int32) :: realdata(1000)
+    integer(kind = int32) :: realdata(10000)
     integer(kind = int32) :: jwhichxavg
-    real(kind = real32)   :: crit(1000)
+    real(kind = real32)   :: crit(10000)
     common/bldanny/numcrit,nu,nrep,lengthseq,realdata,crit,jwhichxavg
     ! Open the input file.
     open (unit = input_unit, file = fname, action = 'read', &
@@ -79,9 +79,9 @@ program omegaCI
   integer(kind = int32) :: nu
   integer(kind = int32) :: nrep
   integer(kind = int32) :: lengthseq
-  integer(kind = int32) :: realdata(1000)
+  integer(kind = int32) :: realdata(10000)
   integer(kind = int32) :: jwhichxavg
-  real(kind = real32)   :: crit(1000)
+  real(kind = real32)   :: crit(10000)
   common/bldanny/numcrit,nu,nrep,lengthseq,realdata,crit,jwhichxavg
   ! parameters common block
   real(kind = real64)   :: omegafornelmead
@@ -257,9 +257,9 @@ program omegaCI
     integer(kind = int32) :: nu
     integer(kind = int32) :: nrep
     integer(kind = int32) :: lengthseq
-    integer(kind = int32) :: realdata(1000)
+    integer(kind = int32) :: realdata(10000)
     integer(kind = int32) :: jwhichxavg
-    real(kind = real32)   :: crit(1000)
+    real(kind = real32)   :: crit(10000)
     common/bldanny/numcrit,nu,nrep,lengthseq,realdata,crit,jwhichxavg
     ! parameters common block
     real(kind = real64)   :: omegafornelmead
@@ -317,9 +317,9 @@ program omegaCI
     integer(kind = int32) :: nu
     integer(kind = int32) :: nrep
     integer(kind = int32) :: lengthseq
-    integer(kind = int32) :: realdata(1000)
+    integer(kind = int32) :: realdata(10000)
     integer(kind = int32) :: jwhichxavg
-    real(kind = real32)   :: crit(1000)
+    real(kind = real32)   :: crit(10000)
     common/bldanny/numcrit,nu,nrep,lengthseq,realdata,crit,jwhichxavg
     ! Open the input file.
     open (unit = input_unit, file = fname, action = 'read', &
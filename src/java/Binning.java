@@ -22,10 +22,13 @@
 
 package ecosim;
 
-import ecosim.tree.Node;
+import ecosim.tree.CladeStatistics;
+import ecosim.tree.CompactTree;
 import ecosim.tree.Tree;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
 
 /**
  *  Object to to estimate the number of bins in a provided tree using a
@@ -54,20 +57,185 @@ public class Binning implements Runnable {
         this.tree = tree;
     }
 
+    /**
+     *  Object to estimate the number of bins in a provided compact tree.
+     *
+     *  @param compactTree The CompactTree object.
+     */
+    public Binning (CompactTree compactTree) {
+        bins = new ArrayList<BinLevel> ();
+        this.compactTree = compactTree;
+    }
+
+    /**
+     *  Object to estimate the number of bins in a clade of a provided compact
+     *  tree.  The clade is binned in place as if it were a tree of its own,
+     *  so an outgroup inside of the clade is binned like any other leaf.
+     *
+     *  @param compactTree The CompactTree object.
+     *  @param index The index of the root node of the clade.
+     */
+    public Binning (CompactTree compactTree, int index) {
+        this (compactTree);
+        this.index = index;
+        clade = true;
+    }
+
     /**
      *  Run the binning program.
+     *
+     *  The clade diameter of every node is read from the clade statistics
+     *  of the tree.  Each node forms a single bin for the range of
+     *  distance thresholds from its own clade diameter up to the smallest
+     *  clade diameter among its ancestors, so the number of bins for all of
+     *  the crit levels is found by sorting the ends of these ranges once and
+     *  sweeping over the thresholds in order.
      */
     public void run () {
         // Only run binning if a tree has been loaded.
-        if (tree == null) return;
-        // Run complete-linkage binning on the provided tree for each
-        // sequence criterion level.
-        for (Double crit: binLevels) {
-            Integer level = getNumberBins (crit, tree.getRoot ());
-            bins.add (new BinLevel (crit, level));
+        if (tree == null && compactTree == null) return;
+        // Run binning on a compact copy of the tree, with the nodes laid out
+        // in pre-order so that each parent node is found before any of its
+        // children.
+        CompactTree nodes = compactTree;
+        if (nodes == null) nodes = new CompactTree (tree);
+        int size = 0;
+        CladeStatistics statistics = null;
+        if (nodes.size () > 0) {
+            size = nodes.getSubtreeEnd (index) - index;
+            statistics = nodes.getStatistics ();
+        }
+        // Find the range of thresholds where each node forms a single bin.
+        // A node is reached by the complete-linkage descent while all of its
+        // ancestors are split, and is itself split once the threshold drops
+        // below its clade diameter.
+        double[] ancestor = new double[size];
+        boolean[] skipped = new boolean[size];
+        double[] start = new double[size];
+        double[] end = new double[size];
+        int numRanges = 0;
+        for (int i = 0; i < size; i ++) {
+            // Nodes removed from the tree are skipped.
+            if (nodes.isRemoved (index + i)) continue;
+            int parent = i == 0 ? -1 : nodes.getParent (index + i) - index;
+            ancestor[i] = Double.POSITIVE_INFINITY;
+            if (parent >= 0) {
+                ancestor[i] = Math.min (
+                    ancestor[parent],
+                    statistics.maximumDistanceBetweenLeafNodes (index + parent)
+                );
+                skipped[i] = skipped[parent];
+            }
+            // The outgroup and its descendants are never binned, unless a
+            // clade is being binned on its own.
+            if (! clade && nodes.isOutgroup (index + i)) skipped[i] = true;
+            if (skipped[i]) continue;
+            // A leaf node is a single bin at every threshold that reaches it.
+            double from = Double.NEGATIVE_INFINITY;
+            if (! nodes.isLeafNode (index + i)) {
+                from = statistics.maximumDistanceBetweenLeafNodes (index + i);
+            }
+            if (from >= ancestor[i]) continue;
+            start[numRanges] = from;
+            end[numRanges] = ancestor[i];
+            numRanges ++;
+        }
+        Arrays.sort (start, 0, numRanges);
+        Arrays.sort (end, 0, numRanges);
+        // Order the crit levels by their distance threshold, smallest first.
+        int numLevels = critLevels.length;
+        Integer[] order = new Integer[numLevels];
+        final double[] threshold = new double[numLevels];
+        for (int i = 0; i < numLevels; i ++) {
+            order[i] = i;
+            threshold[i] = 1.000d - critLevels[i] - MainVariables.EPSILON;
+        }
+        Arrays.sort (order, new Comparator<Integer> () {
+            public int compare (Integer a, Integer b) {
+                return Double.compare (threshold[a], threshold[b]);
+            }
+        });
+        // The number of bins at a threshold is the number of ranges started
+        // at or below it, less the number of ranges already ended.
+        int[] levels = new int[numLevels];
+        int started = 0;
+        int ended = 0;
+        for (int i = 0; i < numLevels; i ++) {
+            double t = threshold[order[i]];
+            while (started < numRanges && start[started] <= t) started ++;
+            while (ended < numRanges && end[ended] <= t) ended ++;
+            levels[order[i]] = started - ended;
+        }
+        for (int i = 0; i < numLevels; i ++) {
+            bins.add (new BinLevel (critLevels[i], levels[i]));
         }
     }
 
+    /**
+     *  Returns the crit levels used to bin the tree.
+     *
+     *  @return The crit levels.
+     */
+    public Double[] getCritLevels () {
+        return critLevels;
+    }
+
+    /**
+     *  Change the crit levels used to bin the tree.  Any number of crit
+     *  levels can be used, up to MAXIMUM_CRIT_LEVELS, and they should be in
+     *  ascending order to be used by the simulation programs.
+     *
+     *  @param critLevels The new crit levels.
+     */
+    public void setCritLevels (Double[] critLevels) {
+        this.critLevels = critLevels;
+    }
+
+    /**
+     *  Returns the given number of crit levels built from the default bin
+     *  levels, so that the default bin levels are returned when 42 crit
+     *  levels are requested.  More crit levels evenly subdivide the
+     *  intervals between the default bin levels, sharing the extra crit
+     *  levels evenly between the intervals so that the crit levels stay
+     *  densest where the default bin levels are.  Fewer crit levels are
+     *  picked from the default bin levels, evenly spread over them.  The
+     *  default bin levels are returned if fewer than two crit levels are
+     *  requested.
+     *
+     *  @param number The number of crit levels.
+     *  @return The crit levels.
+     */
+    public static Double[] critLevels (int number) {
+        int intervals = binLevels.length - 1;
+        if (number < 2 || number == binLevels.length) return binLevels;
+        Double[] levels = new Double[number];
+        if (number < binLevels.length) {
+            for (int i = 0; i < number; i ++) {
+                int j = (int)Math.round ((double)i * intervals / (number - 1));
+                levels[i] = binLevels[j];
+            }
+            return levels;
+        }
+        int extra = number - binLevels.length;
+        int n = 0;
+        for (int j = 0; j < intervals; j ++) {
+            double low = binLevels[j];
+            double high = binLevels[j + 1];
+            // The number of extra crit levels within this interval.
+            int count = (int)(
+                (long)extra * (j + 1) / intervals - (long)extra * j / intervals
+            );
+            levels[n ++] = low;
+            for (int k = 1; k <= count; k ++) {
+                double crit = low + (high - low) * k / (count + 1);
+                // Round to the precision written to the simulation programs.
+                levels[n ++] = Math.round (crit * 1.0e6d) / 1.0e6d;
+            }
+        }
+        levels[n ++] = binLevels[intervals];
+        return levels;
+    }
+
     /**
      *  Returns an ArrayList<BinLevel> containing the bin levels.
      *
@@ -111,38 +279,17 @@ public class Binning implements Runnable {
         return str;
     }
 
-    /**
-     *  A private recursive method to estimate the number of bins in a
-     *  provided tree using a complete-linkage method.
-     *
-     *  @param crit The sequence criterion level.
-     *  @param node The current node in the tree to examine.
-     *  @return The number of bins.
-     */
-    private Integer getNumberBins (Double crit, Node node) {
-        Integer num = 0;
-        // Return zero bins if the node is the outgroup.
-        if (node.isOutgroup ()) return 0;
-        // Return one bin if the node is a leaf node.
-        if (node.isLeafNode ()) return 1;
-        // Calculate the maximum distance between the leaf node ancestors of
-        // the current node.
-        Double distance = node.maximumDistanceBetweenLeafNodes ();
-        // Recurse on the child nodes if the maximum distance exceeds the
-        // crit value, otherwise colapse this branch into one bin.
-        if (distance > 1.000d - crit - MainVariables.EPSILON) {
-            for (Node child: node.getChildren ()) {
-                num += getNumberBins (crit, child);
-            }
-        }
-        else {
-            num = 1;
-        }
-        return num;
-    }
-
     private ArrayList<BinLevel> bins;
     private Tree tree;
+    private CompactTree compactTree;
+    private int index;
+    private boolean clade;
+    private Double[] critLevels = binLevels;
+
+    /**
+     *  The maximum number of crit levels accepted by the simulation programs.
+     */
+    public static final int MAXIMUM_CRIT_LEVELS = 10000;
 
     /**
      *  The default bin levels.
@@ -0,0 +1,261 @@
+/*
+ *    Ecotype Simulation models the sequence diversity within a bacterial
+ *    clade as the evolutionary result of net ecotype formation and periodic
+ *    selection, yielding a certain number of ecotypes.
+ *
+ *    Copyright (C) 2019  Jason M. Wood, Montana State University
+ *
+ *    This program is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation, either version 2 of the License, or
+ *    (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+
+package ecosim;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.StringTokenizer;
+
+/**
+ *  A bounded cache of binning results, keyed by the fingerprint of the
+ *  binned clade and the crit levels used.  The least recently used results
+ *  are evicted once the cache is full, and can optionally be spilled to
+ *  files in a directory to be read back when they are needed again.
+ *
+ *  @author Jason M. Wood
+ *  @copyright GNU General Public License
+ */
+public class BinningCache {
+
+    /**
+     *  Create a cache that keeps the given number of binning results in
+     *  memory, and discards the evicted results.
+     *
+     *  @param capacity The maximum number of results kept in memory.
+     */
+    public BinningCache (int capacity) {
+        this (capacity, null);
+    }
+
+    /**
+     *  Create a cache that keeps the given number of binning results in
+     *  memory, and spills the evicted results to files in a directory.
+     *
+     *  @param capacity The maximum number of results kept in memory.
+     *  @param directory The directory for evicted results, or null.
+     */
+    public BinningCache (final int capacity, File directory) {
+        this.directory = directory;
+        bins = new LinkedHashMap<Long, ArrayList<BinLevel>> (16, 0.75f, true) {
+            protected boolean removeEldestEntry (
+                Map.Entry<Long, ArrayList<BinLevel>> eldest) {
+                if (size () <= capacity) return false;
+                spill (eldest.getKey (), eldest.getValue ());
+                return true;
+            }
+        };
+    }
+
+    /**
+     *  Returns the key of a binning result.
+     *
+     *  @param fingerprint The fingerprint of the binned clade.
+     *  @param critLevels The crit levels used.
+     *  @return The key.
+     */
+    public static long key (long fingerprint, Double[] critLevels) {
+        // The fingerprint is already well mixed, so the hash of the crit
+        // levels only needs to be spread over all of its bits.
+        return fingerprint ^ (Hashing.PRIME * Arrays.hashCode (critLevels));
+    }
+
+    /**
+     *  Returns a copy of the binning result stored with the given key,
+     *  reading it back from its spill file if it has been evicted.
+     *
+     *  @param key The key.
+     *  @return The bin levels, or null if there is no result for the key.
+     */
+    public synchronized ArrayList<BinLevel> get (long key) {
+        ArrayList<BinLevel> levels = bins.get (key);
+        if (levels == null) {
+            levels = unspill (key);
+            if (levels != null) bins.put (key, levels);
+        }
+        if (levels == null) {
+            misses ++;
+            return null;
+        }
+        hits ++;
+        // Return a copy, so that the cached result can not be changed.
+        return new ArrayList<BinLevel> (levels);
+    }
+
+    /**
+     *  Store a binning result with the given key.
+     *
+     *  @param key The key.
+     *  @param levels The bin levels.
+     */
+    public synchronized void put (long key, ArrayList<BinLevel> levels) {
+        bins.put (key, new ArrayList<BinLevel> (levels));
+    }
+
+    /**
+     *  Returns the number of results found in this cache.
+     *
+     *  @return The number of hits.
+     */
+    public synchronized int getHits () {
+        return hits;
+    }
+
+    /**
+     *  Returns the number of results not found in this cache.
+     *
+     *  @return The number of misses.
+     */
+    public synchronized int getMisses () {
+        return misses;
+    }
+
+    /**
+     *  Private method to return the spill file of a key.
+     *
+     *  @param key The key.
+     *  @return The spill file.
+     */
+    private File spillFile (long key) {
+        return new File (
+            directory, String.format ("binningCache-%016x.dat", key)
+        );
+    }
+
+    /**
+     *  Private method to write an evicted binning result to its spill file.
+     *  The number of bin levels is written first, and the result is written
+     *  to a temporary file that is only renamed to the spill file once it is
+     *  complete, so a failed write never leaves a partial spill file.
+     *
+     *  @param key The key.
+     *  @param levels The bin levels.
+     */
+    private void spill (long key, ArrayList<BinLevel> levels) {
+        if (directory == null) return;
+        File file = spillFile (key);
+        File temporary = new File (file.getPath () + ".tmp");
+        boolean written = false;
+        BufferedWriter writer = null;
+        try {
+            writer = new BufferedWriter (new FileWriter (temporary));
+            writer.write (Integer.toString (levels.size ()));
+            writer.newLine ();
+            for (BinLevel level: levels) {
+                writer.write (level.getCrit () + " " + level.getLevel ());
+                writer.newLine ();
+            }
+            writer.close ();
+            writer = null;
+            Files.move (
+                temporary.toPath (), file.toPath (),
+                StandardCopyOption.REPLACE_EXISTING
+            );
+            written = true;
+        }
+        catch (IOException e) {
+            System.out.println ("Error writing to the binning cache.");
+        }
+        finally {
+            if (writer != null) {
+                try {
+                    writer.close ();
+                }
+                catch (IOException e) {
+                    System.out.println ("Error closing the binning cache.");
+                }
+            }
+            if (! written) temporary.delete ();
+        }
+    }
+
+    /**
+     *  Private method to read an evicted binning result from its spill
+     *  file.  A spill file that can not be read or parsed, or that holds
+     *  fewer or more bin levels than it says, is deleted and treated as a
+     *  missing result.
+     *
+     *  @param key The key.
+     *  @return The bin levels, or null if there is no spill file.
+     */
+    private ArrayList<BinLevel> unspill (long key) {
+        if (directory == null) return null;
+        File file = spillFile (key);
+        if (! file.exists ()) return null;
+        ArrayList<BinLevel> levels = new ArrayList<BinLevel> ();
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader (new FileReader (file));
+            String nextLine = reader.readLine ();
+            int count = nextLine == null ? -1 : Integer.parseInt (nextLine);
+            nextLine = reader.readLine ();
+            while (nextLine != null) {
+                StringTokenizer st = new StringTokenizer (nextLine);
+                Double crit = Double.parseDouble (st.nextToken ());
+                Integer level = Integer.parseInt (st.nextToken ());
+                levels.add (new BinLevel (crit, level));
+                nextLine = reader.readLine ();
+            }
+            if (levels.size () != count) levels = null;
+        }
+        catch (IOException e) {
+            System.out.println ("Error reading the binning cache.");
+            levels = null;
+        }
+        catch (NumberFormatException e) {
+            levels = null;
+        }
+        catch (NoSuchElementException e) {
+            levels = null;
+        }
+        finally {
+            if (reader != null) {
+                try {
+                    reader.close ();
+                }
+                catch (IOException e) {
+                    System.out.println ("Error closing the binning cache.");
+                }
+            }
+        }
+        if (levels == null) file.delete ();
+        return levels;
+    }
+
+    private File directory;
+    private LinkedHashMap<Long, ArrayList<BinLevel>> bins;
+    private int hits;
+    private int misses;
+
+}
@@ -0,0 +1,349 @@
+/*
+ *    Ecotype Simulation models the sequence diversity within a bacterial
+ *    clade as the evolutionary result of net ecotype formation and periodic
+ *    selection, yielding a certain number of ecotypes.
+ *
+ *    Copyright (C) 2019  Jason M. Wood, Montana State University
+ *
+ *    This program is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation, either version 2 of the License, or
+ *    (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+
+package ecosim;
+
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayDeque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+
+/**
+ *  Decompresses a blocked gzip (BGZF) file in parallel.  A BGZF file is a
+ *  series of small gzip members, each recording its own compressed size in
+ *  the header, so that the members can be read without decompressing them
+ *  and then decompressed independently.  The members are decompressed by
+ *  the common fork/join pool a few blocks ahead of the reader, and are
+ *  returned in order.
+ *
+ *  @author Jason M. Wood
+ *  @copyright GNU General Public License
+ */
+public class BlockGzipInputStream extends InputStream {
+
+    /**
+     *  Decompress a BGZF file in parallel.
+     *
+     *  @param file The BGZF file.
+     */
+    public BlockGzipInputStream (File file) throws IOException {
+        input = new BufferedInputStream (new FileInputStream (file), BUFFER);
+        pending = new ArrayDeque<Future<byte[]>> ();
+        block = new byte[0];
+        position = 0;
+    }
+
+    /**
+     *  Open a file for reading, decompressing it if it is compressed with
+     *  gzip.  BGZF files are decompressed in parallel, other gzip files,
+     *  including those with many members, are decompressed as they are
+     *  read.
+     *
+     *  @param file The file to open.
+     *  @return The stream of decompressed data.
+     */
+    public static InputStream open (File file) throws IOException {
+        byte[] header = readHeader (file);
+        if (! isGzip (header)) {
+            return new BufferedInputStream (new FileInputStream (file), BUFFER);
+        }
+        if (isBlockGzip (header)) {
+            return new BlockGzipInputStream (file);
+        }
+        return new BufferedInputStream (
+            new GZIPInputStream (new FileInputStream (file), BUFFER), BUFFER
+        );
+    }
+
+    /**
+     *  Check if a file is compressed with gzip.
+     *
+     *  @param file The file to check.
+     *  @return True if the file starts with the gzip magic number.
+     */
+    public static boolean isGzip (File file) throws IOException {
+        return isGzip (readHeader (file));
+    }
+
+    /**
+     *  Read the next byte of decompressed data.
+     *
+     *  @return The next byte, or -1 at the end of the data.
+     */
+    public int read () throws IOException {
+        if (! fill ()) return -1;
+        return block[position ++] & 0xff;
+    }
+
+    /**
+     *  Read decompressed data into an array.
+     *
+     *  @param buffer The array to read into.
+     *  @param offset The offset in the array to start at.
+     *  @param length The maximum number of bytes to read.
+     *  @return The number of bytes read, or -1 at the end of the data.
+     */
+    public int read (byte[] buffer, int offset, int length)
+        throws IOException {
+        if (length == 0) return 0;
+        if (! fill ()) return -1;
+        int n = Math.min (length, block.length - position);
+        System.arraycopy (block, position, buffer, offset, n);
+        position += n;
+        return n;
+    }
+
+    /**
+     *  Close the stream, abandoning any blocks still being decompressed.
+     */
+    public void close () throws IOException {
+        for (Future<byte[]> future: pending) {
+            future.cancel (false);
+        }
+        pending.clear ();
+        input.close ();
+    }
+
+    /**
+     *  Private method to move to the next decompressed block with data,
+     *  queueing more blocks to be decompressed as needed.
+     *
+     *  @return False at the end of the data.
+     */
+    private boolean fill () throws IOException {
+        while (position == block.length) {
+            while (! finished && pending.size () < LOOKAHEAD) {
+                final byte[] member = readMember ();
+                if (member == null) {
+                    finished = true;
+                    break;
+                }
+                pending.add (ForkJoinPool.commonPool ().submit (
+                    new Callable<byte[]> () {
+                        public byte[] call () throws IOException {
+                            return inflate (member);
+                        }
+                    }
+                ));
+            }
+            if (pending.isEmpty ()) return false;
+            try {
+                block = pending.remove ().get ();
+            }
+            catch (InterruptedException e) {
+                throw new IOException ("Decompression interrupted.");
+            }
+            catch (ExecutionException e) {
+                throw new IOException ("Decompression failed: " + e.getCause ());
+            }
+            position = 0;
+        }
+        return true;
+    }
+
+    /**
+     *  Private method to read the next compressed member from the file.
+     *
+     *  @return The compressed member, or null at the end of the file.
+     */
+    private byte[] readMember () throws IOException {
+        byte[] header = new byte[HEADER_LENGTH];
+        int n = readFully (header, 0, HEADER_LENGTH);
+        if (n == 0) return null;
+        if (n < HEADER_LENGTH || ! isBlockGzip (header)) {
+            throw new IOException ("Not a BGZF block.");
+        }
+        int size = (header[16] & 0xff | (header[17] & 0xff) << 8) + 1;
+        byte[] member = new byte[size];
+        System.arraycopy (header, 0, member, 0, HEADER_LENGTH);
+        if (readFully (member, HEADER_LENGTH, size - HEADER_LENGTH) <
+            size - HEADER_LENGTH) {
+            throw new EOFException ("Truncated BGZF block.");
+        }
+        return member;
+    }
+
+    /**
+     *  Private method to read until the array is full or the file ends.
+     *
+     *  @param buffer The array to read into.
+     *  @param offset The offset in the array to start at.
+     *  @param length The number of bytes to read.
+     *  @return The number of bytes read.
+     */
+    private int readFully (byte[] buffer, int offset, int length)
+        throws IOException {
+        int total = 0;
+        while (total < length) {
+            int n = input.read (buffer, offset + total, length - total);
+            if (n < 0) break;
+            total += n;
+        }
+        return total;
+    }
+
+    /**
+     *  Private method to decompress a BGZF member, checking its length and
+     *  checksum.
+     *
+     *  @param member The compressed member.
+     *  @return The decompressed data.
+     */
+    private static byte[] inflate (byte[] member) throws IOException {
+        int size = member.length;
+        int extra = member[10] & 0xff | (member[11] & 0xff) << 8;
+        int start = 12 + extra;
+        long crc = readInt (member, size - 8);
+        int length = (int)readInt (member, size - 4);
+        byte[] data = new byte[length];
+        Inflater inflater = new Inflater (true);
+        try {
+            inflater.setInput (member, start, size - 8 - start);
+            int n = 0;
+            while (n < length && ! inflater.finished ()) {
+                int m = inflater.inflate (data, n, length - n);
+                if (m == 0 && (inflater.needsInput () ||
+                    inflater.needsDictionary ())) {
+                    break;
+                }
+                n += m;
+            }
+            if (n != length) {
+                throw new IOException ("BGZF block length mismatch.");
+            }
+        }
+        catch (DataFormatException e) {
+            throw new IOException ("Corrupt BGZF block: " + e);
+        }
+        finally {
+            inflater.end ();
+        }
+        CRC32 checksum = new CRC32 ();
+        checksum.update (data, 0, length);
+        if (checksum.getValue () != crc) {
+            throw new IOException ("BGZF block checksum mismatch.");
+        }
+        return data;
+    }
+
+    /**
+     *  Private method to read a little-endian unsigned integer.
+     *
+     *  @param buffer The array to read from.
+     *  @param offset The offset of the integer.
+     *  @return The integer.
+     */
+    private static long readInt (byte[] buffer, int offset) {
+        return (
+            (buffer[offset] & 0xffL) |
+            (buffer[offset + 1] & 0xffL) << 8 |
+            (buffer[offset + 2] & 0xffL) << 16 |
+            (buffer[offset + 3] & 0xffL) << 24
+        );
+    }
+
+    /**
+     *  Private method to read the start of a file.
+     *
+     *  @param file The file.
+     *  @return Up to the length of a BGZF header from the start of the file.
+     */
+    private static byte[] readHeader (File file) throws IOException {
+        byte[] header = new byte[HEADER_LENGTH];
+        InputStream in = new FileInputStream (file);
+        try {
+            int n = 0;
+            while (n < HEADER_LENGTH) {
+                int m = in.read (header, n, HEADER_LENGTH - n);
+                if (m < 0) break;
+                n += m;
+            }
+        }
+        finally {
+            in.close ();
+        }
+        return header;
+    }
+
+    /**
+     *  Private method to check for the gzip magic number.
+     *
+     *  @param header The start of the file.
+     *  @return True if the header is from a gzip file.
+     */
+    private static boolean isGzip (byte[] header) {
+        return (header[0] & 0xff) == 0x1f && (header[1] & 0xff) == 0x8b;
+    }
+
+    /**
+     *  Private method to check for a BGZF header, a gzip header with a
+     *  single "BC" extra subfield holding the size of the block.
+     *
+     *  @param header The start of the file.
+     *  @return True if the header is from a BGZF block.
+     */
+    private static boolean isBlockGzip (byte[] header) {
+        return (
+            isGzip (header) &&
+            header[2] == 8 &&
+            (header[3] & 4) != 0 &&
+            header[10] == 6 && header[11] == 0 &&
+            header[12] == 'B' && header[13] == 'C' &&
+            header[14] == 2 && header[15] == 0
+        );
+    }
+
+    /**
+     *  The length of a BGZF header, including the block size.
+     */
+    private static final int HEADER_LENGTH = 18;
+
+    /**
+     *  The number of blocks to decompress ahead of the reader.
+     */
+    private static final int LOOKAHEAD =
+        4 * Runtime.getRuntime ().availableProcessors ();
+
+    /**
+     *  The size of the buffers used to read files.
+     */
+    private static final int BUFFER = 1 << 16;
+
+    private InputStream input;
+    private ArrayDeque<Future<byte[]>> pending;
+    private byte[] block;
+    private int position;
+    private boolean finished = false;
+
+}
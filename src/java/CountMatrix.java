@@ -0,0 +1,628 @@
+/*
+ *    Ecotype Simulation models the sequence diversity within a bacterial
+ *    clade as the evolutionary result of net ecotype formation and periodic
+ *    selection, yielding a certain number of ecotypes.
+ *
+ *    Copyright (C) 2019  Jason M. Wood, Montana State University
+ *
+ *    This program is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation, either version 2 of the License, or
+ *    (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+
+package ecosim;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ *  A sample by sequence matrix of abundance counts, stored by sequence in a
+ *  memory-mapped binary file.
+ *
+ *  The counts are read from a tab separated text file, optionally
+ *  compressed with gzip, with the sequence identifiers on the first line
+ *  and a line for each sample holding the name of the sample and a count
+ *  for each sequence.  The first time that a text file is opened, it is
+ *  converted into a binary file next to it, with the extension .csc, that
+ *  is used as long as it is not older than the text file.
+ *
+ *  The binary file holds the counts in compressed sparse column form, with
+ *  only the counts that are not zero, as little-endian values:
+ *  <pre>
+ *    int     magic number and version
+ *    int     number of samples
+ *    int     number of sequences
+ *    long    number of counts
+ *    long[]  offset of the first count of each sequence, and of the end
+ *    int[]   sample of each count, in order for each sequence
+ *    int[]   each count
+ *    byte[]  sample names then sequence identifiers, UTF-8, one per line
+ *  </pre>
+ *
+ *  @author Jason M. Wood
+ *  @copyright GNU General Public License
+ */
+public class CountMatrix {
+
+    /**
+     *  Open a matrix of counts, converting a text file into the binary file
+     *  next to it if needed.
+     *
+     *  @param file The text or binary file holding the counts.
+     */
+    public CountMatrix (File file) throws IOException {
+        if (! isBinary (file)) {
+            File binary = new File (file.getPath () + EXTENSION);
+            if (
+                ! binary.exists () ||
+                binary.lastModified () < file.lastModified () ||
+                ! isBinary (binary)
+            ) {
+                convert (file, binary);
+            }
+            file = binary;
+        }
+        open (file);
+    }
+
+    /**
+     *  Convert a tab separated text file of counts into a binary file.
+     *
+     *  @param text The text file, optionally compressed with gzip.
+     *  @param binary The binary file to create.
+     */
+    public static void convert (File text, File binary) throws IOException {
+        InputStream input = BlockGzipInputStream.open (text);
+        Parser parser = new Parser ();
+        try {
+            parser.parse (input);
+        }
+        finally {
+            input.close ();
+        }
+        parser.write (binary);
+    }
+
+    /**
+     *  Returns the number of samples.
+     *
+     *  @return The number of samples.
+     */
+    public int numberOfSamples () {
+        return samples.length;
+    }
+
+    /**
+     *  Returns the number of sequences.
+     *
+     *  @return The number of sequences.
+     */
+    public int numberOfSequences () {
+        return sequences.length;
+    }
+
+    /**
+     *  Returns the number of counts that are not zero.
+     *
+     *  @return The number of counts.
+     */
+    public long numberOfCounts () {
+        return pointers.get (sequences.length);
+    }
+
+    /**
+     *  Returns the name of a sample.
+     *
+     *  @param i The index of the sample.
+     *  @return The name of the sample.
+     */
+    public String getSample (int i) {
+        return samples[i];
+    }
+
+    /**
+     *  Returns the identifier of a sequence.
+     *
+     *  @param j The index of the sequence.
+     *  @return The identifier of the sequence.
+     */
+    public String getSequence (int j) {
+        return sequences[j];
+    }
+
+    /**
+     *  Returns the index of a sequence.
+     *
+     *  @param identifier The identifier of the sequence.
+     *  @return The index of the sequence, or -1 if it is not in the matrix.
+     */
+    public int indexOfSequence (String identifier) {
+        Integer j = sequenceIndex.get (identifier);
+        return j != null ? j : -1;
+    }
+
+    /**
+     *  Returns the count of a sequence in a sample.
+     *
+     *  @param i The index of the sample.
+     *  @param j The index of the sequence.
+     *  @return The count.
+     */
+    public int getCount (int i, int j) {
+        int low = (int)pointers.get (j);
+        int high = (int)pointers.get (j + 1) - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            int sample = sampleIndices.get (middle);
+            if (sample < i) low = middle + 1;
+            else if (sample > i) high = middle - 1;
+            else return counts.get (middle);
+        }
+        return 0;
+    }
+
+    /**
+     *  Returns the total count of each sample, over all of the sequences.
+     *
+     *  @return The total count of each sample.
+     */
+    public long[] getSampleTotals () {
+        long[] totals = new long[samples.length];
+        int number = (int)numberOfCounts ();
+        for (int k = 0; k < number; k ++) {
+            totals[sampleIndices.get (k)] += counts.get (k);
+        }
+        return totals;
+    }
+
+    /**
+     *  Returns the total count of each sample over a group of sequences,
+     *  such as an ecotype.  Sequences that are not in the matrix, such as
+     *  the outgroup, are skipped.
+     *
+     *  @param group The identifiers of the sequences.
+     *  @return The total count of the group in each sample.
+     */
+    public long[] getSampleCounts (List<String> group) {
+        long[] totals = new long[samples.length];
+        for (String identifier: group) {
+            int j = indexOfSequence (identifier);
+            if (j < 0) continue;
+            int end = (int)pointers.get (j + 1);
+            for (int k = (int)pointers.get (j); k < end; k ++) {
+                totals[sampleIndices.get (k)] += counts.get (k);
+            }
+        }
+        return totals;
+    }
+
+    /**
+     *  Returns the total count of each ecotype in each sample.  The
+     *  ecotypes are summed in parallel.
+     *
+     *  @param ecotypes The identifiers of the sequences in each ecotype, see
+     *  Demarcation.getEcotypes.
+     *  @return The total count of each ecotype in each sample.
+     */
+    public long[][] getEcotypeCounts (ArrayList<ArrayList<String>> ecotypes) {
+        long[][] totals = new long[ecotypes.size ()][];
+        new EcotypeTask (ecotypes, totals, 0, ecotypes.size ()).invoke ();
+        return totals;
+    }
+
+    /**
+     *  Private method to check if a file is a binary count matrix.
+     *
+     *  @param file The file to check.
+     *  @return True if the file starts with the magic number.
+     */
+    private static boolean isBinary (File file) throws IOException {
+        if (file.length () < HEADER) return false;
+        FileChannel channel = FileChannel.open (file.toPath ());
+        try {
+            ByteBuffer header = ByteBuffer.allocate (4)
+                .order (ByteOrder.LITTLE_ENDIAN);
+            while (header.hasRemaining ()) {
+                if (channel.read (header) < 0) return false;
+            }
+            return header.getInt (0) == MAGIC;
+        }
+        finally {
+            channel.close ();
+        }
+    }
+
+    /**
+     *  Private method to map the sections of a binary file.
+     *
+     *  @param file The binary file.
+     */
+    private void open (File file) throws IOException {
+        FileChannel channel = FileChannel.open (file.toPath ());
+        try {
+            ByteBuffer header = channel.map (
+                FileChannel.MapMode.READ_ONLY, 0, HEADER
+            ).order (ByteOrder.LITTLE_ENDIAN);
+            int numberOfSamples = header.getInt (4);
+            int numberOfSequences = header.getInt (8);
+            long number = header.getLong (12);
+            long offset = HEADER;
+            long size = 8L * (numberOfSequences + 1);
+            if (number > Integer.MAX_VALUE || offset + size + 8 * number >
+                channel.size ()) {
+                throw new IOException ("Invalid count matrix file.");
+            }
+            pointers = channel.map (FileChannel.MapMode.READ_ONLY, offset, size)
+                .order (ByteOrder.LITTLE_ENDIAN).asLongBuffer ();
+            offset += size;
+            sampleIndices = channel.map (
+                FileChannel.MapMode.READ_ONLY, offset, 4 * number
+            ).order (ByteOrder.LITTLE_ENDIAN).asIntBuffer ();
+            offset += 4 * number;
+            counts = channel.map (
+                FileChannel.MapMode.READ_ONLY, offset, 4 * number
+            ).order (ByteOrder.LITTLE_ENDIAN).asIntBuffer ();
+            offset += 4 * number;
+            // Read the names.
+            ByteBuffer names = channel.map (
+                FileChannel.MapMode.READ_ONLY, offset, channel.size () - offset
+            );
+            byte[] bytes = new byte[names.remaining ()];
+            names.get (bytes);
+            String[] lines = new String (bytes, StandardCharsets.UTF_8)
+                .split ("\n", -1);
+            if (lines.length < numberOfSamples + numberOfSequences) {
+                throw new IOException ("Invalid count matrix file.");
+            }
+            samples = Arrays.copyOfRange (lines, 0, numberOfSamples);
+            sequences = Arrays.copyOfRange (
+                lines, numberOfSamples, numberOfSamples + numberOfSequences
+            );
+        }
+        finally {
+            // The mapped sections stay valid after the channel is closed.
+            channel.close ();
+        }
+        sequenceIndex = new HashMap<String, Integer> (2 * sequences.length);
+        for (int j = 0; j < sequences.length; j ++) {
+            sequenceIndex.put (sequences[j], j);
+        }
+    }
+
+    /**
+     *  Parses a tab separated text file of counts, keeping the counts that
+     *  are not zero by sample, and writes them by sequence.
+     */
+    private static class Parser {
+
+        /**
+         *  Parse the text file.
+         *
+         *  @param input The stream of text.
+         */
+        public void parse (InputStream input) throws IOException {
+            byte[] buffer = new byte[1 << 16];
+            int read = input.read (buffer);
+            while (read >= 0) {
+                for (int k = 0; k < read; k ++) {
+                    accept (buffer[k]);
+                }
+                read = input.read (buffer);
+            }
+            accept ((byte)'\n');
+            if (rows.isEmpty () && header.isEmpty ()) {
+                throw new IOException ("Empty count matrix file.");
+            }
+        }
+
+        /**
+         *  Write the counts by sequence to the binary file.
+         *
+         *  @param binary The binary file.
+         */
+        public void write (File binary) throws IOException {
+            int numberOfSequences = columns < 0 ? 0 : columns;
+            int numberOfSamples = rows.size ();
+            // Count the counts of each sequence, then place them in order
+            // of sample.
+            long[] pointers = new long[numberOfSequences + 1];
+            for (int k = 0; k < number; k ++) {
+                pointers[columnIndices[k] + 1] ++;
+            }
+            for (int j = 0; j < numberOfSequences; j ++) {
+                pointers[j + 1] += pointers[j];
+            }
+            int[] next = new int[numberOfSequences];
+            for (int j = 0; j < numberOfSequences; j ++) {
+                next[j] = (int)pointers[j];
+            }
+            int[] sampleIndices = new int[number];
+            int[] values = new int[number];
+            for (int i = 0; i < numberOfSamples; i ++) {
+                for (int k = rowStarts.get (i); k < rowStarts.get (i + 1); k ++) {
+                    int position = next[columnIndices[k]] ++;
+                    sampleIndices[position] = i;
+                    values[position] = counts[k];
+                }
+            }
+            FileChannel channel = FileChannel.open (
+                binary.toPath (),
+                StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING
+            );
+            try {
+                ByteBuffer out = ByteBuffer.allocate (1 << 20)
+                    .order (ByteOrder.LITTLE_ENDIAN);
+                // Write the magic number last, so that an interrupted write
+                // is not mistaken for a binary file.
+                out.putInt (0);
+                out.putInt (numberOfSamples);
+                out.putInt (numberOfSequences);
+                out.putLong (number);
+                for (int j = 0; j <= numberOfSequences; j ++) {
+                    flush (channel, out, 8);
+                    out.putLong (pointers[j]);
+                }
+                for (int k = 0; k < number; k ++) {
+                    flush (channel, out, 4);
+                    out.putInt (sampleIndices[k]);
+                }
+                for (int k = 0; k < number; k ++) {
+                    flush (channel, out, 4);
+                    out.putInt (values[k]);
+                }
+                StringBuilder names = new StringBuilder ();
+                for (String sample: rows) {
+                    names.append (sample).append ('\n');
+                }
+                int first = header.size () - numberOfSequences;
+                for (int j = 0; j < numberOfSequences; j ++) {
+                    names.append (header.get (first + j)).append ('\n');
+                }
+                byte[] bytes = names.toString ().getBytes (
+                    StandardCharsets.UTF_8
+                );
+                for (int k = 0; k < bytes.length; k ++) {
+                    flush (channel, out, 1);
+                    out.put (bytes[k]);
+                }
+                flush (channel, out, out.capacity ());
+                out.putInt (MAGIC);
+                out.flip ();
+                channel.write (out, 0);
+            }
+            finally {
+                channel.close ();
+            }
+        }
+
+        /**
+         *  Private method to write the buffer to the channel if it does not
+         *  have room for a value.
+         *
+         *  @param channel The channel to write to.
+         *  @param out The buffer.
+         *  @param room The room needed in the buffer.
+         */
+        private void flush (FileChannel channel, ByteBuffer out, int room)
+            throws IOException {
+            if (out.remaining () >= room) return;
+            out.flip ();
+            while (out.hasRemaining ()) {
+                channel.write (out);
+            }
+            out.clear ();
+        }
+
+        /**
+         *  Private method to accept the next byte of the text file.
+         *
+         *  @param b The byte.
+         */
+        private void accept (byte b) throws IOException {
+            if (b == '\r') return;
+            if (b == '\t' || b == '\n') {
+                endField ();
+                if (b == '\n') endLine ();
+                return;
+            }
+            if (line == 0 || field == 0) {
+                name.write (b);
+                return;
+            }
+            if (b < '0' || b > '9') {
+                throw new IOException (String.format (
+                    "Invalid count on line %d of the count matrix file.",
+                    line + 1
+                ));
+            }
+            value = 10 * value + (b - '0');
+            if (value > Integer.MAX_VALUE) {
+                throw new IOException (String.format (
+                    "Count too large on line %d of the count matrix file.",
+                    line + 1
+                ));
+            }
+            digits ++;
+        }
+
+        /**
+         *  Private method to end a field of the text file.
+         */
+        private void endField () throws IOException {
+            if (line == 0) {
+                header.add (name.toString ("UTF-8"));
+                name.reset ();
+            }
+            else if (field == 0) {
+                sample = name.toString ("UTF-8");
+                name.reset ();
+            }
+            else {
+                if (digits == 0) {
+                    throw new IOException (String.format (
+                        "Missing count on line %d of the count matrix file.",
+                        line + 1
+                    ));
+                }
+                if (value != 0) add (field - 1, (int)value);
+                value = 0;
+                digits = 0;
+            }
+            field ++;
+        }
+
+        /**
+         *  Private method to end a line of the text file.
+         */
+        private void endLine () throws IOException {
+            int fields = field;
+            field = 0;
+            // Skip blank lines.
+            if (fields == 1 && (line == 0 ? header.get (0) : sample)
+                .isEmpty ()) {
+                if (line == 0) header.clear ();
+                return;
+            }
+            if (line > 0) {
+                // The first line may or may not have a name over the
+                // names of the samples.
+                if (columns < 0) columns = fields - 1;
+                if (fields - 1 != columns || (header.size () != columns &&
+                    header.size () != columns + 1)) {
+                    throw new IOException (String.format (
+                        "Wrong number of counts on line %d of the count " +
+                        "matrix file.", line + 1
+                    ));
+                }
+                rows.add (sample);
+                rowStarts.add (number);
+            }
+            line ++;
+        }
+
+        /**
+         *  Private method to add a count that is not zero.
+         *
+         *  @param column The sequence of the count.
+         *  @param count The count.
+         */
+        private void add (int column, int count) throws IOException {
+            if (number == columnIndices.length) {
+                if (number == Integer.MAX_VALUE - 8) {
+                    throw new IOException ("Too many counts.");
+                }
+                int size = (int)Math.min (2L * number, Integer.MAX_VALUE - 8);
+                columnIndices = Arrays.copyOf (columnIndices, size);
+                counts = Arrays.copyOf (counts, size);
+            }
+            columnIndices[number] = column;
+            counts[number] = count;
+            number ++;
+        }
+
+        private int line = 0;
+        private int field = 0;
+        private long value = 0;
+        private int digits = 0;
+        private int columns = -1;
+        private String sample;
+        private ByteArrayOutputStream name = new ByteArrayOutputStream ();
+        private ArrayList<String> header = new ArrayList<String> ();
+        private ArrayList<String> rows = new ArrayList<String> ();
+        /**
+         *  The first count of each sample, and the end of the counts.
+         */
+        private ArrayList<Integer> rowStarts = new ArrayList<Integer> (
+            Arrays.asList (0)
+        );
+        private int number = 0;
+        private int[] columnIndices = new int[1024];
+        private int[] counts = new int[1024];
+
+    }
+
+    /**
+     *  A fork/join task to sum the counts of a range of ecotypes, splitting
+     *  the range in half until it is a single ecotype.
+     */
+    private class EcotypeTask extends RecursiveAction {
+
+        public EcotypeTask (ArrayList<ArrayList<String>> ecotypes,
+            long[][] totals, int from, int to) {
+            this.ecotypes = ecotypes;
+            this.totals = totals;
+            this.from = from;
+            this.to = to;
+        }
+
+        protected void compute () {
+            if (to - from > 1) {
+                int middle = (from + to) >>> 1;
+                invokeAll (
+                    new EcotypeTask (ecotypes, totals, from, middle),
+                    new EcotypeTask (ecotypes, totals, middle, to)
+                );
+                return;
+            }
+            if (from < to) {
+                totals[from] = getSampleCounts (ecotypes.get (from));
+            }
+        }
+
+        private ArrayList<ArrayList<String>> ecotypes;
+        private long[][] totals;
+        private int from;
+        private int to;
+
+    }
+
+    /**
+     *  The extension of the binary file made from a text file.
+     */
+    private static final String EXTENSION = ".csc";
+
+    /**
+     *  The magic number, "ESC" and the version.
+     */
+    private static final int MAGIC = 0x01435345;
+
+    /**
+     *  The size of the header of the binary file.
+     */
+    private static final int HEADER = 20;
+
+    private String[] samples;
+    private String[] sequences;
+    private HashMap<String, Integer> sequenceIndex;
+    private LongBuffer pointers;
+    private IntBuffer sampleIndices;
+    private IntBuffer counts;
+
+}
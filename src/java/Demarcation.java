@@ -23,8 +23,12 @@
 
 package ecosim;
 
+import ecosim.tree.CladeStatistics;
+import ecosim.tree.CompactTree;
 import ecosim.tree.Node;
 import ecosim.tree.InvalidTreeException;
+import ecosim.tree.NewickWriter;
+import ecosim.tree.NodeVisitor;
 import ecosim.tree.Tree;
 
 import java.io.BufferedReader;
@@ -35,6 +39,7 @@ import java.io.FileWriter;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Comparator;
+import java.util.IdentityHashMap;
 import java.util.StringTokenizer;
 
 /**
@@ -147,7 +152,7 @@ public class Demarcation extends Tree {
         String name = String.format (
             "Ecotype%04d-%.4f",
             ecotypes.size (),
-            node.maximumDistanceBetweenLeafNodes ()
+            cladeDiameter (node)
         );
         if (node.isLeafNode ()) {
             node.addChild (new Node (node.getName (), 0.0d));
@@ -182,6 +187,7 @@ public class Demarcation extends Tree {
     private void findEcotypes (Tree tree) throws InvalidTreeException {
         switch (method) {
             case DEMARCATION_METHOD_MONOPHYLY:
+                compactTree (tree.getRoot ());
                 findMonophylyEcotypes (tree.getRoot ());
                 break;
             case DEMARCATION_METHOD_PARAPHYLY:
@@ -204,17 +210,11 @@ public class Demarcation extends Tree {
      *  @param tree The phylogeny data.
      */
     private void findParaphylyEcotypes (Tree tree) throws InvalidTreeException {
-        // Make a copy of the tree to avoid destroying it.
-        Tree sampleTree;
-        try {
-            sampleTree = new Tree (tree);
-        }
-        catch (InvalidTreeException e) {
-            System.err.println ("Error creating subtree.");
-            return;
-        }
+        // Make a compact copy of the tree to remove the ecotypes from, to
+        // avoid destroying the tree.
+        compactTree (tree.getRoot ());
         // Make a list of leaf node descendants.
-        ArrayList<Node> leaves = sampleTree.getDescendants ();
+        ArrayList<Node> leaves = tree.getDescendants ();
         // Sort the leaves by their distance using a custom Comparator.
         Comparator<Node> comparator = new Comparator<Node> () {
             public int compare (Node nodeA, Node nodeB) {
@@ -225,22 +225,26 @@ public class Demarcation extends Tree {
         };
         Heapsorter<Node> sorter = new Heapsorter<Node> (comparator);
         sorter.sort (leaves);
-        // Find the ecotypes.
-        while (leaves.size () > 0) {
+        // Find the ecotypes.  Leaves are removed from the list by removing
+        // them from the compact tree, so only the position of the first
+        // remaining leaf needs to be kept.
+        int first = 0;
+        while (first < leaves.size ()) {
             // Get the first leaf on the list.
-            Node leaf = leaves.get (0);
-            // Skip the outgroup.
-            if (outgroup.equals (leaf.getName ())) {
-                leaves.remove (0);
+            int leaf = compactIndex.get (leaves.get (first));
+            // Skip leaves that have been removed, and the outgroup.
+            if (compactTree.isRemoved (leaf) ||
+                outgroup.equals (compactTree.getName (leaf))) {
+                first ++;
                 continue;
             }
             // Find the ancestor node of the leaf node whose descendants make
             // up a single ecotype.
-            Node node = leaf;
+            int node = leaf;
             while (true) {
-                Node parent = node.getParent ();
+                int parent = compactTree.getParent (node);
                 // Exit the loop if the parent node is the root node.
-                if (parent.isRootNode ()) break;
+                if (parent < 0 || compactTree.getParent (parent) < 0) break;
                 // Predict the number of ecotypes using the parent node and
                 // exit the loop if the result is greater than one.
                 NpopValue result = runSample (parent);
@@ -250,27 +254,24 @@ public class Demarcation extends Tree {
             }
             // Demarcate the ecotype.
             ArrayList<String> ecotype = new ArrayList<String> ();
-            if (node.isLeafNode ()) {
+            if (compactTree.isLeafNode (node)) {
                 // Demarcate a singleton ecotype.
-                ecotype.add (node.getName ());
-                // Remove the node from the tree.
-                leaves.remove (node);
-                sampleTree.removeDescendant (node);
+                ecotype.add (compactTree.getName (node));
             }
             else {
                 // Demarcate an ecotype with multiple representatives.
-                for (Node descendant: node.getDescendants ()) {
-                    // Add the descendant to the ecotype.
-                    ecotype.add (descendant.getName ());
-                    // Remove the descendant from the tree.
-                    leaves.remove (descendant);
-                }
-                // Remove the node from the tree.
-                Node parent = node.getParent ();
-                parent.removeChild (node);
+                ecotype.addAll (descendantNames (node));
             }
+            // Remove the node from the tree, only the bins of its ancestors
+            // need to be updated.
+            compactBinning.removeNode (node);
             ecotypes.add (ecotype);
         }
+        // The ecotypes have been removed from the compact copy, so it no
+        // longer matches the tree.
+        compactTree = null;
+        compactIndex = null;
+        compactBinning = null;
     }
 
     /**
@@ -286,7 +287,7 @@ public class Demarcation extends Tree {
         String ecotype = String.format (
             "Ecotype%04d-%.4f",
             ecotypes.size () + 1,
-            node.maximumDistanceBetweenLeafNodes ()
+            cladeDiameter (node)
         );
         if (node.isLeafNode ()) {
             String name = node.getName ();
@@ -310,7 +311,7 @@ public class Demarcation extends Tree {
                 return;
             }
             // Predict the npop value for the sample.
-            NpopValue result = runSample (node);
+            NpopValue result = runSample (compactIndex.get (node));
             // If npop = 1, demarcate the list of sequences as a new ecotype.
             if (result.npop == 1L) {
                 ecotypes.add (sample);
@@ -327,14 +328,99 @@ public class Demarcation extends Tree {
         }
     }
 
+    /**
+     *  A private helper method to make a compact copy of the tree, so that
+     *  the clades of the tree can be sampled in place.  The index of each
+     *  Node in the compact copy is saved in compactIndex, and the clades of
+     *  the compact copy are binned by compactBinning.
+     *
+     *  @param root The root Node of the tree.
+     */
+    private void compactTree (Node root) {
+        compactTree = new CompactTree ();
+        compactIndex = new IdentityHashMap<Node, Integer> ();
+        root.walk (new NodeVisitor () {
+            public boolean preVisit (Node node) {
+                Integer parent = compactIndex.get (node.getParent ());
+                int index = compactTree.addNode (
+                    parent == null ? -1 : parent,
+                    node.getName (),
+                    node.getDistance ()
+                );
+                compactTree.setOutgroup (index, node.isOutgroup ());
+                compactTree.setCollapsed (index, node.isCollapsed ());
+                compactIndex.put (node, index);
+                return true;
+            }
+            public void postVisit (Node node) {
+            }
+        });
+        compactTree.trim ();
+        compactBinning = new IncrementalBinning (
+            compactTree,
+            Binning.critLevels (mainVariables.getNumberCritLevels ())
+        );
+    }
+
+    /**
+     *  A private helper method to look up the clade diameter of a node in
+     *  the clade statistics of the compact copy of the tree.  Nodes that are
+     *  not part of the copy, or that have been removed from it, are
+     *  measured directly.
+     *
+     *  @param node The node.
+     *  @return The maximum distance between the leaf node descendants.
+     */
+    private Double cladeDiameter (Node node) {
+        if (compactTree == null) compactTree (getRoot ());
+        Integer index = compactIndex.get (node);
+        if (index == null || compactTree.isRemoved (index)) {
+            return node.maximumDistanceBetweenLeafNodes ();
+        }
+        CladeStatistics statistics = compactTree.getStatistics ();
+        return statistics.maximumDistanceBetweenLeafNodes (index);
+    }
+
+    /**
+     *  A private helper method to list the names of the descendants of a
+     *  node of the compact tree, in the same order as Node.getDescendants.
+     *
+     *  @param index The index of the node.
+     *  @return The names of the descendants.
+     */
+    private ArrayList<String> descendantNames (int index) {
+        ArrayList<String> names = new ArrayList<String> ();
+        ArrayList<Integer> stack = new ArrayList<Integer> ();
+        stack.add (index);
+        while (! stack.isEmpty ()) {
+            int node = stack.remove (stack.size () - 1);
+            if (node != index && (compactTree.isLeafNode (node) ||
+                compactTree.isCollapsed (node))) {
+                names.add (compactTree.getName (node));
+                continue;
+            }
+            // Push the children in reverse order, so that they are listed in
+            // order.
+            int top = stack.size ();
+            int child = compactTree.getFirstChild (node);
+            while (child >= 0) {
+                stack.add (top, child);
+                child = compactTree.getNextSibling (child);
+            }
+        }
+        return names;
+    }
+
    /**
     *  A private helper method to run a sample through the demarcation
-    *  program.
+    *  program.  The sample is the clade rooted at the given node of the
+    *  compact copy of the tree, which is binned in place.
     *
-    *  @param node The Node describing the sample to run.
+    *  @param index The index of the root node of the sample.
     *  @return The npop value tested and its likelihood
     */
-   private NpopValue runSample (Node node) throws InvalidTreeException {
+   private NpopValue runSample (int index)
+       throws InvalidTreeException {
         // Increment the iteration variable used in the file names.
         iteration ++;
         File inputFile = new File (
@@ -343,17 +429,30 @@ public class Demarcation extends Tree {
         File outputFile = new File (
             workingDirectory + "demarcationOut-" + iteration + ".dat"
         );
-        File newickFile = new File (
-            workingDirectory + "demarcationTree-" + iteration + ".dat"
+        // Save the sequences to be tested when debugging, the working
+        // directory is deleted otherwise.
+        if (mainVariables.getDebug ()) {
+            File newickFile = new File (
+                workingDirectory + "demarcationTree-" + iteration + ".dat"
+            );
+            writeSampleTree (newickFile, compactTree, index);
+        }
+        // Bin the sample, unless an identical clade has been binned before.
+        Integer sampleNu = compactBinning.numberOfLeaves (index);
+        BinningCache cache = mainVariables.getBinningCache ();
+        long key = BinningCache.key (
+            compactBinning.getFingerprint (index),
+            compactBinning.getCritLevels ()
         );
-        // Create a new Tree containing just the sequences to
-        // be tested.
-        Tree sampleTree = new Tree (node.toString ());
-        sampleTree.toNewick (newickFile);
-        Integer sampleNu = numberOfDescendants (node);
-        // Run the binning program on the sample tree.
-        Binning sampleBinning = new Binning (sampleTree);
-        sampleBinning.run ();
+        Binning sampleBinning = new Binning ();
+        ArrayList<BinLevel> bins = cache.get (key);
+        if (bins != null) {
+            sampleBinning.setBins (bins);
+        }
+        else {
+            sampleBinning = compactBinning.getBinning (index);
+            cache.put (key, sampleBinning.getBins ());
+        }
         // Use the omega and sigma values from hillclimbing.
         Double omega = hclimbResult.getOmega ();
         Double sigma = hclimbResult.getSigma ();
@@ -378,6 +477,36 @@ public class Demarcation extends Tree {
         return results[1];
     }
 
+    /**
+     *  Private method to write the sequences being tested in Newick format.
+     *
+     *  @param newickFile The file to write to.
+     *  @param tree The CompactTree containing the sample.
+     *  @param index The index of the root node of the sample.
+     */
+    private void writeSampleTree (File newickFile, CompactTree tree,
+        int index) {
+        NewickWriter writer = null;
+        try {
+            writer = new NewickWriter (new FileWriter (newickFile));
+            writer.write (tree, index);
+            writer.newLine ();
+        }
+        catch (IOException e) {
+            System.out.println ("Error writing to output file.");
+        }
+        finally {
+            if (writer != null) {
+                try {
+                    writer.close ();
+                }
+                catch (IOException e) {
+                    System.out.println ("Error closing output file.");
+                }
+            }
+        }
+    }
+
     /**
      *  Private method to write the input file for the demarcation program.
      *
@@ -525,5 +654,8 @@ public class Demarcation extends Tree {
     private Integer step = 1;
 
     private int iteration;
+    private CompactTree compactTree;
+    private IdentityHashMap<Node, Integer> compactIndex;
+    private IncrementalBinning compactBinning;
 
 }
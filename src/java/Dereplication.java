@@ -0,0 +1,197 @@
+/*
+ *    Ecotype Simulation models the sequence diversity within a bacterial
+ *    clade as the evolutionary result of net ecotype formation and periodic
+ *    selection, yielding a certain number of ecotypes.
+ *
+ *    Copyright (C) 2019  Jason M. Wood, Montana State University
+ *
+ *    This program is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation, either version 2 of the License, or
+ *    (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+
+package ecosim;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ *  Collapses identical sequences into a single representative, keeping the
+ *  identifiers of the copies so that they can be added back to a tree built
+ *  from the representatives.
+ *
+ *  Sequences are compared ignoring case.  Each sequence is hashed as it is
+ *  added, and only compared with the representatives that have the same
+ *  hash, so that sequences can be dereplicated as they are read.
+ *
+ *  @author Jason M. Wood
+ *  @copyright GNU General Public License
+ */
+public class Dereplication {
+
+    /**
+     *  Add a sequence, either as a new representative or as a copy of an
+     *  identical representative.
+     *
+     *  @param sequence The sequence to add.
+     *  @return True if the sequence is a new representative.
+     */
+    public boolean add (Sequence sequence) {
+        String residues = sequence.getSequence ();
+        Long hash = hash (residues);
+        Integer first = index.get (hash);
+        number ++;
+        // Compare with the representatives that have the same hash.
+        int i = first != null ? first : -1;
+        while (i >= 0) {
+            if (representatives.get (i).getSequence ().equalsIgnoreCase (
+                residues)) {
+                if (copies.get (i) == null) {
+                    copies.set (i, new ArrayList<String> ());
+                }
+                copies.get (i).add (sequence.getIdentifier ());
+                return false;
+            }
+            i = collisions.get (i);
+        }
+        collisions.add (first != null ? first : -1);
+        index.put (hash, representatives.size ());
+        representatives.add (sequence);
+        copies.add (null);
+        return true;
+    }
+
+    /**
+     *  Returns the representative sequences, in the order that they were
+     *  first added.
+     *
+     *  @return The representative sequences.
+     */
+    public ArrayList<Sequence> getRepresentatives () {
+        return representatives;
+    }
+
+    /**
+     *  Returns the identifiers of the copies of each representative that has
+     *  copies, by the identifier of the representative.
+     *
+     *  @return The identifiers of the copies.
+     */
+    public HashMap<String, ArrayList<String>> getCopies () {
+        HashMap<String, ArrayList<String>> map =
+            new HashMap<String, ArrayList<String>> ();
+        for (int i = 0; i < representatives.size (); i ++) {
+            if (copies.get (i) == null) continue;
+            map.put (representatives.get (i).getIdentifier (), copies.get (i));
+        }
+        return map;
+    }
+
+    /**
+     *  Returns the number of copies of a representative, including the
+     *  representative itself.
+     *
+     *  @param i The index of the representative.
+     *  @return The multiplicity of the representative.
+     */
+    public int getMultiplicity (int i) {
+        return copies.get (i) == null ? 1 : copies.get (i).size () + 1;
+    }
+
+    /**
+     *  Returns the number of sequences added.
+     *
+     *  @return The number of sequences.
+     */
+    public int numberOfSequences () {
+        return number;
+    }
+
+    /**
+     *  Returns the number of representative sequences.
+     *
+     *  @return The number of representatives.
+     */
+    public int numberOfRepresentatives () {
+        return representatives.size ();
+    }
+
+    /**
+     *  Save the representative sequences to a Fasta formatted file.
+     *
+     *  @param file File to write the sequences to.
+     *  @return True if the save was a success, False otherwise.
+     */
+    public boolean write (File file) {
+        boolean success = false;
+        BufferedWriter writer = null;
+        try {
+            writer = new BufferedWriter (new FileWriter (file));
+            for (Sequence sequence: representatives) {
+                writer.write (sequence.toString ());
+                writer.write ('\n');
+            }
+            success = true;
+        }
+        catch (IOException e) {
+            System.out.println ("Error writing the sequence file.");
+        }
+        finally {
+            if (writer != null) {
+                try {
+                    writer.close ();
+                }
+                catch (IOException e) {
+                    System.out.println ("Error closing the sequence file.");
+                    success = false;
+                }
+            }
+        }
+        return success;
+    }
+
+    /**
+     *  Private method to hash the residues of a sequence, ignoring case,
+     *  using 64-bit FNV-1a.
+     *
+     *  @param residues The residues of the sequence.
+     *  @return The hash.
+     */
+    private static long hash (String residues) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < residues.length (); i ++) {
+            hash ^= Character.toUpperCase (residues.charAt (i));
+            hash *= 0x100000001b3L;
+        }
+        return hash;
+    }
+
+    private int number = 0;
+    private ArrayList<Sequence> representatives = new ArrayList<Sequence> ();
+    private ArrayList<ArrayList<String>> copies =
+        new ArrayList<ArrayList<String>> ();
+    /**
+     *  The index of the next representative with the same hash, or -1.
+     */
+    private ArrayList<Integer> collisions = new ArrayList<Integer> ();
+    /**
+     *  The index of the last representative added with each hash.
+     */
+    private HashMap<Long, Integer> index = new HashMap<Long, Integer> ();
+
+}
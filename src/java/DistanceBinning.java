@@ -0,0 +1,323 @@
+/*
+ *    Ecotype Simulation models the sequence diversity within a bacterial
+ *    clade as the evolutionary result of net ecotype formation and periodic
+ *    selection, yielding a certain number of ecotypes.
+ *
+ *    Copyright (C) 2019  Jason M. Wood, Montana State University
+ *
+ *    This program is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation, either version 2 of the License, or
+ *    (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+
+package ecosim;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ *  Object to estimate the number of bins in a set of aligned sequences using
+ *  complete-linkage clustering of their pairwise distances, without the need
+ *  of a tree.  The distance between two sequences is the proportion of
+ *  differing sites, ignoring sites without a nucleotide in either sequence.
+ *
+ *  The pairwise distances are calculated in parallel by DistanceMatrix and
+ *  kept as floats in a condensed triangular matrix.  The clusters are then
+ *  merged using the nearest-neighbor chain algorithm, which finds the
+ *  complete-linkage clustering in quadratic time without any extra
+ *  matrices.  The search for the nearest neighbor of a cluster and the
+ *  update of the distances after each merge are split over the common
+ *  fork/join pool.  The number of bins at each crit level is the number
+ *  of clusters left after every merge within that crit level.
+ *
+ *  @author Jason M. Wood
+ *  @copyright GNU General Public License
+ */
+public class DistanceBinning implements Runnable {
+
+    /**
+     *  Object to estimate the number of bins in a set of aligned sequences.
+     *
+     *  @param sequences The aligned sequences to bin.
+     */
+    public DistanceBinning (ArrayList<Sequence> sequences) {
+        this (sequences, 0);
+    }
+
+    /**
+     *  Object to estimate the number of bins in a set of aligned sequences
+     *  reduced to the variable sites of an alignment, see SitePatterns.
+     *
+     *  @param sequences The aligned sequences to bin.
+     *  @param constantSites The number of sites left out of the sequences
+     *  that are the same nucleotide in all of them.
+     */
+    public DistanceBinning (ArrayList<Sequence> sequences,
+        int constantSites) {
+        bins = new ArrayList<BinLevel> ();
+        this.sequences = sequences;
+        this.constantSites = constantSites;
+    }
+
+    /**
+     *  Run the binning program.
+     */
+    public void run () {
+        int n = sequences.size ();
+        if ((long)n * (n - 1) / 2 > Integer.MAX_VALUE - 8) {
+            throw new IllegalArgumentException (
+                "Too many sequences for distance binning: " + n
+            );
+        }
+        size = n;
+        distance = new float[n * (n - 1) / 2];
+        new DistanceMatrix (sequences, constantSites).fill (distance);
+        // Find the height of each merge of the complete-linkage clustering.
+        double[] heights = mergeHeights ();
+        distance = null;
+        Arrays.sort (heights);
+        // The number of bins at a crit level is the number of sequences,
+        // less the number of merges within the crit level.  The crit levels
+        // are sorted, so the count moves on from the previous crit level
+        // instead of starting over.
+        int merges = 0;
+        for (int i = 0; i < critLevels.length; i ++) {
+            double threshold = 1.000d - critLevels[i] - MainVariables.EPSILON;
+            while (merges > 0 && heights[merges - 1] > threshold) {
+                merges --;
+            }
+            while (merges < heights.length && heights[merges] <= threshold) {
+                merges ++;
+            }
+            bins.add (new BinLevel (critLevels[i], n - merges));
+        }
+    }
+
+    /**
+     *  Returns an ArrayList<BinLevel> containing the bin levels.
+     *
+     *  @return The bin levels.
+     */
+    public ArrayList<BinLevel> getBins () {
+        return bins;
+    }
+
+    /**
+     *  Change the crit levels used to bin the sequences.
+     *
+     *  @param critLevels The new crit levels.
+     */
+    public void setCritLevels (Double[] critLevels) {
+        this.critLevels = critLevels;
+    }
+
+    /**
+     *  Returns the binning result as a String.
+     *
+     *  @return the binning result.
+     */
+    public String toString () {
+        String str = "";
+        for (int i = 0; i < bins.size (); i ++) {
+            str += bins.get (i).toString ();
+            if (i < bins.size () - 1) {
+                str += ", ";
+            }
+        }
+        return str;
+    }
+
+    /**
+     *  Private method to merge the clusters using the nearest-neighbor
+     *  chain algorithm.  The distance between two clusters is the maximum
+     *  distance between their sequences, which is kept up to date in the
+     *  distance matrix at the index of the lower numbered cluster.
+     *
+     *  @return The height of each merge, in the order they were made.
+     */
+    private double[] mergeHeights () {
+        int n = size;
+        double[] heights = new double[Math.max (n - 1, 0)];
+        boolean[] merged = new boolean[n];
+        int[] chain = new int[n];
+        int length = 0;
+        int next = 0;
+        for (int m = 0; m < n - 1; m ++) {
+            while (true) {
+                if (length == 0) {
+                    // Start a new chain at the next active cluster.
+                    while (merged[next]) next ++;
+                    chain[length ++] = next;
+                }
+                int a = chain[length - 1];
+                int previous = length > 1 ? chain[length - 2] : -1;
+                // Find the nearest neighbor of the cluster, preferring the
+                // previous cluster of the chain in case of a tie, and then
+                // the lowest numbered cluster.
+                long key = new NearestTask (a, 0, n, merged).invoke ();
+                int b = (int)key;
+                float nearest = distance (a, b);
+                if (previous >= 0 && distance (a, previous) <= nearest) {
+                    b = previous;
+                    nearest = distance (a, b);
+                }
+                if (b != previous) {
+                    chain[length ++] = b;
+                    continue;
+                }
+                // The two clusters are reciprocal nearest neighbors, merge
+                // them into the lower numbered one.
+                length -= 2;
+                heights[m] = nearest;
+                int keep = Math.min (a, b);
+                int drop = Math.max (a, b);
+                new UpdateTask (keep, drop, 0, n, merged).invoke ();
+                merged[drop] = true;
+                break;
+            }
+        }
+        return heights;
+    }
+
+    /**
+     *  Private method to return the distance between two clusters.
+     *
+     *  @param i The first cluster.
+     *  @param j The second cluster.
+     *  @return The distance.
+     */
+    private float distance (int i, int j) {
+        return distance[index (i, j)];
+    }
+
+    /**
+     *  Private method to return the index of a pair in the condensed
+     *  distance matrix.
+     *
+     *  @param i The first sequence.
+     *  @param j The second sequence.
+     *  @return The index of the pair.
+     */
+    private int index (int i, int j) {
+        if (i > j) {
+            int t = i;
+            i = j;
+            j = t;
+        }
+        return (int)((long)i * (2 * size - i - 1) / 2) + j - i - 1;
+    }
+
+    /**
+     *  A fork/join task to find the nearest neighbor of a cluster in a
+     *  range of clusters, splitting the range in half until it is small.
+     */
+    private class NearestTask extends RecursiveTask<Long> {
+
+        public NearestTask (int cluster, int from, int to, boolean[] merged) {
+            this.cluster = cluster;
+            this.from = from;
+            this.to = to;
+            this.merged = merged;
+        }
+
+        /**
+         *  Returns the nearest neighbor in the range, with the bits of its
+         *  distance in the high half, so that the smallest key is the
+         *  nearest and then the lowest numbered cluster.
+         */
+        protected Long compute () {
+            if (to - from > CLUSTERS) {
+                int middle = (from + to) >>> 1;
+                NearestTask right = new NearestTask (
+                    cluster, middle, to, merged
+                );
+                right.fork ();
+                long a = new NearestTask (
+                    cluster, from, middle, merged
+                ).compute ();
+                return Math.min (a, right.join ());
+            }
+            long best = Long.MAX_VALUE;
+            for (int k = from; k < to; k ++) {
+                if (k == cluster || merged[k]) continue;
+                // Order the distances by their bits, made to sort as
+                // integers.
+                int bits = Float.floatToIntBits (distance (cluster, k));
+                bits ^= (bits >> 31) & 0x7fffffff;
+                best = Math.min (best, (long)bits << 32 | k);
+            }
+            return best;
+        }
+
+        private int cluster;
+        private int from;
+        private int to;
+        private boolean[] merged;
+
+    }
+
+    /**
+     *  A fork/join task to update the distances of a range of clusters to
+     *  a merged cluster, splitting the range in half until it is small.
+     */
+    private class UpdateTask extends RecursiveAction {
+
+        public UpdateTask (int keep, int drop, int from, int to,
+            boolean[] merged) {
+            this.keep = keep;
+            this.drop = drop;
+            this.from = from;
+            this.to = to;
+            this.merged = merged;
+        }
+
+        protected void compute () {
+            if (to - from > CLUSTERS) {
+                int middle = (from + to) >>> 1;
+                invokeAll (
+                    new UpdateTask (keep, drop, from, middle, merged),
+                    new UpdateTask (keep, drop, middle, to, merged)
+                );
+                return;
+            }
+            for (int k = from; k < to; k ++) {
+                if (k == keep || k == drop || merged[k]) continue;
+                float d = Math.max (distance (keep, k), distance (drop, k));
+                distance[index (keep, k)] = d;
+            }
+        }
+
+        private int keep;
+        private int drop;
+        private int from;
+        private int to;
+        private boolean[] merged;
+
+    }
+
+    /**
+     *  The number of clusters scanned by a single task.
+     */
+    private static final int CLUSTERS = 1 << 14;
+
+    private ArrayList<BinLevel> bins;
+    private ArrayList<Sequence> sequences;
+    private int constantSites;
+    private Double[] critLevels = Binning.binLevels;
+    private int size;
+    private float[] distance;
+
+}
@@ -0,0 +1,340 @@
+/*
+ *    Ecotype Simulation models the sequence diversity within a bacterial
+ *    clade as the evolutionary result of net ecotype formation and periodic
+ *    selection, yielding a certain number of ecotypes.
+ *
+ *    Copyright (C) 2019  Jason M. Wood, Montana State University
+ *
+ *    This program is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation, either version 2 of the License, or
+ *    (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+
+package ecosim;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ *  Calculates the pairwise distances between a set of aligned nucleotide
+ *  sequences.  The distance between two sequences is the proportion of
+ *  differing nucleotides, over the sites where both sequences have one of
+ *  A, C, G or T in either case.  Gaps, N and other IUPAC codes are masked
+ *  out of the comparison.
+ *
+ *  The sequences are compared 32 sites at a time on their 2-bit packed
+ *  form: the XOR of two words folded onto the low bit of each site, and
+ *  masked by the sites of both sequences, gives the differences with a
+ *  single population count.  The distances are calculated in parallel, in
+ *  tiles of rows and columns small enough to stay in cache.
+ *
+ *  The half-matrix holds the distance between sequences i and j, for
+ *  i &lt; j, at index i * (2n - i - 1) / 2 + j - i - 1.  Saved to a file, it
+ *  is a series of little-endian 32-bit floats in the same order.
+ *
+ *  @author Jason M. Wood
+ *  @copyright GNU General Public License
+ */
+public class DistanceMatrix {
+
+    /**
+     *  Calculates the pairwise distances between a set of sequences.
+     *
+     *  @param sequences The aligned sequences.
+     */
+    public DistanceMatrix (ArrayList<Sequence> sequences) {
+        this (sequences, 0);
+    }
+
+    /**
+     *  Calculates the pairwise distances between a set of sequences reduced
+     *  to the variable sites of an alignment, see SitePatterns.
+     *
+     *  @param sequences The aligned sequences.
+     *  @param constantSites The number of sites left out of the sequences
+     *  that are the same nucleotide in all of them.
+     */
+    public DistanceMatrix (ArrayList<Sequence> sequences, int constantSites) {
+        this.constantSites = constantSites;
+        size = sequences.size ();
+        words = new long[size][];
+        masks = new long[size][];
+        for (int i = 0; i < size; i ++) {
+            Sequence sequence = sequences.get (i);
+            PackedSequence packed;
+            if (sequence.isPacked ()) {
+                packed = sequence.getPackedSequence ();
+            }
+            else {
+                packed = new PackedSequence (sequence.getSequence ());
+            }
+            mask (i, packed);
+        }
+    }
+
+    /**
+     *  Return the number of sequences.
+     *
+     *  @return The number of sequences.
+     */
+    public int size () {
+        return size;
+    }
+
+    /**
+     *  Return the number of distances in the half-matrix.
+     *
+     *  @return The number of distances.
+     */
+    public long length () {
+        return (long)size * (size - 1) / 2;
+    }
+
+    /**
+     *  Return the index of the distance between two sequences in the
+     *  half-matrix.
+     *
+     *  @param i The first sequence.
+     *  @param j The second sequence.
+     *  @return The index of the distance.
+     */
+    public long index (int i, int j) {
+        if (i > j) {
+            int t = i;
+            i = j;
+            j = t;
+        }
+        return (long)i * (2 * size - i - 1) / 2 + j - i - 1;
+    }
+
+    /**
+     *  Calculate the distance between two sequences.
+     *
+     *  @param i The first sequence.
+     *  @param j The second sequence.
+     *  @return The distance.
+     */
+    public float distance (int i, int j) {
+        long[] a = words[i];
+        long[] b = words[j];
+        long[] ma = masks[i];
+        long[] mb = masks[j];
+        int length = Math.min (a.length, b.length);
+        int differences = 0;
+        int sites = 0;
+        for (int k = 0; k < length; k ++) {
+            long x = a[k] ^ b[k];
+            long m = ma[k] & mb[k];
+            differences += Long.bitCount ((x | (x >>> 1)) & m);
+            sites += Long.bitCount (m);
+        }
+        sites += constantSites;
+        if (sites == 0) return 0.0f;
+        return (float)((double)differences / sites);
+    }
+
+    /**
+     *  Calculate the half-matrix of distances into an array.
+     *
+     *  @param matrix The array to hold the half-matrix.
+     */
+    public void fill (final float[] matrix) {
+        if (matrix.length < length ()) {
+            throw new IllegalArgumentException (
+                "Array too small for the distance matrix."
+            );
+        }
+        new TileTask (0, tiles (), new Store () {
+            public void store (long index, float[] distances) {
+                System.arraycopy (
+                    distances, 0, matrix, (int)index, distances.length
+                );
+            }
+        }).invoke ();
+    }
+
+    /**
+     *  Calculate the half-matrix of distances into a memory-mapped file.
+     *
+     *  @param file The file to save the half-matrix to.
+     */
+    public void write (File file) throws IOException {
+        final FileChannel channel = FileChannel.open (
+            file.toPath (),
+            StandardOpenOption.CREATE,
+            StandardOpenOption.READ,
+            StandardOpenOption.WRITE,
+            StandardOpenOption.TRUNCATE_EXISTING
+        );
+        try {
+            new TileTask (0, tiles (), new Store () {
+                public void store (long index, float[] distances) {
+                    try {
+                        MappedByteBuffer buffer = channel.map (
+                            FileChannel.MapMode.READ_WRITE,
+                            4 * index,
+                            4L * distances.length
+                        );
+                        buffer.order (ByteOrder.LITTLE_ENDIAN)
+                            .asFloatBuffer ().put (distances);
+                    }
+                    catch (IOException e) {
+                        throw new UncheckedIOException (e);
+                    }
+                }
+            }).invoke ();
+        }
+        catch (UncheckedIOException e) {
+            throw e.getCause ();
+        }
+        finally {
+            channel.close ();
+        }
+    }
+
+    /**
+     *  Private method to return the number of tiles of rows.
+     *
+     *  @return The number of tiles.
+     */
+    private int tiles () {
+        return (size + TILE - 1) / TILE;
+    }
+
+    /**
+     *  Private method to store the packed words of a sequence, and the
+     *  mask of its sites holding a nucleotide, on the low bit of each site.
+     *  Nucleotides kept as exceptions because of their case are packed
+     *  into a copy of the words.
+     *
+     *  @param i The index of the sequence.
+     *  @param packed The packed sequence.
+     */
+    private void mask (int i, PackedSequence packed) {
+        int length = packed.length ();
+        long[] word = packed.getWords ();
+        long[] mask = new long[word.length];
+        for (int k = 0; k < mask.length; k ++) {
+            int sites = Math.min (32, length - 32 * k);
+            mask[k] = sites == 32 ? LOW_BITS : LOW_BITS & ((1L << 2 * sites) - 1);
+        }
+        int[] exceptions = packed.getExceptions ();
+        for (int k = 0; k < exceptions.length; k ++) {
+            int position = exceptions[k];
+            int shift = (position & 31) << 1;
+            int code = NUCLEOTIDES.indexOf (
+                Character.toUpperCase (packed.charAt (position))
+            );
+            if (code < 0) {
+                mask[position >>> 5] &= ~(1L << shift);
+            }
+            else if (code > 0) {
+                if (word == packed.getWords ()) word = word.clone ();
+                word[position >>> 5] |= (long)code << shift;
+            }
+        }
+        words[i] = word;
+        masks[i] = mask;
+    }
+
+    /**
+     *  Stores the distances of a tile of rows of the half-matrix.
+     */
+    private interface Store {
+
+        /**
+         *  Store the distances of a tile of rows.
+         *
+         *  @param index The index of the first distance in the half-matrix.
+         *  @param distances The distances.
+         */
+        public void store (long index, float[] distances);
+
+    }
+
+    /**
+     *  A fork/join task to calculate the rows of the half-matrix for a
+     *  range of tiles of rows, splitting the range in half until it is a
+     *  single tile.  The rows of a tile are calculated a tile of columns at
+     *  a time, and then stored together.
+     */
+    private class TileTask extends RecursiveAction {
+
+        public TileTask (int from, int to, Store store) {
+            this.from = from;
+            this.to = to;
+            this.store = store;
+        }
+
+        protected void compute () {
+            if (to - from > 1) {
+                int middle = (from + to) >>> 1;
+                invokeAll (
+                    new TileTask (from, middle, store),
+                    new TileTask (middle, to, store)
+                );
+                return;
+            }
+            int first = from * TILE;
+            int last = Math.min (first + TILE, size);
+            if (from == to || first >= size - 1) return;
+            long start = index (first, first + 1);
+            long end = last < size ? index (last, last + 1) : length ();
+            float[] distances = new float[(int)(end - start)];
+            for (int column = first + 1; column < size; column += TILE) {
+                int columnEnd = Math.min (column + TILE, size);
+                for (int i = first; i < last; i ++) {
+                    int row = (int)(index (i, i + 1) - start) - i - 1;
+                    for (int j = Math.max (column, i + 1); j < columnEnd; j ++) {
+                        distances[row + j] = distance (i, j);
+                    }
+                }
+            }
+            store.store (start, distances);
+        }
+
+        private int from;
+        private int to;
+        private Store store;
+
+    }
+
+    /**
+     *  The number of sequences in a tile of rows or columns.
+     */
+    private static final int TILE = 64;
+
+    /**
+     *  The low bit of every site of a packed word.
+     */
+    private static final long LOW_BITS = 0x5555555555555555L;
+
+    /**
+     *  The nucleotides in the order of their packed codes.
+     */
+    private static final String NUCLEOTIDES = "ACGT";
+
+    private int size;
+    private int constantSites;
+    private long[][] words;
+    private long[][] masks;
+
+}
@@ -64,6 +64,8 @@ import javax.swing.SwingUtilities;
  *     -o, --output=[file]    : A XML formated save for for output.
  *     -s, --sequences=[file] : A Fasta formated file for input.
  *     -p, --phylogeny=[file] : A Newick formatted file for input.
+ *     -a, --abundance=[file] : A sample by sequence table of counts, to sum
+ *                              for each ecotype after demarcation.
  *     -O, --omega=[float]    : Initial value for Omega. Requires Sigma and Npop.
  *     -S, --sigma=[float]    : Initial value for Sigma. Requires Omega and Npop.
  *     -N, --npop=[int]       : Inital value for Npop. Requires Sigma and Omega.
@@ -71,6 +73,18 @@ import javax.swing.SwingUtilities;
  *     -h, --help             : Display helpful information.
  *     -n, --nogui            : Hide the default GUI.  Implies --runall.
  *     -r, --runall           : Run everything, including demarcation.
+ *     -j, --nj               : Generate the tree with neighbor joining
+ *                              instead of FastTree.
+ *     -b, --distancebinning  : Also bin the sequences by their pairwise
+ *                              distances, without the tree.
+ *     -g, --nogaps           : Use the length of the alignment without the
+ *                              columns with gaps as the sequence length.
+ *     -u, --unique           : Generate the tree from the unique sequences,
+ *                              adding back the copies of each.
+ *     -c, --critlevels=[n]   : Set the number of crit levels (n) used for
+ *                              binning, default to 42 fixed levels.
+ *                              More levels subdivide the fixed levels,
+ *                              fewer are picked from them.
  *     -t, --threads=[n]      : Set the number of threads (n) to start,
  *                              default to system maximum.
  *     -v, --version          : Display the version number.
@@ -93,22 +107,35 @@ import javax.swing.SwingUtilities;
  * @li @b EcotypeSimulation - The main object of the Ecotype %Simulation.
  * @li @b BinLevel - Stores the bin levels for the Binning object.
  * @li @b Binning - Object to run the binning algorithm.
+ * @li @b BinningCache - A bounded cache of binning results.
+ * @li @b BlockGzipInputStream - Decompresses blocked gzip files in parallel.
+ * @li @b CountMatrix - A memory-mapped matrix of abundance counts.
  * @li @b Demarcation - Demarcates ecotypes based on the hillclimbing values
  *        and the phylogeny of the sequences using the ::demarcation program.
+ * @li @b Dereplication - Collapses identical sequences.
+ * @li @b DistanceBinning - Bins the sequences by their pairwise distances.
+ * @li @b DistanceMatrix - Calculates the pairwise distances of sequences.
  * @li @b Execs - Holds the executable methods for the various programs.
  * @li @b Fasta - Handles the input and output of fasta formatted text files.
+ * @li @b Hashing - Shared methods to fingerprint trees and clades.
  * @li @b Heapsorter - Runs the heapsort on a given set of data.
  * @li @b Hillclimb - Object to interact with the ::hillclimb program.
+ * @li @b IncrementalBinning - Bins the clades of a tree while removing nodes.
  * @li @b InvalidFastaException - Report a malformed Fasta file.
  * @li @b Logger - Display text to the user.
  * @li @b MainVariables - Common variables used through the program.
+ * @li @b NeighborJoining - Builds a tree from the sequences with neighbor
+ *        joining.
  * @li @b NpopConfidenceInterval - Run the ::npopci program.
  * @li @b OmegaConfidenceInterval - Run the ::omegaci program.
+ * @li @b PackedSequence - A nucleotide sequence packed into 2 bits per base.
  * @li @b ParameterEstimate - An object to estimate the parameter values.
  * @li @b ParameterSet - An object to store the parameter values.
  * @li @b ProjectFileIO - Perform IO operations for the XML project file.
  * @li @b SigmaConfidenceInterval - Run the ::sigmaci program.
  * @li @b Simulation - The shared methods of the simulation.
+ * @li @b SitePatterns - Compresses an alignment to its variable sites.
+ * @li @b StreamFeeder - Feeds input to the external programs.
  * @li @b StreamGobbler - Captures output from the Fortran programs.
  * @li @b Summary - An object to hold summary data.
  * @li @b api.Painter - Defines a custom method to paint on a surface.
@@ -121,12 +148,16 @@ import javax.swing.SwingUtilities;
  * @li @b gui.OptionsPane - Defines a custom panel to display the options.
  * @li @b gui.SummaryPane - Defines a custom panel to display the summary.
  * @li @b gui.TiledPainter - Defines a custom tile-based painter for the GUI.
+ * @li @b tree.CladeStatistics - The clade statistics of every node of a tree.
+ * @li @b tree.CompactTree - A compact, index-based phylogenetic tree.
  * @li @b tree.InvalidTreeException - Report a malformed tree.
  * @li @b tree.NewickReader - Read a Newick formatted tree.
  * @li @b tree.NewickWriter - Write the tree in Newick format.
  * @li @b tree.Node - A node of a phylogenetic tree.
+ * @li @b tree.NodeVisitor - Visit the nodes of a tree without recursion.
  * @li @b tree.SVGPainter - A text-based painter to save a tree in SVG format.
  * @li @b tree.Tree - Interact with phylogenetic trees.
+ * @li @b tree.TreeLayout - The layout of a tree for painting.
  */
 
 /**
@@ -182,15 +213,25 @@ public class EcotypeSimulation implements Runnable {
             mainVariables.setSequenceFile (fastaFile);
             // Load the sequence file.
             simulation.loadSequenceFile ();
-            // Generate the phylogeny file if not provided.
+            // Generate the phylogeny if not provided.
             if (newickFile == null || ! newickFile.exists ()) {
-                newickFile = simulation.generateTree ();
+                simulation.generateAndLoadTree ();
+            }
+            else {
+                mainVariables.setPhylogenyFile (newickFile);
+                // Load the phylogeny file.
+                simulation.loadTreeFile ();
+            }
+            if (! simulation.treeLoaded ()) {
+                System.err.println ("Error, unable to load the tree.");
+                System.exit (1);
             }
-            mainVariables.setPhylogenyFile (newickFile);
-            // Load the phylogeny file.
-            simulation.loadTreeFile ();
             // Run the binning program.
             simulation.runBinning ();
+            // Run distance binning for comparison if requested.
+            if (mainVariables.getDistanceBinning ()) {
+                simulation.runDistanceBinning ();
+            }
             // Run the parameter estimate program if initial values not provided.
             if (initialValues.getOmega () != null &&
                 initialValues.getSigma () != null &&
@@ -218,6 +259,7 @@ public class EcotypeSimulation implements Runnable {
             simulation.runHillclimbing ();
             simulation.runConfidenceIntervals ();
             simulation.runDemarcation ();
+            simulation.runAbundance ();
         }
         // Exit the simulation if the GUI wasn't started.
         if (noGUI) simulation.exit ();
@@ -354,12 +396,79 @@ public class EcotypeSimulation implements Runnable {
                 case "--runall":
                     runAll = true;
                     break;
+                case "-j":
+                case "--nj":
+                    mainVariables.setNeighborJoining (true);
+                    break;
+                case "-b":
+                case "--distancebinning":
+                    mainVariables.setDistanceBinning (true);
+                    break;
+                case "-g":
+                case "--nogaps":
+                    mainVariables.setDeleteGaps (true);
+                    break;
+                case "-u":
+                case "--unique":
+                    mainVariables.setDereplicate (true);
+                    break;
+                case "-a":
+                case "--abundance":
+                    if (value.length () > 0) {
+                        mainVariables.setAbundanceFile (new File (value));
+                    }
+                    else {
+                        // Abundance file not provided, print an error.
+                        System.out.println (String.format (
+                            "Syntax error: Abundance file missing.\n%s",
+                            usage
+                        ));
+                        System.exit (1);
+                    }
+                    break;
                 case "-s":
                 case "--sequences":
                     if (value.length () > 0) {
                         fastaFile = new File (value);
                     }
                     break;
+                case "-c":
+                case "--critlevels":
+                    if (value.length () > 0) {
+                        int max = Binning.MAXIMUM_CRIT_LEVELS;
+                        int num = 0;
+                        try {
+                            num = Integer.parseInt (value);
+                        }
+                        catch (NumberFormatException e) {
+                            System.out.println (String.format (
+                                "Syntax error: Expected a number.\n%s\n%s",
+                                e, usage
+                            ));
+                            System.exit (1);
+                        }
+                        if (num >= 2 && num <= max) {
+                            mainVariables.setNumberCritLevels (num);
+                        }
+                        else {
+                            System.out.println (String.format (
+                                "Syntax error: Invalid number of crit " +
+                                "levels specified: %d of %d possible.\n",
+                                num, max
+                            ));
+                            System.exit (1);
+                        }
+                    }
+                    else {
+                        // Number of crit levels not provided, print an error.
+                        System.out.println (String.format (
+                            "Syntax error: Number of crit levels missing." +
+                            "\n%s",
+                            usage
+                        ));
+                        System.exit (1);
+                    }
+                    break;
                 case "-t":
                 case "--threads":
                     if (value.length () > 0) {
@@ -467,6 +576,9 @@ public class EcotypeSimulation implements Runnable {
         "    -o, --output=[file]    : A XML formated save for for output.\n" +
         "    -s, --sequences=[file] : A Fasta formated file for input.\n" +
         "    -p, --phylogeny=[file] : A Newick formatted file for input.\n" +
+        "    -a, --abundance=[file] : A sample by sequence table of counts," +
+                                    " to sum for each ecotype after" +
+                                    " demarcation.\n" +
         "    -O, --omega=[float]    : Initial value for Omega.  Requires" +
                                     " Sigma and Npop.\n" +
         "    -S, --sigma=[float]    : Initial value for Sigma.  Requires" +
@@ -479,6 +591,22 @@ public class EcotypeSimulation implements Runnable {
                                     " --runall.\n" +
         "    -r, --runall           : Run everything, including" +
                                     " demarcation.\n" +
+        "    -j, --nj               : Generate the tree with neighbor" +
+                                    " joining instead of FastTree.\n" +
+        "    -b, --distancebinning  : Also bin the sequences by their" +
+                                    " pairwise distances, without the" +
+                                    " tree.\n" +
+        "    -g, --nogaps           : Use the length of the alignment" +
+                                    " without the columns with gaps as" +
+                                    " the sequence length.\n" +
+        "    -u, --unique           : Generate the tree from the unique" +
+                                    " sequences, adding back the copies" +
+                                    " of each.\n" +
+        "    -c, --critlevels=[n]   : Set the number of crit levels (n)" +
+                                    " used for binning, default to 42" +
+                                    " fixed levels.  More levels" +
+                                    " subdivide the fixed levels, fewer" +
+                                    " are picked from them.\n" +
         "    -t, --threads=[n]      : Set the number of threads (n) to" +
                                     " start, default to system maximum.\n" +
         "    -v, --version          : Display the version number.\n";
@@ -30,6 +30,7 @@ import ecosim.os.Mac;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.PrintStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
@@ -238,18 +239,33 @@ public class Execs {
 
     /**
      *  Runs FastTree on the Fasta formated input file to generate a Newick
-     *  formated output file.
+     *  formated output file.  Compressed input files are decompressed and
+     *  streamed to FastTree, without writing the decompressed file to disk.
      *
      *  @param input The Fasta formated input file.
      *  @param output The Newick formated output file.
      *  @return The exit value.
      */
     public int runFastTree (File input, File output) {
+        InputStream inputStream = null;
         String[] command = {
             binaryDirectory + "fasttree" + os.getBinaryExtension (),
             "-nt",
             input.getAbsolutePath (),
         };
+        try {
+            if (BlockGzipInputStream.isGzip (input)) {
+                // FastTree reads the sequences from stdin without a file.
+                inputStream = BlockGzipInputStream.open (input);
+                command = new String[] { command[0], command[1] };
+            }
+        }
+        catch (IOException e) {
+            // FastTree can not read the compressed file itself.
+            log.append ("Error reading the sequence file!\n");
+            e.printStackTrace ();
+            return -1;
+        }
         PrintStream errorStream = null;
         PrintStream outputStream = null;
         // Catch program error output if debugging is enabled.
@@ -265,6 +281,7 @@ public class Execs {
         }
         return runApplication (
             command,
+            inputStream,
             errorStream,
             "FastTree>",
             outputStream,
@@ -289,8 +306,35 @@ public class Execs {
     private int runApplication (
         String[] command, PrintStream errorStream, String errorMessage,
         PrintStream outputStream, String outputMessage, boolean wait
+    ) {
+        return runApplication (
+            command, null, errorStream, errorMessage, outputStream,
+            outputMessage, wait
+        );
+    }
+
+    /**
+     *  Runs the provided application with the provided args, feeding the
+     *  provided input stream to the application.
+     *  If the wait boolean is set, waits for the application to finish.
+     *
+     *  @param command A String array containing the path and filename of the
+     *  application, and any arguments.
+     *  @param inputStream The IO Stream to feed to the application, or null.
+     *  @param errorStream The IO Stream to print error messages to.
+     *  @param errorMessage The title for error messages.
+     *  @param outputStream The IO Stream to print standard messages to.
+     *  @param outputMessage The title for the output messages.
+     *  @param wait Set to TRUE to wait for application to exit.
+     *  @return The exit value.
+     */
+    private int runApplication (
+        String[] command, InputStream inputStream, PrintStream errorStream,
+        String errorMessage, PrintStream outputStream, String outputMessage,
+        boolean wait
     ) {
         int exitVal = -1;
+        StreamFeeder inputFeeder = null;
         try {
             Path path = Paths.get (command[0]);
             // Verify the application exists.
@@ -326,6 +370,14 @@ public class Execs {
                 }
                 System.out.print ("\n");
             }
+            if (inputStream != null) {
+                // Feed the input to the application.
+                inputFeeder = new StreamFeeder (
+                    inputStream,
+                    p.getOutputStream ()
+                );
+                inputFeeder.start ();
+            }
             if (errorStream != null) {
                 // Grab error messages.
                 errorGobbler = new StreamGobbler (
@@ -350,6 +402,7 @@ public class Execs {
                 // Also wait for the StreamGobbler threads to finish.
                 if (errorGobbler != null) errorGobbler.join ();
                 if (outputGobbler != null) outputGobbler.join ();
+                if (inputFeeder != null) inputFeeder.join ();
             }
             else {
                 exitVal = 0;
@@ -361,6 +414,18 @@ public class Execs {
         catch (InterruptedException e) {
             e.printStackTrace ();
         }
+        finally {
+            // The StreamFeeder closes the input once it is started,
+            // otherwise the input is closed here.
+            if (inputStream != null && inputFeeder == null) {
+                try {
+                    inputStream.close ();
+                }
+                catch (IOException e) {
+                    e.printStackTrace ();
+                }
+            }
+        }
         return exitVal;
     }
 
@@ -22,15 +22,46 @@
 
 package ecosim;
 
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
 import java.io.File;
-import java.io.RandomAccessFile;
-import java.io.IOException;
 import java.io.FileNotFoundException;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
 
 /**
  *  Handles the input and output of fasta formatted text files.
  *
+ *  The file is opened read-only and memory-mapped.  The offset of every
+ *  sequence in the file is found with a parallel scan for lines starting
+ *  with a '>', and the sequences are then parsed in parallel batches as
+ *  they are requested.
+ *
+ *  The identifier, offset, length and line width of every sequence are
+ *  saved to an index file next to the fasta file, named after it with an
+ *  added ".idx" extension.  The index starts with the size and the last
+ *  modified time of the fasta file, and is reused in place of the scan as
+ *  long as both still match the fasta file.  It allows any sequence to be
+ *  read by its identifier without reading the rest of the file.
+ *
+ *  Files compressed with gzip, and other streams, are instead parsed as
+ *  they are read, without an index.  See BlockGzipInputStream.
+ *
  *  @author Jason M. Wood
  *  @copyright GNU General Public License
  */
@@ -40,7 +71,7 @@ public class Fasta {
      *  Constructor for a Fasta object.
      */
     public Fasta () {
-        file = null;
+        channel = null;
         outgroup = null;
     }
 
@@ -50,10 +81,36 @@ public class Fasta {
      *  @param fastaFile A File containing Fasta formatted data.
      */
     public Fasta (File fastaFile) throws InvalidFastaException {
+        this (fastaFile, false);
+    }
+
+    /**
+     *  Constructor for a Fasta object using a user supplied File.
+     *
+     *  @param fastaFile A File containing Fasta formatted data.
+     *  @param packed True to pack the sequences into 2 bits per nucleotide.
+     */
+    public Fasta (File fastaFile, boolean packed)
+        throws InvalidFastaException {
+        this.packed = packed;
         try {
-            file = new RandomAccessFile (fastaFile, "rw");
+            if (BlockGzipInputStream.isGzip (fastaFile)) {
+                openStream (BlockGzipInputStream.open (fastaFile));
+                return;
+            }
+            channel = FileChannel.open (
+                fastaFile.toPath (), StandardOpenOption.READ
+            );
+            length = channel.size ();
+            File indexFile = new File (fastaFile.getPath () + ".idx");
+            if (! readIndex (fastaFile, indexFile)) {
+                offsets = new OffsetTask (0, length).invoke ();
+                checkLeadingLines ();
+                buildIndex ();
+                writeIndex (fastaFile, indexFile);
+            }
             // Load the first sequence as the outgroup.
-            outgroup = parseSequence ();
+            outgroup = nextRecord ();
             if (outgroup == null) {
                 throw new InvalidFastaException (
                     "Fasta file contains no sequences"
@@ -63,15 +120,52 @@ public class Fasta {
         catch (FileNotFoundException e) {
             throw new InvalidFastaException ("Fasta file not found: " + e);
         }
+        catch (NoSuchFileException e) {
+            throw new InvalidFastaException ("Fasta file not found: " + e);
+        }
+        catch (IOException e) {
+            throw new InvalidFastaException ("IO error: " + e);
+        }
+        catch (UncheckedIOException e) {
+            throw new InvalidFastaException ("IO error: " + e.getCause ());
+        }
+    }
+
+    /**
+     *  Constructor for a Fasta object using a user supplied InputStream.
+     *  The sequences are parsed as they are read from the stream.
+     *
+     *  @param input An InputStream containing Fasta formatted data.
+     */
+    public Fasta (InputStream input) throws InvalidFastaException {
+        this (input, false);
+    }
+
+    /**
+     *  Constructor for a Fasta object using a user supplied InputStream.
+     *  The sequences are parsed as they are read from the stream.
+     *
+     *  @param input An InputStream containing Fasta formatted data.
+     *  @param packed True to pack the sequences into 2 bits per nucleotide.
+     */
+    public Fasta (InputStream input, boolean packed)
+        throws InvalidFastaException {
+        this.packed = packed;
+        try {
+            openStream (input);
+        }
+        catch (IOException e) {
+            throw new InvalidFastaException ("IO error: " + e);
+        }
     }
 
     /**
      *  Close this Fasta.
      */
     public void close () throws InvalidFastaException {
-        if (file == null) return;
         try {
-            file.close ();
+            if (channel != null) channel.close ();
+            if (stream != null) stream.close ();
         }
         catch (IOException e) {
             throw new InvalidFastaException ("IO error: " + e);
@@ -96,76 +190,718 @@ public class Fasta {
         return outgroup;
     }
 
+    /**
+     *  Get the Sequence with the given identifier, without changing the
+     *  position of nextSequence.  Only available for uncompressed files.
+     *
+     *  @param identifier The identifier of the Sequence.
+     *  @return The Sequence, or null if the identifier was not found.
+     */
+    public Sequence getSequence (String identifier)
+        throws InvalidFastaException {
+        if (channel == null) return null;
+        Integer i = index.get (identifier);
+        if (i == null) return null;
+        try {
+            MappedByteBuffer buffer = map (i, i + 1);
+            return parseSequence (buffer, 0, buffer.limit ());
+        }
+        catch (IOException e) {
+            throw new InvalidFastaException ("IO Error: " + e);
+        }
+    }
+
+    /**
+     *  Get the number of sequences in the file, including the outgroup.
+     *  Only available for uncompressed files.
+     *
+     *  @return The number of sequences, or zero for a stream.
+     */
+    public int size () {
+        return offsets.length - 1;
+    }
+
     /**
      *  Retrieves the next sequence from the Fasta formated file.
      *
      *  @return The next sequence in the buffer.
      */
     public Sequence nextSequence () throws InvalidFastaException {
-        if (file == null) return null;
-        // Parse the current sequence.
-        return parseSequence ();
+        if (stream != null) {
+            try {
+                return streamRecord ();
+            }
+            catch (IOException e) {
+                throw new InvalidFastaException ("IO Error: " + e);
+            }
+        }
+        if (channel == null) return null;
+        try {
+            return nextRecord ();
+        }
+        catch (IOException e) {
+            throw new InvalidFastaException ("IO Error: " + e);
+        }
+        catch (UncheckedIOException e) {
+            throw new InvalidFastaException ("IO Error: " + e.getCause ());
+        }
     }
 
     /**
-     *  Private method to parse a Fasta formatted sequence.
+     *  Private method to start parsing sequences from a stream.
      *
-     *  @return A Sequence object.
+     *  @param input The stream.
+     */
+    private void openStream (InputStream input) throws IOException,
+        InvalidFastaException {
+        stream = input;
+        streamBuffer = new byte[STREAM_BUFFER];
+        line = new byte[256];
+        // Load the first sequence as the outgroup.
+        outgroup = streamRecord ();
+        if (outgroup == null) {
+            throw new InvalidFastaException (
+                "Fasta file contains no sequences"
+            );
+        }
+    }
+
+    /**
+     *  Private method to parse the next sequence from the stream.
+     *
+     *  @return The next Sequence, or null if there are no more sequences.
      */
-    private Sequence parseSequence () throws InvalidFastaException {
+    private Sequence streamRecord () throws IOException,
+        InvalidFastaException {
+        String header = nextHeader;
+        nextHeader = null;
+        if (header == null) {
+            // Ignore empty lines before the sequence.
+            int length = readLine ();
+            while (length == 0) {
+                length = readLine ();
+            }
+            if (length < 0) return null;
+            if (line[0] != '>') {
+                throw new InvalidFastaException (
+                    "Not a fasta formated sequence."
+                );
+            }
+            header = new String (line, 0, length, StandardCharsets.ISO_8859_1);
+        }
+        String[] fields = header.split ("\\s+", 2);
+        String id = fields[0].substring (1);
+        String description = "";
+        if (fields.length == 2) {
+            description = fields[1];
+        }
+        // Grab the sequence data, until the next sequence is found.
+        byte[] residues = new byte[256];
+        int size = 0;
+        int length = readLine ();
+        while (length >= 0) {
+            if (length > 0 && line[0] == '>') {
+                nextHeader = new String (
+                    line, 0, length, StandardCharsets.ISO_8859_1
+                );
+                break;
+            }
+            if (size + length > residues.length) {
+                residues = Arrays.copyOf (
+                    residues, Math.max (2 * residues.length, size + length)
+                );
+            }
+            System.arraycopy (line, 0, residues, size, length);
+            size += length;
+            length = readLine ();
+        }
+        // Store the sequence.
         Sequence seq = null;
-        try {
-            // Read the line at the current location into a buffer.
-            String buffer = "";
-            // Ignore empty lines at the start of the file.
-            while (buffer.length () == 0) {
-                // Don't try to read past the end of the file.
-                if (file.getFilePointer () == file.length ()) {
-                    return seq;
+        if (! id.equals ("null")) {
+            seq = makeSequence (id, description, residues, size);
+        }
+        return seq;
+    }
+
+    /**
+     *  Private method to read the next line of the stream into the line
+     *  buffer, without the line break.  A line ends with a line feed, a
+     *  carriage return, or a carriage return followed by a line feed.
+     *
+     *  @return The length of the line, or -1 at the end of the stream.
+     */
+    private int readLine () throws IOException {
+        int length = 0;
+        boolean read = false;
+        while (true) {
+            if (streamPosition == streamLimit) {
+                streamLimit = stream.read (streamBuffer);
+                streamPosition = 0;
+                if (streamLimit < 0) {
+                    streamLimit = 0;
+                    return read ? length : -1;
                 }
-                // Read the line at the current location into a buffer.
-                buffer = file.readLine ();
+                // Skip the line feed following a carriage return that ended
+                // the previous buffer.
+                if (skipLineFeed && streamLimit > 0) {
+                    skipLineFeed = false;
+                    if (streamBuffer[0] == '\n') {
+                        streamPosition ++;
+                        continue;
+                    }
+                }
+            }
+            byte b = streamBuffer[streamPosition ++];
+            read = true;
+            if (b == '\n') return length;
+            if (b == '\r') {
+                if (streamPosition < streamLimit) {
+                    if (streamBuffer[streamPosition] == '\n') streamPosition ++;
+                }
+                else {
+                    skipLineFeed = true;
+                }
+                return length;
             }
-            // Make sure there is a sequence at the current location.
-            if (buffer.charAt (0) != '>') {
+            if (length == line.length) {
+                line = Arrays.copyOf (line, 2 * line.length);
+            }
+            line[length ++] = b;
+        }
+    }
+
+    /**
+     *  Private method to return the next parsed sequence, parsing the next
+     *  batch of sequences when the current batch runs out.
+     *
+     *  @return The next Sequence, or null if there are no more sequences.
+     */
+    private Sequence nextRecord () throws IOException {
+        if (batchIndex == batch.length) {
+            if (record == size ()) return null;
+            int first = record;
+            int last = batchEnd (first);
+            batch = new Sequence[last - first];
+            new RecordTask (map (first, last), first, first, last, true)
+                .invoke ();
+            batchIndex = 0;
+            record = last;
+        }
+        return batch[batchIndex ++];
+    }
+
+    /**
+     *  Private method to find the end of the batch of sequences starting
+     *  at the given sequence, up to the maximum number of sequences or
+     *  bytes in a batch.
+     *
+     *  @param first The first sequence of the batch.
+     *  @return The sequence following the last sequence of the batch.
+     */
+    private int batchEnd (int first) {
+        int last = first + 1;
+        while (
+            last < size () &&
+            last - first < BATCH_SEQUENCES &&
+            offsets[last + 1] - offsets[first] <= BATCH_BYTES
+        ) {
+            last ++;
+        }
+        return last;
+    }
+
+    /**
+     *  Private method to map a range of sequences of the file.
+     *
+     *  @param first The first sequence of the range.
+     *  @param last The sequence following the last sequence of the range.
+     *  @return The mapped range.
+     */
+    private MappedByteBuffer map (int first, int last) throws IOException {
+        long size = offsets[last] - offsets[first];
+        if (size > Integer.MAX_VALUE) {
+            throw new IOException ("Sequence too large to parse.");
+        }
+        return channel.map (
+            FileChannel.MapMode.READ_ONLY, offsets[first], size
+        );
+    }
+
+    /**
+     *  Private method to verify that only empty lines come before the
+     *  first sequence in the file.
+     */
+    private void checkLeadingLines () throws IOException,
+        InvalidFastaException {
+        long end = offsets.length > 1 ? offsets[0] : length;
+        if (end == 0) return;
+        MappedByteBuffer buffer = channel.map (
+            FileChannel.MapMode.READ_ONLY, 0, Math.min (end, BATCH_BYTES)
+        );
+        for (int i = 0; i < buffer.limit (); i ++) {
+            byte b = buffer.get (i);
+            if (b != '\n' && b != '\r') {
                 throw new InvalidFastaException (
                     "Not a fasta formated sequence."
                 );
             }
-            // Grab the sequence identifier and description from the buffer.
-            String[] header = buffer.split ("\\s+", 2);
-            String id = header[0].substring (1);
-            String description = "";
-            if (header.length == 2) {
-                description = header[1];
-            }
-            // Save the current file offset.
-            long offset = file.getFilePointer ();
-            // Grab the sequence data from the buffer.
-            String sequence = "";
-            while ((buffer = file.readLine ()) != null) {
-                // Stop when the next sequence is found.
-                if (buffer.length () > 0 && buffer.charAt (0) == '>') {
-                    file.seek (offset);
-                    break;
+        }
+    }
+
+    /**
+     *  Private method to measure the identifier, length and line width of
+     *  every sequence in the file.
+     */
+    private void buildIndex () throws IOException {
+        int number = size ();
+        identifiers = new String[number];
+        lengths = new int[number];
+        widths = new int[number];
+        int first = 0;
+        while (first < number) {
+            int last = batchEnd (first);
+            new RecordTask (map (first, last), first, first, last, false)
+                .invoke ();
+            first = last;
+        }
+        mapIdentifiers ();
+    }
+
+    /**
+     *  Private method to map each identifier to its sequence, keeping the
+     *  first sequence of any duplicated identifier.
+     */
+    private void mapIdentifiers () {
+        index = new HashMap<String, Integer> (2 * identifiers.length);
+        for (int i = 0; i < identifiers.length; i ++) {
+            if (identifiers[i].equals ("null")) continue;
+            if (! index.containsKey (identifiers[i])) {
+                index.put (identifiers[i], i);
+            }
+        }
+    }
+
+    /**
+     *  Private method to read the index file, if it was written for the
+     *  current fasta file.  The first line of the index holds the size and
+     *  the last modified time of the fasta file and the number of
+     *  sequences, and each following line holds the identifier, offset,
+     *  length and line width of a sequence, separated by tabs.  An index
+     *  holding a different number of sequences is incomplete.
+     *
+     *  @param fastaFile The fasta file.
+     *  @param indexFile The index file.
+     *  @return True if a valid index was read, False if not.
+     */
+    private boolean readIndex (File fastaFile, File indexFile) {
+        if (! indexFile.exists ()) return false;
+        ArrayList<String[]> entries = new ArrayList<String[]> ();
+        int count;
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader (new FileReader (indexFile));
+            // The index is stale if the fasta file has changed since.
+            String nextLine = reader.readLine ();
+            String header = indexHeader (fastaFile) + "\t";
+            if (nextLine == null || ! nextLine.startsWith (header)) {
+                return false;
+            }
+            count = Integer.parseInt (nextLine.substring (header.length ()));
+            nextLine = reader.readLine ();
+            while (nextLine != null) {
+                String[] entry = nextLine.split ("\t");
+                if (entry.length != 4) return false;
+                entries.add (entry);
+                nextLine = reader.readLine ();
+            }
+        }
+        catch (IOException e) {
+            return false;
+        }
+        catch (NumberFormatException e) {
+            return false;
+        }
+        finally {
+            if (reader != null) {
+                try {
+                    reader.close ();
+                }
+                catch (IOException e) {
+                    System.out.println ("Error closing the index file.");
                 }
-                // Store the sequence data.
-                sequence += buffer;
-                // Update the file offset.
-                offset = file.getFilePointer ();
             }
-            // Store the sequence.
-            if (! id.equals ("null")) {
-                seq = new Sequence (id, description, sequence);
+        }
+        int number = entries.size ();
+        if (number == 0 || number != count) return false;
+        long[] offsets = new long[number + 1];
+        String[] identifiers = new String[number];
+        int[] lengths = new int[number];
+        int[] widths = new int[number];
+        try {
+            for (int i = 0; i < number; i ++) {
+                String[] entry = entries.get (i);
+                identifiers[i] = entry[0];
+                offsets[i] = Long.parseLong (entry[1]);
+                lengths[i] = Integer.parseInt (entry[2]);
+                widths[i] = Integer.parseInt (entry[3]);
+                // The offsets must be in order and within the file.
+                if (i > 0 && offsets[i] <= offsets[i - 1]) return false;
+            }
+        }
+        catch (NumberFormatException e) {
+            return false;
+        }
+        if (offsets[number - 1] >= length) return false;
+        offsets[number] = length;
+        this.offsets = offsets;
+        this.identifiers = identifiers;
+        this.lengths = lengths;
+        this.widths = widths;
+        mapIdentifiers ();
+        return true;
+    }
+
+    /**
+     *  Private method to write the index file.  The index is written to a
+     *  temporary file that is only renamed to the index file once it is
+     *  complete, so a failed write never leaves a partial index.
+     *
+     *  @param fastaFile The fasta file.
+     *  @param indexFile The index file.
+     */
+    private void writeIndex (File fastaFile, File indexFile) {
+        if (size () == 0) return;
+        File temporary = new File (indexFile.getPath () + ".tmp");
+        boolean written = false;
+        BufferedWriter writer = null;
+        try {
+            writer = new BufferedWriter (new FileWriter (temporary));
+            writer.write (indexHeader (fastaFile) + "\t" + size ());
+            writer.write ("\n");
+            for (int i = 0; i < size (); i ++) {
+                writer.write (String.format (
+                    "%s\t%d\t%d\t%d\n",
+                    identifiers[i], offsets[i], lengths[i], widths[i]
+                ));
             }
+            writer.close ();
+            writer = null;
+            Files.move (
+                temporary.toPath (), indexFile.toPath (),
+                StandardCopyOption.REPLACE_EXISTING
+            );
+            written = true;
         }
         catch (IOException e) {
-            throw new InvalidFastaException ("IO Error: " + e);
+            System.out.println ("Error writing the index file.");
+        }
+        finally {
+            if (writer != null) {
+                try {
+                    writer.close ();
+                }
+                catch (IOException e) {
+                    System.out.println ("Error closing the index file.");
+                }
+            }
+            if (! written) temporary.delete ();
+        }
+    }
+
+    /**
+     *  Private method to create the first line of the index file, holding
+     *  the size and the last modified time of the fasta file.
+     *
+     *  @param fastaFile The fasta file.
+     *  @return The first line of the index file.
+     */
+    private String indexHeader (File fastaFile) {
+        return String.format (
+            "#\t%d\t%d", length, fastaFile.lastModified ()
+        );
+    }
+
+    /**
+     *  Private method to parse a Fasta formatted sequence.
+     *
+     *  @param buffer The buffer holding the sequence.
+     *  @param start The offset of the sequence in the buffer.
+     *  @param end The offset of the end of the sequence in the buffer.
+     *  @return A Sequence object.
+     */
+    private Sequence parseSequence (MappedByteBuffer buffer,
+        int start, int end) {
+        int position = lineEnd (buffer, start, end);
+        String[] header = parseHeader (buffer, start, position);
+        // Grab the sequence data, skipping the line breaks.
+        byte[] residues = new byte[end - position];
+        int size = 0;
+        for (int i = position; i < end; i ++) {
+            byte b = buffer.get (i);
+            if (! isNewline (b)) {
+                residues[size ++] = b;
+            }
+        }
+        // Store the sequence.
+        Sequence seq = null;
+        if (! header[0].equals ("null")) {
+            seq = makeSequence (header[0], header[1], residues, size);
         }
         return seq;
     }
 
-    private RandomAccessFile file;
+    /**
+     *  Private method to create a Sequence from its residues, packing them
+     *  if requested.
+     *
+     *  @param id The identifier of the sequence.
+     *  @param description The description of the sequence.
+     *  @param residues The array holding the residues.
+     *  @param size The number of residues.
+     *  @return A Sequence object.
+     */
+    private Sequence makeSequence (String id, String description,
+        byte[] residues, int size) {
+        if (packed) {
+            return new Sequence (
+                id, description, new PackedSequence (residues, 0, size)
+            );
+        }
+        return new Sequence (
+            id, description,
+            new String (residues, 0, size, StandardCharsets.ISO_8859_1)
+        );
+    }
+
+    /**
+     *  Private method to measure the identifier, length and line width of
+     *  a Fasta formatted sequence.
+     *
+     *  @param buffer The buffer holding the sequence.
+     *  @param start The offset of the sequence in the buffer.
+     *  @param end The offset of the end of the sequence in the buffer.
+     *  @param i The index of the sequence.
+     */
+    private void measureSequence (MappedByteBuffer buffer, int start,
+        int end, int i) {
+        int position = lineEnd (buffer, start, end);
+        identifiers[i] = parseHeader (buffer, start, position)[0];
+        int size = 0;
+        int width = 0;
+        boolean firstLine = true;
+        for (int j = position; j < end; j ++) {
+            if (isNewline (buffer.get (j))) {
+                if (width > 0) firstLine = false;
+                continue;
+            }
+            size ++;
+            if (firstLine) width ++;
+        }
+        lengths[i] = size;
+        widths[i] = width;
+    }
+
+    /**
+     *  Private method to grab the sequence identifier and description
+     *  from the header line of a sequence.
+     *
+     *  @param buffer The buffer holding the sequence.
+     *  @param start The offset of the header line in the buffer.
+     *  @param end The offset of the end of the header line in the buffer.
+     *  @return The identifier and the description.
+     */
+    private static String[] parseHeader (MappedByteBuffer buffer, int start,
+        int end) {
+        byte[] bytes = new byte[end - start];
+        for (int i = start; i < end; i ++) {
+            bytes[i - start] = buffer.get (i);
+        }
+        String line = new String (bytes, StandardCharsets.ISO_8859_1);
+        String[] header = line.split ("\\s+", 2);
+        String id = header[0].substring (1);
+        String description = "";
+        if (header.length == 2) {
+            description = header[1];
+        }
+        return new String[] { id, description };
+    }
+
+    /**
+     *  Private method to find the end of the line in the buffer.
+     *
+     *  @param buffer The buffer.
+     *  @param start The start of the line.
+     *  @param end The end of the range to search.
+     *  @return The offset of the end of the line.
+     */
+    private static int lineEnd (MappedByteBuffer buffer, int start,
+        int end) {
+        int position = start;
+        while (position < end && ! isNewline (buffer.get (position))) {
+            position ++;
+        }
+        return position;
+    }
+
+    /**
+     *  Private method to check if a byte ends a line.
+     *
+     *  @param b The byte.
+     *  @return True if the byte is a line break.
+     */
+    private static boolean isNewline (byte b) {
+        return b == '\n' || b == '\r';
+    }
+
+    /**
+     *  A fork/join task to find the offsets of the lines starting with a
+     *  '>' in a range of the file, splitting the range in half until it is
+     *  small.  The offsets found are followed by the end of the range.
+     */
+    private class OffsetTask extends RecursiveTask<long[]> {
+
+        public OffsetTask (long from, long to) {
+            this.from = from;
+            this.to = to;
+        }
+
+        protected long[] compute () {
+            if (to - from <= SCAN_BYTES) {
+                try {
+                    return scan ();
+                }
+                catch (IOException e) {
+                    throw new UncheckedIOException (e);
+                }
+            }
+            long middle = (from + to) >>> 1;
+            OffsetTask left = new OffsetTask (from, middle);
+            OffsetTask right = new OffsetTask (middle, to);
+            right.fork ();
+            long[] a = left.compute ();
+            long[] b = right.join ();
+            long[] offsets = Arrays.copyOf (a, a.length + b.length - 1);
+            System.arraycopy (b, 0, offsets, a.length - 1, b.length);
+            return offsets;
+        }
+
+        private long[] scan () throws IOException {
+            // Include the byte before the range to find the line starts.
+            long start = Math.max (from - 1, 0);
+            MappedByteBuffer buffer = channel.map (
+                FileChannel.MapMode.READ_ONLY, start, to - start
+            );
+            long[] offsets = new long[16];
+            int size = 0;
+            for (int i = (int)(from - start); i < buffer.limit (); i ++) {
+                if (buffer.get (i) != '>') continue;
+                if (start + i > 0 && ! isNewline (buffer.get (i - 1))) {
+                    continue;
+                }
+                if (size == offsets.length - 1) {
+                    offsets = Arrays.copyOf (offsets, 2 * offsets.length);
+                }
+                offsets[size ++] = start + i;
+            }
+            offsets[size ++] = to;
+            return Arrays.copyOf (offsets, size);
+        }
+
+        private long from;
+        private long to;
+
+    }
+
+    /**
+     *  A fork/join task to parse or measure a range of the sequences of a
+     *  batch, splitting the range in half until it is small.
+     */
+    private class RecordTask extends RecursiveAction {
+
+        public RecordTask (MappedByteBuffer buffer, int first, int from,
+            int to, boolean parse) {
+            this.buffer = buffer;
+            this.first = first;
+            this.from = from;
+            this.to = to;
+            this.parse = parse;
+        }
+
+        protected void compute () {
+            if (to - from <= PARSE_SEQUENCES) {
+                long base = offsets[first];
+                for (int i = from; i < to; i ++) {
+                    int start = (int)(offsets[i] - base);
+                    int end = (int)(offsets[i + 1] - base);
+                    if (parse) {
+                        batch[i - first] = parseSequence (buffer, start, end);
+                    }
+                    else {
+                        measureSequence (buffer, start, end, i);
+                    }
+                }
+            }
+            else {
+                int middle = (from + to) >>> 1;
+                invokeAll (
+                    new RecordTask (buffer, first, from, middle, parse),
+                    new RecordTask (buffer, first, middle, to, parse)
+                );
+            }
+        }
+
+        private MappedByteBuffer buffer;
+        private int first;
+        private int from;
+        private int to;
+        private boolean parse;
+
+    }
+
+    /**
+     *  The size of the buffer used to read streams.
+     */
+    private static final int STREAM_BUFFER = 1 << 16;
+
+    /**
+     *  The size of the file ranges scanned for sequences by a single task.
+     */
+    private static final long SCAN_BYTES = 1L << 24;
+
+    /**
+     *  The maximum number of sequences parsed in a batch.
+     */
+    private static final int BATCH_SEQUENCES = 8192;
+
+    /**
+     *  The maximum number of bytes parsed in a batch, unless a single
+     *  sequence is larger.
+     */
+    private static final long BATCH_BYTES = 1L << 26;
+
+    /**
+     *  The number of sequences parsed by a single task.
+     */
+    private static final int PARSE_SEQUENCES = 64;
+
+    private boolean packed;
+    private FileChannel channel;
+    private long length;
+    private long[] offsets = { 0L };
+    private int record = 0;
+    private Sequence[] batch = new Sequence[0];
+    private int batchIndex = 0;
     private Sequence outgroup;
+    private String[] identifiers = new String[0];
+    private int[] lengths = new int[0];
+    private int[] widths = new int[0];
+    private HashMap<String, Integer> index = new HashMap<String, Integer> ();
+    private InputStream stream;
+    private byte[] streamBuffer;
+    private int streamPosition = 0;
+    private int streamLimit = 0;
+    private boolean skipLineFeed = false;
+    private byte[] line;
+    private String nextHeader;
 
 }
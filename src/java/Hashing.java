@@ -0,0 +1,56 @@
+/*
+ *    Ecotype Simulation models the sequence diversity within a bacterial
+ *    clade as the evolutionary result of net ecotype formation and periodic
+ *    selection, yielding a certain number of ecotypes.
+ *
+ *    Copyright (C) 2019  Jason M. Wood, Montana State University
+ *
+ *    This program is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation, either version 2 of the License, or
+ *    (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+
+package ecosim;
+
+/**
+ *  The shared methods used to fingerprint trees and clades, and to key the
+ *  binning results of a clade.
+ *
+ *  @author Jason M. Wood
+ *  @copyright GNU General Public License
+ */
+public class Hashing {
+
+    /**
+     *  Scramble the bits of a hash value, using the finalizer of the 64-bit
+     *  MurmurHash3 hash function.
+     *
+     *  @param hash The hash value.
+     *  @return The scrambled hash value.
+     */
+    public static long mix (long hash) {
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+
+    /**
+     *  A large odd number used to combine values into a hash value.
+     */
+    public static final long PRIME = 0x9e3779b97f4a7c15L;
+
+}
@@ -0,0 +1,404 @@
+/*
+ *    Ecotype Simulation models the sequence diversity within a bacterial
+ *    clade as the evolutionary result of net ecotype formation and periodic
+ *    selection, yielding a certain number of ecotypes.
+ *
+ *    Copyright (C) 2019  Jason M. Wood, Montana State University
+ *
+ *    This program is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation, either version 2 of the License, or
+ *    (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+
+package ecosim;
+
+import ecosim.tree.CladeStatistics;
+import ecosim.tree.CompactTree;
+
+import java.util.Arrays;
+
+/**
+ *  Bins the clades of a compact tree while nodes are being removed from it.
+ *  The number of bins of a clade at each crit level is one if the clade
+ *  diameter is within the crit level, and the sum of the bins of its
+ *  children otherwise.  The bins of each clade are cached, and removing a
+ *  node only updates the clade diameters of its ancestors and discards
+ *  their cached bins, so binning the next clade only visits the nodes that
+ *  have changed.
+ *
+ *  The cached bins only store the crit levels where the number of bins of
+ *  a clade changes, taking two ints per change.  The number of bins only
+ *  changes where the clade or one of its descendants is split, so a clade
+ *  takes at most two ints per leaf node or per crit level, whichever is
+ *  fewer, instead of one int for each of the up to
+ *  Binning.MAXIMUM_CRIT_LEVELS crit levels.
+ *
+ *  @author Jason M. Wood
+ *  @copyright GNU General Public License
+ */
+public class IncrementalBinning {
+
+    /**
+     *  Object to bin the clades of a compact tree using the default bin
+     *  levels.
+     *
+     *  @param tree The CompactTree object.
+     */
+    public IncrementalBinning (CompactTree tree) {
+        this (tree, Binning.binLevels);
+    }
+
+    /**
+     *  Object to bin the clades of a compact tree.
+     *
+     *  @param tree The CompactTree object.
+     *  @param critLevels The crit levels, in increasing order.
+     */
+    public IncrementalBinning (CompactTree tree, Double[] critLevels) {
+        this.tree = tree;
+        this.critLevels = critLevels;
+        threshold = new double[critLevels.length];
+        for (int i = 0; i < critLevels.length; i ++) {
+            threshold[i] = 1.000d - critLevels[i] - MainVariables.EPSILON;
+        }
+        int n = tree.size ();
+        height = new double[n];
+        diameter = new double[n];
+        leaves = new int[n];
+        bins = new int[n][];
+        // Start from the clade statistics of the whole tree.
+        CladeStatistics statistics = tree.getStatistics ();
+        for (int i = 0; i < n; i ++) {
+            height[i] = statistics.maximumDistanceFromLeafNode (i);
+            diameter[i] = statistics.maximumDistanceBetweenLeafNodes (i);
+            leaves[i] = statistics.numberOfLeaves (i);
+        }
+        // Fingerprint the clades, with every child before its parent.
+        fingerprint = new long[n];
+        for (int i = n - 1; i >= 0; i --) {
+            if (! tree.isRemoved (i)) fingerprint[i] = shape (i);
+        }
+    }
+
+    /**
+     *  Returns the compact tree being binned.
+     *
+     *  @return The CompactTree object.
+     */
+    public CompactTree getTree () {
+        return tree;
+    }
+
+    /**
+     *  Returns the crit levels used to bin the clades.
+     *
+     *  @return The crit levels.
+     */
+    public Double[] getCritLevels () {
+        return critLevels;
+    }
+
+    /**
+     *  Returns a fingerprint of the shape and the branch lengths of a clade,
+     *  which are all that the bins of a clade depend on.  The names of the
+     *  nodes and the distance of the clade from its parent are left out, so
+     *  identical clades found anywhere have the same fingerprint.
+     *
+     *  @param index The index of the root node of the clade.
+     *  @return The fingerprint of the clade.
+     */
+    public long getFingerprint (int index) {
+        return fingerprint[index];
+    }
+
+    /**
+     *  Returns the number of leaf nodes in a clade.
+     *
+     *  @param index The index of the root node of the clade.
+     *  @return The number of leaf nodes.
+     */
+    public int numberOfLeaves (int index) {
+        return leaves[index];
+    }
+
+    /**
+     *  Returns the clade diameter of a node.
+     *
+     *  @param index The index of the node.
+     *  @return The maximum distance between the leaf node descendants.
+     */
+    public double maximumDistanceBetweenLeafNodes (int index) {
+        return diameter[index];
+    }
+
+    /**
+     *  Bin a clade as if it were a tree of its own, in the same way as
+     *  Binning does for a clade of a compact tree.
+     *
+     *  @param index The index of the root node of the clade.
+     *  @return The Binning containing the bins of the clade.
+     */
+    public Binning getBinning (int index) {
+        int[] levels = new int[critLevels.length];
+        expand (levels (index), levels);
+        Binning binning = new Binning ();
+        for (int i = 0; i < critLevels.length; i ++) {
+            binning.addBinLevel (new BinLevel (critLevels[i], levels[i]));
+        }
+        return binning;
+    }
+
+    /**
+     *  Remove a node and all of its descendants from the tree, see
+     *  CompactTree.removeNode.  The clade statistics of the remaining
+     *  ancestors of the node are updated, and their cached bins discarded.
+     *
+     *  @param index The index of the node to remove.
+     */
+    public void removeNode (int index) {
+        if (tree.isRemoved (index)) return;
+        tree.removeNode (index);
+        // Find the closest ancestor that is left in the tree.
+        int node = tree.getParent (index);
+        while (node >= 0 && tree.isRemoved (node)) {
+            node = tree.getParent (node);
+        }
+        // Update the ancestors from the bottom up.
+        for (; node >= 0; node = tree.getParent (node)) {
+            update (node);
+            bins[node] = null;
+        }
+    }
+
+    /**
+     *  Private method to calculate the clade statistics of a node from
+     *  those of its children, in the same way as CladeStatistics.
+     *
+     *  @param index The index of the node.
+     */
+    private void update (int index) {
+        double first = 0.0d;
+        double second = 0.0d;
+        int count = 0;
+        int sum = 0;
+        for (int c = tree.getFirstChild (index); c >= 0;
+            c = tree.getNextSibling (c)) {
+            double length = height[c] + tree.getDistance (c);
+            if (count == 0 || length > first) {
+                second = first;
+                first = length;
+            }
+            else if (count == 1 || length > second) {
+                second = length;
+            }
+            sum += leaves[c];
+            count ++;
+        }
+        height[index] = count > 0 && first > 0.0d ? first : 0.0d;
+        diameter[index] = count >= 2 ? first + second : 0.0d;
+        leaves[index] = count > 0 ? sum : 1;
+        fingerprint[index] = shape (index);
+    }
+
+    /**
+     *  Private method to calculate the fingerprint of a clade from the
+     *  fingerprints of its children, independent of their order.
+     *
+     *  @param index The index of the root node of the clade.
+     *  @return The fingerprint of the clade.
+     */
+    private long shape (int index) {
+        long hash = 0L;
+        for (int c = tree.getFirstChild (index); c >= 0;
+            c = tree.getNextSibling (c)) {
+            long length = Double.doubleToLongBits (tree.getDistance (c));
+            hash += Hashing.mix (fingerprint[c] + Hashing.PRIME * length);
+        }
+        return Hashing.mix (hash + Hashing.PRIME);
+    }
+
+    /**
+     *  Private method to find the bins of a clade at each crit level.  The
+     *  bins missing from the cache are calculated from the bottom up,
+     *  visiting only the nodes without cached bins.
+     *
+     *  @param index The index of the root node of the clade.
+     *  @return The runs of bins, or null for a leaf node.
+     */
+    private int[] levels (int index) {
+        if (tree.isLeafNode (index) || bins[index] != null) {
+            return bins[index];
+        }
+        // Walk the nodes without cached bins, finishing each node after all
+        // of its children.  A node still to be visited is pushed as its
+        // index, and a node to be finished as the complement of its index.
+        int[] stack = new int[16];
+        int top = 0;
+        stack[top ++] = index;
+        while (top > 0) {
+            int node = stack[-- top];
+            if (node >= 0) {
+                stack[top ++] = ~node;
+                for (int c = tree.getFirstChild (node); c >= 0;
+                    c = tree.getNextSibling (c)) {
+                    if (tree.isLeafNode (c) || bins[c] != null) continue;
+                    if (top == stack.length) {
+                        stack = Arrays.copyOf (stack, 2 * top);
+                    }
+                    stack[top ++] = c;
+                }
+                continue;
+            }
+            node = ~node;
+            int[] runs = null;
+            for (int c = tree.getFirstChild (node); c >= 0;
+                c = tree.getNextSibling (c)) {
+                runs = runs == null ? runs (bins[c]) : add (runs, bins[c]);
+            }
+            bins[node] = cut (runs (runs), within (diameter[node]));
+        }
+        return bins[index];
+    }
+
+    /**
+     *  Private method to find the number of crit levels that a clade
+     *  diameter is within.  The thresholds decrease as the crit levels
+     *  increase, so the clade is within a leading run of the crit levels,
+     *  found with a binary search.
+     *
+     *  @param diameter The clade diameter.
+     *  @return The number of crit levels the clade diameter is within.
+     */
+    private int within (double diameter) {
+        int low = 0;
+        int high = threshold.length;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (diameter <= threshold[middle]) {
+                low = middle + 1;
+            }
+            else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    /**
+     *  Private method to return the runs of bins of a clade, with a leaf
+     *  node forming a single bin at every crit level.
+     *
+     *  @param runs The runs of bins, or null for a leaf node.
+     *  @return The runs of bins.
+     */
+    private static int[] runs (int[] runs) {
+        return runs == null ? LEAF : runs;
+    }
+
+    /**
+     *  Private method to add two runs of bins, walking both runs together
+     *  and starting a new run wherever the sum changes.
+     *
+     *  @param first The first runs of bins.
+     *  @param second The second runs of bins, or null for a leaf node.
+     *  @return The runs of the sum of the bins.
+     */
+    private static int[] add (int[] first, int[] second) {
+        second = runs (second);
+        int[] sum = new int[first.length + second.length];
+        int n = 0;
+        int i = 0;
+        int j = 0;
+        while (true) {
+            int value = first[i + 1] + second[j + 1];
+            if (n == 0 || sum[n - 1] != value) {
+                sum[n ++] = Math.max (first[i], second[j]);
+                sum[n ++] = value;
+            }
+            boolean lastFirst = i + 2 == first.length;
+            boolean lastSecond = j + 2 == second.length;
+            if (lastFirst && lastSecond) break;
+            // Step past the run that ends first, or both if they end at
+            // the same crit level.
+            if (lastSecond || (! lastFirst && first[i + 2] <= second[j + 2])) {
+                if (! lastSecond && first[i + 2] == second[j + 2]) j += 2;
+                i += 2;
+            }
+            else {
+                j += 2;
+            }
+        }
+        return Arrays.copyOf (sum, n);
+    }
+
+    /**
+     *  Private method to make a clade a single bin at the leading crit
+     *  levels that its diameter is within, keeping the runs of bins of its
+     *  children at the remaining crit levels.
+     *
+     *  @param runs The runs of the sum of the bins of the children.
+     *  @param within The number of crit levels the clade is within.
+     *  @return The runs of bins of the clade.
+     */
+    private int[] cut (int[] runs, int within) {
+        if (within == 0) return runs;
+        if (within >= threshold.length) return LEAF;
+        // Find the run holding the first crit level left out of the bin.
+        int r = 0;
+        while (r + 2 < runs.length && runs[r + 2] <= within) r += 2;
+        int[] cut = new int[runs.length - r + 2];
+        int n = 0;
+        cut[n ++] = 0;
+        cut[n ++] = 1;
+        if (runs[r + 1] != 1) {
+            cut[n ++] = within;
+            cut[n ++] = runs[r + 1];
+        }
+        for (r += 2; r < runs.length; r ++) cut[n ++] = runs[r];
+        return n == cut.length ? cut : Arrays.copyOf (cut, n);
+    }
+
+    /**
+     *  Private method to add the runs of bins of a clade to the bins at
+     *  each crit level.  A leaf node adds a single bin at every crit level.
+     *
+     *  @param runs The runs of bins, or null for a leaf node.
+     *  @param levels The bins at each crit level to add to.
+     */
+    private static void expand (int[] runs, int[] levels) {
+        if (runs == null) {
+            for (int i = 0; i < levels.length; i ++) levels[i] ++;
+            return;
+        }
+        for (int r = 0; r < runs.length; r += 2) {
+            int end = r + 2 < runs.length ? runs[r + 2] : levels.length;
+            for (int i = runs[r]; i < end; i ++) levels[i] += runs[r + 1];
+        }
+    }
+
+    /**
+     *  The runs of bins of a leaf node, a single bin at every crit level.
+     */
+    private static final int[] LEAF = new int[] { 0, 1 };
+
+    private CompactTree tree;
+    private Double[] critLevels;
+    private double[] threshold;
+    private double[] height;
+    private double[] diameter;
+    private int[] leaves;
+    private int[][] bins;
+    private long[] fingerprint;
+
+}
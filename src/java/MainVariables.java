@@ -176,6 +176,71 @@ public class MainVariables {
         return numThreads;
     }
 
+    /**
+     *  Returns the number of crit levels to use for binning.
+     *
+     *  @return The number of crit levels to use for binning.
+     */
+    public Integer getNumberCritLevels () {
+        return numCritLevels;
+    }
+
+    /**
+     *  Returns the cache of binning results shared by the demarcation runs
+     *  of this session.  Evicted results are spilled to the working
+     *  directory.
+     *
+     *  @return The binning cache.
+     */
+    public BinningCache getBinningCache () {
+        if (binningCache == null) {
+            binningCache = new BinningCache (
+                BINNING_CACHE_SIZE, new File (workingDirectory)
+            );
+        }
+        return binningCache;
+    }
+
+    /**
+     *  Returns whether identical sequences are collapsed before the tree is
+     *  generated.
+     *
+     *  @return True to generate the tree from the unique sequences.
+     */
+    public Boolean getDereplicate () {
+        return dereplicate;
+    }
+
+    /**
+     *  Returns whether the length of the sequences is counted without the
+     *  columns of the alignment that have a gap.
+     *
+     *  @return True to delete the columns with gaps from the length.
+     */
+    public Boolean getDeleteGaps () {
+        return deleteGaps;
+    }
+
+    /**
+     *  Returns whether the sequences are also binned by their pairwise
+     *  distances after the tree is binned.
+     *
+     *  @return True to run distance binning after binning.
+     */
+    public Boolean getDistanceBinning () {
+        return distanceBinning;
+    }
+
+    /**
+     *  Returns whether the tree is generated with neighbor joining instead
+     *  of FastTree.
+     *
+     *  @return True to generate the tree with neighbor joining.
+     */
+    public Boolean getNeighborJoining () {
+        return neighborJoining;
+    }
+
     /**
      *  Return the current debug status.
      *
@@ -194,6 +259,15 @@ public class MainVariables {
         return outputFile;
     }
 
+    /**
+     *  Get the abundance file.
+     *
+     *  @return The abundance file.
+     */
+    public File getAbundanceFile () {
+        return abundanceFile;
+    }
+
     /**
      *  Get the sequence file.
      *
@@ -229,6 +303,58 @@ public class MainVariables {
         this.numThreads = numThreads;
     }
 
+    /**
+     *  Set the number of crit levels to use for binning.
+     *
+     *  @param numCritLevels The new number of crit levels to use for binning.
+     */
+    public void setNumberCritLevels (Integer numCritLevels) {
+        this.numCritLevels = numCritLevels;
+    }
+
+    /**
+     *  Set whether identical sequences are collapsed before the tree is
+     *  generated.
+     *
+     *  @param dereplicate True to generate the tree from the unique
+     *  sequences.
+     */
+    public void setDereplicate (Boolean dereplicate) {
+        this.dereplicate = dereplicate;
+    }
+
+    /**
+     *  Set whether the length of the sequences is counted without the
+     *  columns of the alignment that have a gap.
+     *
+     *  @param deleteGaps True to delete the columns with gaps from the
+     *  length.
+     */
+    public void setDeleteGaps (Boolean deleteGaps) {
+        this.deleteGaps = deleteGaps;
+    }
+
+    /**
+     *  Set whether the sequences are also binned by their pairwise
+     *  distances after the tree is binned.
+     *
+     *  @param distanceBinning True to run distance binning after binning.
+     */
+    public void setDistanceBinning (Boolean distanceBinning) {
+        this.distanceBinning = distanceBinning;
+    }
+
+    /**
+     *  Set whether the tree is generated with neighbor joining instead of
+     *  FastTree.
+     *
+     *  @param neighborJoining True to generate the tree with neighbor
+     *  joining.
+     */
+    public void setNeighborJoining (Boolean neighborJoining) {
+        this.neighborJoining = neighborJoining;
+    }
+
     /**
      *  Set the current debug status.
      *
@@ -247,6 +373,15 @@ public class MainVariables {
         this.outputFile = outputFile;
     }
 
+    /**
+     *  Set the abundance file.
+     *
+     *  @param abundanceFile The abundance file.
+     */
+    public void setAbundanceFile (File abundanceFile) {
+        this.abundanceFile = abundanceFile;
+    }
+
     /**
      *  Set the sequence file.
      *
@@ -345,6 +480,41 @@ public class MainVariables {
      */
     private Integer numThreads = Runtime.getRuntime ().availableProcessors ();
 
+    /**
+     *  The default number of crit levels, zero to use the default bin levels.
+     */
+    private Integer numCritLevels = 0;
+
+    /**
+     *  Generate the tree with neighbor joining instead of FastTree if true.
+     */
+    private Boolean neighborJoining = false;
+
+    /**
+     *  Generate the tree from the unique sequences if true.
+     */
+    private Boolean dereplicate = false;
+
+    /**
+     *  Delete the columns with gaps from the sequence length if true.
+     */
+    private Boolean deleteGaps = false;
+
+    /**
+     *  Bin the sequences by their pairwise distances after binning if true.
+     */
+    private Boolean distanceBinning = false;
+
+    /**
+     *  The cache of binning results.
+     */
+    private BinningCache binningCache;
+
+    /**
+     *  The number of binning results kept in memory by the binning cache.
+     */
+    private static final int BINNING_CACHE_SIZE = 10000;
+
     /**
      *  The Ecotype Simulation version number.
      */
@@ -390,6 +560,12 @@ public class MainVariables {
      */
     private File sequenceFile = null;
 
+    /**
+     *  The sample by sequence abundance file (defaults to null if not
+     *  provided).
+     */
+    private File abundanceFile = null;
+
     /**
      *  The phylogeny file (defaults to null if not provided).
      */
@@ -0,0 +1,610 @@
+/*
+ *    Ecotype Simulation models the sequence diversity within a bacterial
+ *    clade as the evolutionary result of net ecotype formation and periodic
+ *    selection, yielding a certain number of ecotypes.
+ *
+ *    Copyright (C) 2019  Jason M. Wood, Montana State University
+ *
+ *    This program is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation, either version 2 of the License, or
+ *    (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+
+package ecosim;
+
+import ecosim.tree.CompactTree;
+import ecosim.tree.Tree;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ *  Builds a phylogeny from a set of aligned sequences using neighbor
+ *  joining, as an in-process alternative to FastTree.
+ *
+ *  The distances between the sequences are calculated by DistanceMatrix
+ *  and corrected for multiple substitutions with the Jukes-Cantor model.
+ *  As in RapidNJ, each node keeps a row of its distances to the older
+ *  nodes sorted by distance, so that each pair of nodes is in one row.
+ *  The pair of nodes to join at each step is found by a parallel search of
+ *  the rows, where the search of a row stops once a lower bound on its
+ *  remaining values can not beat the best pair found so far.  The bound
+ *  comes from the largest sum of distances less the scaled distance of
+ *  the nodes left in the row, stored with the row, and the rows are
+ *  compacted and bound again as their nodes are joined.  The unrooted
+ *  result is returned with a trifurcation at the root, as from FastTree.
+ *
+ *  @author Jason M. Wood
+ *  @copyright GNU General Public License
+ */
+public class NeighborJoining implements Runnable {
+
+    /**
+     *  Builds a phylogeny from a set of aligned sequences.
+     *
+     *  @param sequences The aligned sequences.
+     */
+    public NeighborJoining (ArrayList<Sequence> sequences) {
+        this (sequences, 0);
+    }
+
+    /**
+     *  Builds a phylogeny from a set of aligned sequences reduced to the
+     *  variable sites of an alignment, see SitePatterns.
+     *
+     *  @param sequences The aligned sequences.
+     *  @param constantSites The number of sites left out of the sequences
+     *  that are the same nucleotide in all of them.
+     */
+    public NeighborJoining (ArrayList<Sequence> sequences,
+        int constantSites) {
+        this.sequences = sequences;
+        this.constantSites = constantSites;
+    }
+
+    /**
+     *  Run neighbor joining.
+     */
+    public void run () {
+        int n = sequences.size ();
+        if ((long)n * (n - 1) / 2 > Integer.MAX_VALUE - 8) {
+            throw new IllegalArgumentException (
+                "Too many sequences for neighbor joining: " + n
+            );
+        }
+        size = n;
+        distance = new float[n * (n - 1) / 2];
+        new DistanceMatrix (sequences, constantSites).fill (distance);
+        for (int i = 0; i < distance.length; i ++) {
+            distance[i] = (float)jukesCantor (distance[i]);
+        }
+        // Each internal node joins two children, and the root three.
+        int nodes = Math.max (2 * n - 2, n);
+        children = new int[nodes][];
+        lengths = new double[nodes][];
+        join ();
+        distance = null;
+        tree = new Tree (buildTree ());
+    }
+
+    /**
+     *  Returns the tree built by neighbor joining.
+     *
+     *  @return The tree.
+     */
+    public Tree getTree () {
+        return tree;
+    }
+
+    /**
+     *  Private method to join the nodes until three are left, and then
+     *  join those three at the root.
+     */
+    private void join () {
+        int n = size;
+        int nodes = children.length;
+        // The active nodes by slot in the distance matrix, in slot order.
+        active = new int[n];
+        node = new int[n];
+        slot = new int[nodes];
+        alive = new boolean[nodes];
+        rowStart = new int[n];
+        sums = new double[n];
+        for (int i = 0; i < n; i ++) {
+            active[i] = i;
+            node[i] = i;
+            slot[i] = i;
+            alive[i] = true;
+            rowStart[i] = n > 1 ? index (i, i + 1) - i - 1 : 0;
+        }
+        count = n;
+        next = n;
+        for (int i = 0; i < n; i ++) {
+            for (int j = i + 1; j < n; j ++) {
+                float d = get (i, j);
+                sums[i] += d;
+                sums[j] += d;
+            }
+        }
+        // The row of each node holds the older active nodes, sorted by
+        // distance, so that each pair is in the row of the younger node.
+        rowDistances = new float[nodes][];
+        rowNodes = new int[nodes][];
+        rowValue = new float[nodes][];
+        rowCount = new int[nodes];
+        rowGrowth = new double[nodes];
+        rowFirst = new int[nodes];
+        new RowTask (0, count, true).invoke ();
+        while (count > 3) {
+            // Tighten the bounds of the rows that have lost many nodes.
+            new RowTask (0, count, false).invoke ();
+            Pair seed = seed ();
+            bestQ = seed == null ? Double.MAX_VALUE : seed.q;
+            Pair best = new SearchTask (0, count, seed).invoke ();
+            merge (slot[best.x], slot[best.y]);
+        }
+        // Join the remaining nodes at the root.
+        root = next;
+        if (count == 3) {
+            int x = active[0];
+            int y = active[1];
+            int z = active[2];
+            double xy = get (x, y);
+            double xz = get (x, z);
+            double yz = get (y, z);
+            children[root] = new int[] { node[x], node[y], node[z] };
+            lengths[root] = new double[] {
+                Math.max ((xy + xz - yz) / 2, 0.0d),
+                Math.max ((xy + yz - xz) / 2, 0.0d),
+                Math.max ((xz + yz - xy) / 2, 0.0d)
+            };
+        }
+        else if (count == 2) {
+            double xy = get (active[0], active[1]);
+            children[root] = new int[] { node[active[0]], node[active[1]] };
+            lengths[root] = new double[] { xy / 2, xy / 2 };
+        }
+        else {
+            root = count == 1 ? node[active[0]] : -1;
+        }
+    }
+
+    /**
+     *  Private method to find a pair of nodes to start the search with,
+     *  the best of the first live pair in each row.
+     *
+     *  @return The starting pair, or null if there is none.
+     */
+    private Pair seed () {
+        Pair best = null;
+        int r = count;
+        for (int c = 0; c < r; c ++) {
+            int x = node[active[c]];
+            int[] ids = rowNodes[x];
+            // Skip the nodes at the start of the row that have been joined.
+            while (rowFirst[x] < ids.length && ! alive[ids[rowFirst[x]]]) {
+                rowFirst[x] ++;
+            }
+            if (rowFirst[x] == ids.length) continue;
+            int y = ids[rowFirst[x]];
+            double q = (r - 2) * (double)rowDistances[x][rowFirst[x]] -
+                sums[slot[x]] - sums[slot[y]];
+            Pair pair = new Pair (q, x, y);
+            if (pair.before (best)) best = pair;
+        }
+        return best;
+    }
+
+    /**
+     *  Private method to join the nodes in two slots into a new node,
+     *  which takes the first slot.
+     *
+     *  @param i The slot of the first node.
+     *  @param j The slot of the second node.
+     */
+    private void merge (int i, int j) {
+        double dij = get (i, j);
+        // The branch lengths of the joined nodes.
+        double li = dij / 2 + (sums[i] - sums[j]) / (2.0d * (count - 2));
+        li = Math.min (Math.max (li, 0.0d), dij);
+        double lj = dij - li;
+        children[next] = new int[] { node[i], node[j] };
+        lengths[next] = new double[] { li, lj };
+        // Retire the joined nodes.
+        alive[node[i]] = false;
+        alive[node[j]] = false;
+        rowDistances[node[i]] = null;
+        rowDistances[node[j]] = null;
+        rowNodes[node[i]] = null;
+        rowNodes[node[j]] = null;
+        rowValue[node[i]] = null;
+        rowValue[node[j]] = null;
+        node[i] = next;
+        slot[next] = i;
+        alive[next] = true;
+        next ++;
+        // Remove the second node from the active list.
+        int b = Arrays.binarySearch (active, 0, count, j);
+        System.arraycopy (active, b + 1, active, b, count - b - 1);
+        count --;
+        // Update the distances to the new node, in the slot of the first.
+        double sum = 0.0d;
+        double increase = 0.0d;
+        for (int c = 0; c < count; c ++) {
+            int k = active[c];
+            if (k == i) continue;
+            double dik = get (i, k);
+            double djk = get (j, k);
+            float d = (float)((dik + djk - dij) / 2);
+            set (i, k, d);
+            sums[k] += d - dik - djk;
+            increase = Math.max (increase, d - dik - djk);
+            sum += d;
+        }
+        sums[i] = sum;
+        // The sums only grow if the distances break the triangle
+        // inequality, which is tracked to keep the row bounds valid.
+        growth += increase;
+        sortRow (node[i]);
+    }
+
+    /**
+     *  Private method to create the sorted row of a node, holding the
+     *  first active nodes by slot other than itself.
+     *
+     *  @param x The node.
+     *  @param number The number of active nodes to consider.
+     */
+    private void sortRow (int x) {
+        int i = slot[x];
+        long[] keys = new long[count];
+        int length = 0;
+        for (int c = 0; c < count; c ++) {
+            int k = active[c];
+            if (node[k] >= x) continue;
+            // Order the distances by their bits, made to sort as integers.
+            int bits = Float.floatToIntBits (get (i, k));
+            bits ^= (bits >> 31) & 0x7fffffff;
+            keys[length ++] = (long)bits << 32 | node[k];
+        }
+        Arrays.sort (keys, 0, length);
+        float[] distances = new float[length];
+        int[] ids = new int[length];
+        for (int c = 0; c < length; c ++) {
+            ids[c] = (int)keys[c];
+            distances[c] = get (i, slot[ids[c]]);
+        }
+        boundRow (x, distances, ids);
+    }
+
+    /**
+     *  Private method to drop the nodes that have been joined from the
+     *  row of a node, and to bound the row again with the current sums.
+     *  The distances between the remaining nodes have not changed, so the
+     *  row is still sorted.
+     *
+     *  @param x The node.
+     */
+    private void compactRow (int x) {
+        float[] distances = rowDistances[x];
+        int[] ids = rowNodes[x];
+        int length = 0;
+        for (int k = rowFirst[x]; k < ids.length; k ++) {
+            if (alive[ids[k]]) length ++;
+        }
+        float[] liveDistances = new float[length];
+        int[] liveIds = new int[length];
+        length = 0;
+        for (int k = rowFirst[x]; k < ids.length; k ++) {
+            if (! alive[ids[k]]) continue;
+            liveDistances[length] = distances[k];
+            liveIds[length ++] = ids[k];
+        }
+        boundRow (x, liveDistances, liveIds);
+    }
+
+    /**
+     *  Private method to store the sorted row of a node, with the bound
+     *  used to stop the search of the row.  For each point in the row, the
+     *  largest sum less the scaled distance of the remaining nodes is
+     *  stored, rounded up.  The sums do not grow as nodes are joined, other
+     *  than by the growth recorded since, so the bound only loosens by
+     *  the growth and by the smaller scale of the distances.
+     *
+     *  @param x The node.
+     *  @param distances The sorted distances to the nodes in the row.
+     *  @param ids The nodes in the row.
+     */
+    private void boundRow (int x, float[] distances, int[] ids) {
+        int length = ids.length;
+        float[] value = new float[length];
+        double v = -Double.MAX_VALUE;
+        for (int c = length - 1; c >= 0; c --) {
+            double sy = sums[slot[ids[c]]];
+            v = Math.max (v, sy - (count - 2) * (double)distances[c]);
+            value[c] = Math.nextUp ((float)v);
+        }
+        rowDistances[x] = distances;
+        rowNodes[x] = ids;
+        rowValue[x] = value;
+        rowCount[x] = count;
+        rowGrowth[x] = growth;
+        rowFirst[x] = 0;
+    }
+
+    /**
+     *  Private method to build a CompactTree from the joined nodes, in
+     *  pre-order.
+     *
+     *  @return The tree.
+     */
+    private CompactTree buildTree () {
+        CompactTree compact = new CompactTree (Math.max (next, 1));
+        if (root < 0) return compact;
+        ArrayList<int[]> stack = new ArrayList<int[]> ();
+        ArrayList<Double> stackLength = new ArrayList<Double> ();
+        stack.add (new int[] { root, -1 });
+        stackLength.add (0.0d);
+        while (! stack.isEmpty ()) {
+            int[] entry = stack.remove (stack.size () - 1);
+            double length = stackLength.remove (stackLength.size () - 1);
+            int id = entry[0];
+            String name = null;
+            if (id < size) name = sequences.get (id).getIdentifier ();
+            int index = compact.addNode (entry[1], name, length);
+            if (id < size) continue;
+            // Push the children in reverse to add them in order.
+            for (int c = children[id].length - 1; c >= 0; c --) {
+                stack.add (new int[] { children[id][c], index });
+                stackLength.add (lengths[id][c]);
+            }
+        }
+        return compact;
+    }
+
+    /**
+     *  Private method to correct a proportion of differing sites for
+     *  multiple substitutions with the Jukes-Cantor model.
+     *
+     *  @param p The proportion of differing sites.
+     *  @return The corrected distance.
+     */
+    private static double jukesCantor (double p) {
+        double x = 1.0d - 4.0d * p / 3.0d;
+        if (x <= Math.exp (- 4.0d * MAXIMUM_DISTANCE / 3.0d)) {
+            return MAXIMUM_DISTANCE;
+        }
+        return -0.75d * Math.log (x);
+    }
+
+    /**
+     *  Private method to return the distance between the nodes in two
+     *  slots.
+     *
+     *  @param i The first slot.
+     *  @param j The second slot.
+     *  @return The distance.
+     */
+    private float get (int i, int j) {
+        return i < j ? distance[rowStart[i] + j] : distance[rowStart[j] + i];
+    }
+
+    /**
+     *  Private method to change the distance between the nodes in two
+     *  slots.
+     *
+     *  @param i The first slot.
+     *  @param j The second slot.
+     *  @param d The distance.
+     */
+    private void set (int i, int j, float d) {
+        if (i < j) distance[rowStart[i] + j] = d;
+        else distance[rowStart[j] + i] = d;
+    }
+
+    /**
+     *  Private method to share the value of the best pair found by a
+     *  search task with the other tasks, to stop their searches sooner.
+     *
+     *  @param q The value of the pair.
+     */
+    private synchronized void share (double q) {
+        if (q < bestQ) bestQ = q;
+    }
+
+    /**
+     *  Private method to return the index of a pair of slots in the
+     *  condensed distance matrix.
+     *
+     *  @param i The first slot.
+     *  @param j The second slot, greater than the first.
+     *  @return The index of the pair.
+     */
+    private int index (int i, int j) {
+        return (int)((long)i * (2 * size - i - 1) / 2) + j - i - 1;
+    }
+
+    /**
+     *  A fork/join task to create or compact the rows of a range of active
+     *  nodes, splitting the range in half until it is small.
+     */
+    private class RowTask extends RecursiveAction {
+
+        public RowTask (int from, int to, boolean create) {
+            this.from = from;
+            this.to = to;
+            this.create = create;
+        }
+
+        protected void compute () {
+            if (to - from > ROWS) {
+                int middle = (from + to) >>> 1;
+                invokeAll (
+                    new RowTask (from, middle, create),
+                    new RowTask (middle, to, create)
+                );
+                return;
+            }
+            for (int c = from; c < to; c ++) {
+                int x = node[active[c]];
+                if (create) sortRow (x);
+                else if (count < rowCount[x] * COMPACT) compactRow (x);
+            }
+        }
+
+        private int from;
+        private int to;
+        private boolean create;
+
+    }
+
+    /**
+     *  The best pair of nodes found by a search.
+     */
+    private static class Pair {
+
+        public Pair (double q, int x, int y) {
+            this.q = q;
+            this.x = x;
+            this.y = y;
+        }
+
+        /**
+         *  Check if this pair should be joined before another.  Ties are
+         *  broken by node, so that the search is deterministic.
+         *
+         *  @param other The other pair.
+         *  @return True if this pair comes first.
+         */
+        public boolean before (Pair other) {
+            if (other == null) return true;
+            if (q != other.q) return q < other.q;
+            if (x != other.x) return x < other.x;
+            return y < other.y;
+        }
+
+        private double q;
+        private int x;
+        private int y;
+
+    }
+
+    /**
+     *  A fork/join task to search the rows of a range of active nodes for
+     *  the pair of nodes to join, splitting the range in half until it is
+     *  small.  Each row is searched in order of distance, until the bound
+     *  on the remaining values in the row can not beat the best pair.
+     */
+    private class SearchTask extends RecursiveTask<Pair> {
+
+        public SearchTask (int from, int to, Pair seed) {
+            this.from = from;
+            this.to = to;
+            this.seed = seed;
+        }
+
+        protected Pair compute () {
+            if (to - from > ROWS) {
+                int middle = (from + to) >>> 1;
+                SearchTask left = new SearchTask (from, middle, seed);
+                SearchTask right = new SearchTask (middle, to, seed);
+                right.fork ();
+                Pair a = left.compute ();
+                Pair b = right.join ();
+                if (b.before (a)) return b;
+                return a;
+            }
+            int r = count;
+            Pair best = seed;
+            for (int c = from; c < to; c ++) {
+                int x = node[active[c]];
+                float[] distances = rowDistances[x];
+                int[] ids = rowNodes[x];
+                float[] value = rowValue[x];
+                if (ids.length == 0) continue;
+                // The bound of the row loosens by the growth of the sums,
+                // and by the smaller scale of the distances since the row
+                // was bound.
+                double sum = sums[active[c]];
+                double loose = growth - rowGrowth[x] + (rowCount[x] - r) *
+                    Math.max ((double)distances[ids.length - 1], 0.0d);
+                double limit = Math.min (best.q, bestQ);
+                for (int k = rowFirst[x]; k < ids.length; k ++) {
+                    // Stop once no node left in the row can beat the best.
+                    if (- sum - value[k] - loose > limit) break;
+                    int y = ids[k];
+                    if (! alive[y]) continue;
+                    double d = (r - 2) * (double)distances[k];
+                    double q = d - sum - sums[slot[y]];
+                    if (q <= best.q) {
+                        Pair pair = new Pair (q, x, y);
+                        if (pair.before (best)) best = pair;
+                        limit = Math.min (best.q, bestQ);
+                    }
+                }
+            }
+            if (best.q < bestQ) share (best.q);
+            return best;
+        }
+
+        private int from;
+        private int to;
+        private Pair seed;
+
+    }
+
+    /**
+     *  The number of rows searched by a single task.
+     */
+    private static final int ROWS = 64;
+    /**
+     *  The fraction of the active nodes at which a row was bound, below
+     *  which the row is compacted and bound again.
+     */
+    private static final double COMPACT = 0.95d;
+
+    /**
+     *  The largest distance between two sequences, used when the
+     *  Jukes-Cantor correction is undefined.
+     */
+    private static final double MAXIMUM_DISTANCE = 3.0d;
+
+    private ArrayList<Sequence> sequences;
+    private int constantSites;
+    private Tree tree;
+    private int size;
+    private float[] distance;
+    private int[] active;
+    private int[] node;
+    private int[] rowStart;
+    private double[] sums;
+    private int[] slot;
+    private boolean[] alive;
+    private float[][] rowDistances;
+    private int[][] rowNodes;
+    private double[] rowGrowth;
+    private float[][] rowValue;
+    private int[] rowCount;
+    private int[] rowFirst;
+    private double growth;
+    private volatile double bestQ;
+    private int count;
+    private int next;
+    private int root;
+    private int[][] children;
+    private double[][] lengths;
+
+}
@@ -0,0 +1,192 @@
+/*
+ *    Ecotype Simulation models the sequence diversity within a bacterial
+ *    clade as the evolutionary result of net ecotype formation and periodic
+ *    selection, yielding a certain number of ecotypes.
+ *
+ *    Copyright (C) 2019  Jason M. Wood, Montana State University
+ *
+ *    This program is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation, either version 2 of the License, or
+ *    (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+
+package ecosim;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ *  A nucleotide sequence packed into 2 bits per base, 32 bases to a long.
+ *  The nucleotides A, C, G and T are packed as 0, 1, 2 and 3.  Any other
+ *  residue, such as a gap, an N or another IUPAC code, is kept in a sparse
+ *  list of exceptions sorted by position, and is packed as 0.  Nucleotides
+ *  in the less common case of the sequence are also kept as exceptions, so
+ *  that the sequence is returned exactly as it was given.
+ *
+ *  @author Jason M. Wood
+ *  @copyright GNU General Public License
+ */
+public class PackedSequence {
+
+    /**
+     *  Constructor for a PackedSequence object.
+     *
+     *  @param sequence The sequence to pack.
+     */
+    public PackedSequence (String sequence) {
+        this (sequence.getBytes (StandardCharsets.ISO_8859_1), 0,
+            sequence.length ());
+    }
+
+    /**
+     *  Constructor for a PackedSequence object.
+     *
+     *  @param residues The array holding the sequence to pack.
+     *  @param offset The offset of the sequence in the array.
+     *  @param length The length of the sequence.
+     */
+    public PackedSequence (byte[] residues, int offset, int length) {
+        this.length = length;
+        // Pack the nucleotides of the more common case.
+        int upper = 0;
+        int lower = 0;
+        for (int i = offset; i < offset + length; i ++) {
+            byte code = CODES[residues[i] & 0xff];
+            if (code >= 4) lower ++;
+            else if (code >= 0) upper ++;
+        }
+        lowerCase = lower > upper;
+        int shift = lowerCase ? 4 : 0;
+        words = new long[(length + 31) >>> 5];
+        int[] positions = new int[16];
+        byte[] others = new byte[16];
+        int exceptions = 0;
+        for (int i = 0; i < length; i ++) {
+            byte residue = residues[offset + i];
+            int code = CODES[residue & 0xff] - shift;
+            if (code >= 0 && code < 4) {
+                words[i >>> 5] |= (long)code << ((i & 31) << 1);
+                continue;
+            }
+            if (exceptions == positions.length) {
+                positions = Arrays.copyOf (positions, 2 * exceptions);
+                others = Arrays.copyOf (others, 2 * exceptions);
+            }
+            positions[exceptions] = i;
+            others[exceptions] = residue;
+            exceptions ++;
+        }
+        exceptionPositions = Arrays.copyOf (positions, exceptions);
+        exceptionResidues = Arrays.copyOf (others, exceptions);
+    }
+
+    /**
+     *  Return the length of the sequence.
+     *
+     *  @return The length of the sequence.
+     */
+    public int length () {
+        return length;
+    }
+
+    /**
+     *  Return the residue at the given position.
+     *
+     *  @param position The position of the residue.
+     *  @return The residue.
+     */
+    public char charAt (int position) {
+        if (position < 0 || position >= length) {
+            throw new IndexOutOfBoundsException (
+                "Position out of range: " + position
+            );
+        }
+        int i = Arrays.binarySearch (exceptionPositions, position);
+        if (i >= 0) return (char)(exceptionResidues[i] & 0xff);
+        return nucleotide (position);
+    }
+
+    /**
+     *  Return the packed nucleotides, 32 to a long with the first in the
+     *  lowest bits.  The positions of exceptions are packed as 0.
+     *
+     *  @return The packed nucleotides.
+     */
+    public long[] getWords () {
+        return words;
+    }
+
+    /**
+     *  Return the positions of the residues that are not packed, in order.
+     *
+     *  @return The positions of the exceptions.
+     */
+    public int[] getExceptions () {
+        return exceptionPositions;
+    }
+
+    /**
+     *  Return the sequence as a String.
+     *
+     *  @return The sequence.
+     */
+    public String toString () {
+        char[] residues = new char[length];
+        for (int i = 0; i < length; i ++) {
+            residues[i] = nucleotide (i);
+        }
+        for (int i = 0; i < exceptionPositions.length; i ++) {
+            residues[exceptionPositions[i]] =
+                (char)(exceptionResidues[i] & 0xff);
+        }
+        return new String (residues);
+    }
+
+    /**
+     *  Private method to unpack the nucleotide at the given position.
+     *
+     *  @param position The position of the nucleotide.
+     *  @return The nucleotide.
+     */
+    private char nucleotide (int position) {
+        int code = (int)(words[position >>> 5] >>> ((position & 31) << 1)) & 3;
+        return (lowerCase ? LOWER : UPPER).charAt (code);
+    }
+
+    /**
+     *  The nucleotides in the order of their packed codes.
+     */
+    private static final String UPPER = "ACGT";
+    private static final String LOWER = "acgt";
+
+    /**
+     *  The packed code of each residue, 0 to 3 for upper case nucleotides,
+     *  4 to 7 for lower case nucleotides, and -1 for anything else.
+     */
+    private static final byte[] CODES = new byte[256];
+    static {
+        Arrays.fill (CODES, (byte)-1);
+        for (int i = 0; i < 4; i ++) {
+            CODES[UPPER.charAt (i)] = (byte)i;
+            CODES[LOWER.charAt (i)] = (byte)(i + 4);
+        }
+    }
+
+    private int length;
+    private boolean lowerCase;
+    private long[] words;
+    private int[] exceptionPositions;
+    private byte[] exceptionResidues;
+
+}
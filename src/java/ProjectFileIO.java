@@ -136,9 +136,9 @@ public class ProjectFileIO {
                 out.write (String.format (
                     "    <outgroup value=\"%s\"/>\n", outgroup
                 ));
-                out.write (String.format (
-                    "    <tree value=\"%s\"/>\n", tree.toString ()
-                ));
+                out.write ("    <tree value=\"");
+                tree.toNewick (out);
+                out.write ("\"/>\n");
                 out.write (
                     "  </phylogeny>\n"
                 );
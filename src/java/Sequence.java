@@ -56,6 +56,21 @@ public class Sequence {
         this.sequence = sequence;
     }
 
+    /**
+     *  Constructor for a Sequence object holding a packed sequence, which
+     *  is only unpacked to a String when asked for.
+     *
+     *  @param identifier The identifier of this Sequence.
+     *  @param description The description of this Sequence.
+     *  @param packed The packed sequence of this Sequence.
+     */
+    public Sequence (String identifier, String description,
+        PackedSequence packed) {
+        this.identifier = identifier;
+        this.description = description;
+        this.packed = packed;
+    }
+
     /**
      *  Set the identifier of this Sequence object.
      *
@@ -81,6 +96,7 @@ public class Sequence {
      */
     public void setSequence (String sequence) {
         this.sequence = sequence;
+        packed = null;
     }
 
     /**
@@ -107,15 +123,40 @@ public class Sequence {
      *  @return The sequence of this Sequence.
      */
     public String getSequence () {
+        if (sequence == null) return packed.toString ();
         return sequence;
     }
 
+    /**
+     *  Return the sequence of this Sequence object packed into 2 bits per
+     *  nucleotide, packing it if needed.
+     *
+     *  @return The packed sequence of this Sequence.
+     */
+    public PackedSequence getPackedSequence () {
+        if (packed == null) {
+            packed = new PackedSequence (sequence);
+            sequence = null;
+        }
+        return packed;
+    }
+
+    /**
+     *  Check if the sequence of this Sequence object is packed.
+     *
+     *  @return True if the sequence is packed.
+     */
+    public boolean isPacked () {
+        return packed != null;
+    }
+
     /**
      *  Return the length of the sequence of this Sequence object.
      *
      *  @return The length of the sequence of this Sequence.
      */
     public int length () {
+        if (sequence == null) return packed.length ();
         return sequence.length ();
     }
 
@@ -129,12 +170,13 @@ public class Sequence {
         if (description.length () > 0) {
             fasta += " " + description;
         }
-        fasta += "\n" + sequence;
+        fasta += "\n" + getSequence ();
         return fasta;
     }
 
     private String identifier;
     private String description;
     private String sequence;
+    private PackedSequence packed;
 
 }
@@ -27,11 +27,8 @@ import ecosim.tree.SVGPainter;
 import ecosim.tree.Tree;
 
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
-import java.util.ArrayList;
 import java.io.IOException;
-import java.util.zip.GZIPInputStream;
+import java.util.ArrayList;
 
 /**
  *  The shared methods of the simulation used by SimulationCLI and
@@ -146,6 +143,7 @@ public class Simulation {
         // Grab the loaded variables.
         nu = projectFileIO.getNu ();
         length = projectFileIO.getLength ();
+        sitePatterns = null;
         outgroup = projectFileIO.getOutgroup ();
         tree = projectFileIO.getTree ();
         binning = projectFileIO.getBinning ();
@@ -243,47 +241,32 @@ public class Simulation {
             return;
         }
         log.appendln ("Opening sequence file...");
-        // Check the file extension for compressed files.
-        String name = file.getName ();
-        int lastIndexOf = name.lastIndexOf (".");
-        if (lastIndexOf > -1) {
-            String newFile = mainVariables.getWorkingDirectory () + "sequences.fa";
-            switch (name.substring (lastIndexOf + 1)) {
-                case "gz":
-                case "gzip":
-                    log.appendln ("Sequence file compressed with gzip, uncompressing...");
-                    try {
-                        GZIPInputStream gis = new GZIPInputStream (new FileInputStream (file));
-                        FileOutputStream fos = new FileOutputStream (newFile);
-                        byte[] buffer = new byte[1024];
-                        int len;
-                        while ((len = gis.read (buffer)) != -1) {
-                            fos.write (buffer, 0, len);
-                        }
-                        fos.close ();
-                        gis.close ();
-                    } catch (IOException e) {
-                        System.out.println ("Error unziping the sequence file.");
-                        e.printStackTrace ();
-                    }
-                    mainVariables.setSequenceFile (new File (newFile));
-                    break;
-                default:
-                    break;
-            }
-        }
+        // Compressed files are decompressed as they are read.
+        sitePatterns = null;
         try {
             fasta = new Fasta (mainVariables.getSequenceFile ());
             Sequence outgroupSequence = fasta.getOutgroup ();
+            fasta.close ();
             length = outgroupSequence.length ();
             outgroup = outgroupSequence.getIdentifier ();
-            // Update the summary data.
-            summary.setLength (length);
-            summary.setOutgroup (outgroup);
             // Output the sequence data.
             log.appendln (String.format (
                 "  sequence length: %,d.", length
             ));
+            // Use the length of the alignment after deleting the columns
+            // with gaps if requested, unless every column has a gap.
+            if (mainVariables.getDeleteGaps ()) {
+                SitePatterns patterns = getSitePatterns ();
+                if (patterns != null && patterns.getGapStrippedLength () > 0) {
+                    length = patterns.getGapStrippedLength ();
+                    log.appendln (String.format (
+                        "  sequence length after deleting gaps: %,d.", length
+                    ));
+                }
+            }
+            // Update the summary data.
+            summary.setLength (length);
+            summary.setOutgroup (outgroup);
             log.appendln (String.format (
                 "  %s is the outgroup.", outgroup
             ));
@@ -293,6 +276,47 @@ public class Simulation {
         }
     }
 
+    /**
+     *  Private method to read the sequences reduced to their variable
+     *  sites, the first time that they are needed.  Only neighbor joining,
+     *  distance binning and deleting the gaps from the sequence length need
+     *  them.
+     *
+     *  @return The SitePatterns, or null if the sequences could not be read.
+     */
+    private SitePatterns getSitePatterns () {
+        if (sitePatterns != null) return sitePatterns;
+        File file = mainVariables.getSequenceFile ();
+        if (file == null || ! file.exists ()) {
+            log.appendln ("Error, sequence file not found!");
+            return null;
+        }
+        try {
+            Fasta reader = new Fasta (file);
+            SitePatterns patterns = new SitePatterns ();
+            try {
+                Sequence sequence = reader.getOutgroup ();
+                while (sequence != null) {
+                    patterns.add (sequence);
+                    sequence = reader.nextSequence ();
+                }
+            }
+            finally {
+                reader.close ();
+            }
+            sitePatterns = patterns;
+            log.appendln (String.format (
+                "  %,d sites after deleting gaps, %,d variable sites.",
+                sitePatterns.getGapStrippedLength (),
+                sitePatterns.getVariableSites ().length
+            ));
+        }
+        catch (InvalidFastaException e) {
+            System.out.println ("Error loading sequence file.");
+        }
+        return sitePatterns;
+    }
+
     /**
      *  Load the newick formated tree file.
      */
@@ -305,49 +329,175 @@ public class Simulation {
         }
         log.appendln ("Opening tree file...");
         try {
-            tree = new Tree (file);
-            tree.makeBinary ();
-            tree.reroot (tree.getDescendant (outgroup));
-            // Output the tree in Newick and SVG formats if debug is enabled.
-            if (mainVariables.getDebug ()) {
-                String dir = mainVariables.getWorkingDirectory ();
-                tree.toNewick (new File (dir + "outtree.nwk"));
-                File svg = new File (dir + "outtree.svg");
-                tree.paintTree (new SVGPainter (svg));
+            loadTree (new Tree (file));
+        }
+        catch (InvalidTreeException e) {
+            System.out.println ("Error loading tree file.");
+            e.printStackTrace ();
+        }
+    }
+
+    /**
+     *  Generate a tree from the sequence file using FastTree, or using
+     *  neighbor joining if selected, and load it.  If dereplication is
+     *  selected, the tree is generated from the unique sequences, and the
+     *  copies of each are added back to the tree as zero length siblings.
+     */
+    public void generateAndLoadTree () {
+        boolean neighborJoining = mainVariables.getNeighborJoining ();
+        boolean dereplicate = mainVariables.getDereplicate ();
+        if (! neighborJoining && ! dereplicate) {
+            mainVariables.setPhylogenyFile (generateTree ());
+            loadTreeFile ();
+            return;
+        }
+        ArrayList<Sequence> sequences = new ArrayList<Sequence> ();
+        Dereplication dereplication = new Dereplication ();
+        int constantSites = 0;
+        if (neighborJoining) {
+            // Neighbor joining only needs the variable sites, as sequences
+            // that are identical there are identical everywhere.
+            SitePatterns patterns = getSitePatterns ();
+            if (patterns == null) return;
+            sequences = patterns.getSequences ();
+            constantSites = patterns.getConstantSites ();
+            if (dereplicate) {
+                for (Sequence sequence: sequences) {
+                    dereplication.add (sequence);
+                }
             }
-            // Get the number of sequences loaded.
-            nu = tree.size ();
-            // Update the summary data.
-            summary.setTree (tree);
-            summary.setNu (nu);
-            // Output the number of sequences loaded.
+        }
+        else {
+            // FastTree needs the full sequences.
+            try {
+                Fasta reader = new Fasta (mainVariables.getSequenceFile ());
+                try {
+                    Sequence sequence = reader.getOutgroup ();
+                    while (sequence != null) {
+                        dereplication.add (sequence);
+                        sequence = reader.nextSequence ();
+                    }
+                }
+                finally {
+                    reader.close ();
+                }
+            }
+            catch (InvalidFastaException e) {
+                System.out.println ("Error loading sequence file.");
+                return;
+            }
+        }
+        if (dereplicate) {
+            sequences = dereplication.getRepresentatives ();
             log.appendln (String.format (
-                "  %,d environmental sequences.", nu
+                "  %,d unique sequences out of %,d.",
+                dereplication.numberOfRepresentatives (),
+                dereplication.numberOfSequences ()
             ));
-            // Output the diversity sampled by the sequences.
+        }
+        Tree newTree;
+        if (neighborJoining) {
+            log.appendln ("Generating a tree using neighbor joining...");
+            long start = System.nanoTime ();
+            NeighborJoining nj = new NeighborJoining (sequences, constantSites);
+            try {
+                nj.run ();
+            }
+            catch (IllegalArgumentException e) {
+                // The distance matrix is limited to about 65,000 sequences.
+                log.appendln (String.format (
+                    "Error, too many sequences for neighbor joining: %,d.",
+                    sequences.size ()
+                ));
+                return;
+            }
             log.appendln (String.format (
-                "  %.2f diversity sampled.", tree.getDiversity ()
+                "  tree generated in %.2f seconds.",
+                (System.nanoTime () - start) / 1.0e9
             ));
+            newTree = nj.getTree ();
         }
-        catch (InvalidTreeException e) {
-            System.out.println ("Error loading tree file.");
-            e.printStackTrace ();
+        else {
+            File uniqueFile = new File (
+                mainVariables.getWorkingDirectory () + "unique.fa"
+            );
+            if (! dereplication.write (uniqueFile)) return;
+            try {
+                newTree = new Tree (generateTree (uniqueFile));
+            }
+            catch (InvalidTreeException e) {
+                System.out.println ("Error loading tree file.");
+                e.printStackTrace ();
+                return;
+            }
+        }
+        if (dereplicate) {
+            newTree.addCopies (dereplication.getCopies ());
         }
+        loadTree (newTree);
     }
 
     /**
-     *  Generate a tree using FastTree and the given sequence file.
+     *  Private method to prepare a tree for the simulation and update the
+     *  summary data.
      *
-     *  @param file The fasta formated sequence file.
+     *  @param newTree The tree to load.
+     */
+    private void loadTree (Tree newTree) {
+        tree = newTree;
+        tree.makeBinary ();
+        tree.reroot (tree.getDescendant (outgroup));
+        // Output the tree in Newick and SVG formats if debug is enabled.
+        if (mainVariables.getDebug ()) {
+            String dir = mainVariables.getWorkingDirectory ();
+            tree.toNewick (new File (dir + "outtree.nwk"));
+            File svg = new File (dir + "outtree.svg");
+            tree.paintTree (new SVGPainter (svg));
+        }
+        // Get the number of sequences loaded.
+        nu = tree.size ();
+        // Update the summary data.
+        summary.setTree (tree);
+        summary.setNu (nu);
+        // Output the number of sequences loaded.
+        log.appendln (String.format (
+            "  %,d environmental sequences.", nu
+        ));
+        // Output the diversity sampled by the sequences.
+        log.appendln (String.format (
+            "  %.2f diversity sampled.", tree.getDiversity ()
+        ));
+    }
+
+    /**
+     *  Generate a tree using FastTree and the sequence file.
+     *
+     *  @return The Newick formated tree file.
      */
     public File generateTree () {
+        return generateTree (mainVariables.getSequenceFile ());
+    }
+
+    /**
+     *  Private method to generate a tree using FastTree and the given
+     *  sequence file.
+     *
+     *  @param file The fasta formated sequence file.
+     *  @return The Newick formated tree file.
+     */
+    private File generateTree (File file) {
         log.appendln ("Generating a tree using FastTree...");
         // Store the tree in file called 'fasttree'.
         File newickFile = new File (
             mainVariables.getWorkingDirectory () + "fasttree.nwk"
         );
         // Generate a tree using FastTree.
-        execs.runFastTree (mainVariables.getSequenceFile (), newickFile);
+        long start = System.nanoTime ();
+        execs.runFastTree (file, newickFile);
+        log.appendln (String.format (
+            "  tree generated in %.2f seconds.",
+            (System.nanoTime () - start) / 1.0e9
+        ));
         return newickFile;
     }
 
@@ -386,6 +536,9 @@ public class Simulation {
         running = true;
         log.appendln ("Running binning...");
         binning = new Binning (tree);
+        binning.setCritLevels (
+            Binning.critLevels (mainVariables.getNumberCritLevels ())
+        );
         binning.run ();
         ArrayList<BinLevel> bins = binning.getBins ();
         // Update the summary data.
@@ -400,6 +553,51 @@ public class Simulation {
         running = false;
     }
 
+    /**
+     *  Run the binning program directly on the pairwise distances of the
+     *  sequences, without a tree, for comparison with the tree binning.
+     *  The outgroup, the first sequence in the file, is left out.
+     */
+    public void runDistanceBinning () {
+        running = true;
+        log.appendln ("Running distance binning...");
+        try {
+            SitePatterns patterns = getSitePatterns ();
+            if (patterns == null) return;
+            // Bin the environmental sequences on their variable sites.
+            ArrayList<Sequence> sequences = patterns.getSequences ();
+            // Leave out the outgroup.
+            sequences.remove (0);
+            DistanceBinning distanceBinning = new DistanceBinning (
+                sequences, patterns.getConstantSites ()
+            );
+            distanceBinning.setCritLevels (
+                Binning.critLevels (mainVariables.getNumberCritLevels ())
+            );
+            try {
+                distanceBinning.run ();
+            }
+            catch (IllegalArgumentException e) {
+                // The distance matrix is limited to about 65,000 sequences.
+                log.appendln (String.format (
+                    "Error, too many sequences for distance binning: %,d.",
+                    sequences.size ()
+                ));
+                return;
+            }
+            ArrayList<BinLevel> bins = distanceBinning.getBins ();
+            // Output the results from distance binning.
+            log.appendln ("The result from distance binning:");
+            for (int i = 0; i < bins.size (); i ++) {
+                log.appendln ("  " + bins.get (i).toString ());
+            }
+            log.appendln ();
+        }
+        finally {
+            running = false;
+        }
+    }
+
     /**
      *  Set the initial parameter values.
      *
@@ -631,11 +829,57 @@ public class Simulation {
         running = false;
     }
 
+    /**
+     *  Sum the abundance counts of the sequences in each ecotype, in each
+     *  sample, after demarcation.
+     */
+    public void runAbundance () {
+        File file = mainVariables.getAbundanceFile ();
+        if (file == null || demarcation == null || ! demarcation.hasRun ()) {
+            return;
+        }
+        if (! file.exists ()) {
+            log.appendln ("Error, abundance file not found!");
+            return;
+        }
+        running = true;
+        log.appendln ("Summing the abundance of each ecotype...");
+        try {
+            CountMatrix matrix = new CountMatrix (file);
+            ArrayList<ArrayList<String>> ecotypes = demarcation.getEcotypes ();
+            long[][] counts = matrix.getEcotypeCounts (ecotypes);
+            log.appendln (String.format (
+                "  %,d samples, %,d sequences.",
+                matrix.numberOfSamples (), matrix.numberOfSequences ()
+            ));
+            // Output the total of each ecotype, and the number of samples
+            // that it was found in.
+            log.appendln ("The result from ecotype abundance:");
+            for (int i = 0; i < counts.length; i ++) {
+                long total = 0;
+                int found = 0;
+                for (int j = 0; j < counts[i].length; j ++) {
+                    total += counts[i][j];
+                    if (counts[i][j] > 0) found ++;
+                }
+                log.appendln (String.format (
+                    "  Ecotype %4d: %,d in %,d samples", i + 1, total, found
+                ));
+            }
+            log.appendln ();
+        }
+        catch (IOException e) {
+            System.out.println ("Error loading the abundance file.");
+        }
+        running = false;
+    }
+
     protected Logger log;
     protected MainVariables mainVariables;
     protected Execs execs;
     protected Summary summary;
     protected Fasta fasta;
+    protected SitePatterns sitePatterns;
     protected Integer nu;
     protected Integer length;
     protected String outgroup;
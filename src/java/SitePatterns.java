@@ -0,0 +1,306 @@
+/*
+ *    Ecotype Simulation models the sequence diversity within a bacterial
+ *    clade as the evolutionary result of net ecotype formation and periodic
+ *    selection, yielding a certain number of ecotypes.
+ *
+ *    Copyright (C) 2019  Jason M. Wood, Montana State University
+ *
+ *    This program is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation, either version 2 of the License, or
+ *    (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+
+package ecosim;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+
+/**
+ *  Compresses an alignment to the columns that vary between the sequences.
+ *
+ *  The sequences are added one at a time as they are read, and only the
+ *  residues that differ from the first sequence are kept, ignoring case.
+ *  Once all of the sequences are added, the variable columns are stored as
+ *  packed site patterns, the residues of each sequence in the column, with
+ *  the number of columns that share each pattern as its weight.  The gap
+ *  stripped length of the alignment, the number of columns without a gap
+ *  in any of the sequences, is counted in the same pass.
+ *
+ *  Sequences shorter than the alignment are treated as ending in gaps.
+ *
+ *  @author Jason M. Wood
+ *  @copyright GNU General Public License
+ */
+public class SitePatterns {
+
+    /**
+     *  Add a sequence to the alignment.
+     *
+     *  @param sequence The sequence to add.
+     */
+    public void add (Sequence sequence) {
+        String residues = sequence.getSequence ();
+        if (reference == null) {
+            reference = residues.toUpperCase ();
+            minimumLength = residues.length ();
+        }
+        int end = Math.max (residues.length (), reference.length ());
+        int[] positions = new int[16];
+        StringBuilder others = new StringBuilder ();
+        for (int k = 0; k < end; k ++) {
+            char residue = k < residues.length () ?
+                Character.toUpperCase (residues.charAt (k)) : '-';
+            if (residue == '-' || residue == '.') gaps.set (k);
+            if (residue == residueAt (k)) continue;
+            if (others.length () == positions.length) {
+                positions = Arrays.copyOf (positions, 2 * positions.length);
+            }
+            positions[others.length ()] = k;
+            others.append (residue);
+        }
+        identifiers.add (sequence.getIdentifier ());
+        descriptions.add (sequence.getDescription ());
+        differences.add (Arrays.copyOf (positions, others.length ()));
+        differentResidues.add (others.toString ());
+        length = Math.max (length, end);
+        minimumLength = Math.min (minimumLength, residues.length ());
+        patterns = null;
+    }
+
+    /**
+     *  Returns the number of sequences.
+     *
+     *  @return The number of sequences.
+     */
+    public int size () {
+        return identifiers.size ();
+    }
+
+    /**
+     *  Returns the number of columns in the alignment.
+     *
+     *  @return The length of the alignment.
+     */
+    public int length () {
+        return length;
+    }
+
+    /**
+     *  Returns the number of columns without a gap in any of the sequences.
+     *
+     *  @return The gap stripped length of the alignment.
+     */
+    public int getGapStrippedLength () {
+        compress ();
+        return gapStrippedLength;
+    }
+
+    /**
+     *  Returns the number of columns that are the same nucleotide, A, C, G
+     *  or T, in all of the sequences.
+     *
+     *  @return The number of constant sites.
+     */
+    public int getConstantSites () {
+        compress ();
+        return constantSites;
+    }
+
+    /**
+     *  Returns the positions of the variable columns in the alignment.
+     *
+     *  @return The variable sites.
+     */
+    public int[] getVariableSites () {
+        compress ();
+        return variableSites;
+    }
+
+    /**
+     *  Returns the number of distinct site patterns.
+     *
+     *  @return The number of site patterns.
+     */
+    public int numberOfPatterns () {
+        compress ();
+        return patterns.size ();
+    }
+
+    /**
+     *  Returns a site pattern, the residues of the sequences in the columns
+     *  that share the pattern.
+     *
+     *  @param i The index of the site pattern.
+     *  @return The site pattern.
+     */
+    public PackedSequence getPattern (int i) {
+        compress ();
+        return patterns.get (i);
+    }
+
+    /**
+     *  Returns the number of columns that share a site pattern.
+     *
+     *  @param i The index of the site pattern.
+     *  @return The weight of the site pattern.
+     */
+    public int getWeight (int i) {
+        compress ();
+        return weights.get (i);
+    }
+
+    /**
+     *  Returns the site pattern of each variable column.
+     *
+     *  @return The index of the site pattern of each variable site.
+     */
+    public int[] getSitePatterns () {
+        compress ();
+        return sitePatterns;
+    }
+
+    /**
+     *  Returns a sequence reduced to its residues in the variable columns,
+     *  in upper case.
+     *
+     *  @param i The index of the sequence.
+     *  @return The reduced sequence.
+     */
+    public Sequence getSequence (int i) {
+        compress ();
+        byte[] residues = new byte[sitePatterns.length];
+        for (int v = 0; v < residues.length; v ++) {
+            residues[v] = (byte)patterns.get (sitePatterns[v]).charAt (i);
+        }
+        return new Sequence (
+            identifiers.get (i),
+            descriptions.get (i),
+            new PackedSequence (residues, 0, residues.length)
+        );
+    }
+
+    /**
+     *  Returns all of the sequences reduced to their residues in the
+     *  variable columns, in the order that they were added.
+     *
+     *  @return The reduced sequences.
+     */
+    public ArrayList<Sequence> getSequences () {
+        ArrayList<Sequence> sequences = new ArrayList<Sequence> ();
+        for (int i = 0; i < size (); i ++) {
+            sequences.add (getSequence (i));
+        }
+        return sequences;
+    }
+
+    /**
+     *  Private method to build the site patterns of the variable columns,
+     *  once all of the sequences have been added.
+     */
+    private void compress () {
+        if (patterns != null) return;
+        int n = size ();
+        // Columns past the end of the shortest sequence have gaps.
+        if (minimumLength < length) gaps.set (minimumLength, length);
+        gapStrippedLength = length - gaps.cardinality ();
+        BitSet variable = new BitSet (length);
+        for (int[] positions: differences) {
+            for (int k = 0; k < positions.length; k ++) {
+                variable.set (positions[k]);
+            }
+        }
+        constantSites = 0;
+        for (int k = variable.nextClearBit (0); k < length;
+            k = variable.nextClearBit (k + 1)) {
+            if (NUCLEOTIDES.indexOf (residueAt (k)) >= 0) constantSites ++;
+        }
+        // The residues of each variable column, starting from the first
+        // sequence.
+        variableSites = new int[variable.cardinality ()];
+        int[] rank = new int[length];
+        byte[][] columns = new byte[variableSites.length][n];
+        int v = 0;
+        for (int k = variable.nextSetBit (0); k >= 0;
+            k = variable.nextSetBit (k + 1)) {
+            variableSites[v] = k;
+            rank[k] = v;
+            Arrays.fill (columns[v], (byte)residueAt (k));
+            v ++;
+        }
+        for (int i = 0; i < n; i ++) {
+            int[] positions = differences.get (i);
+            String others = differentResidues.get (i);
+            for (int k = 0; k < positions.length; k ++) {
+                columns[rank[positions[k]]][i] = (byte)others.charAt (k);
+            }
+        }
+        // Columns with the same residues share a site pattern.
+        patterns = new ArrayList<PackedSequence> ();
+        weights = new ArrayList<Integer> ();
+        sitePatterns = new int[variableSites.length];
+        HashMap<String, Integer> index = new HashMap<String, Integer> ();
+        for (v = 0; v < columns.length; v ++) {
+            String key = new String (columns[v], StandardCharsets.ISO_8859_1);
+            Integer pattern = index.get (key);
+            if (pattern == null) {
+                pattern = patterns.size ();
+                index.put (key, pattern);
+                patterns.add (new PackedSequence (columns[v], 0, n));
+                weights.add (0);
+            }
+            weights.set (pattern, weights.get (pattern) + 1);
+            sitePatterns[v] = pattern;
+            columns[v] = null;
+        }
+    }
+
+    /**
+     *  Private method to return the residue of the first sequence in a
+     *  column.
+     *
+     *  @param k The column.
+     *  @return The residue.
+     */
+    private char residueAt (int k) {
+        return k < reference.length () ? reference.charAt (k) : '-';
+    }
+
+    private static final String NUCLEOTIDES = "ACGT";
+
+    private String reference;
+    private int length = 0;
+    private int minimumLength = 0;
+    private BitSet gaps = new BitSet ();
+    private ArrayList<String> identifiers = new ArrayList<String> ();
+    private ArrayList<String> descriptions = new ArrayList<String> ();
+    /**
+     *  The columns where each sequence differs from the first sequence.
+     */
+    private ArrayList<int[]> differences = new ArrayList<int[]> ();
+    /**
+     *  The residues of each sequence in the columns where it differs from
+     *  the first sequence.
+     */
+    private ArrayList<String> differentResidues = new ArrayList<String> ();
+    private int gapStrippedLength;
+    private int constantSites;
+    private int[] variableSites;
+    private int[] sitePatterns;
+    private ArrayList<PackedSequence> patterns;
+    private ArrayList<Integer> weights;
+
+}
@@ -0,0 +1,86 @@
+/*
+ *    Ecotype Simulation models the sequence diversity within a bacterial
+ *    clade as the evolutionary result of net ecotype formation and periodic
+ *    selection, yielding a certain number of ecotypes.
+ *
+ *    Copyright (C) 2019  Jason M. Wood, Montana State University
+ *
+ *    This program is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation, either version 2 of the License, or
+ *    (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+
+package ecosim;
+
+import java.io.InputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ *  Copies an input stream into the input of a running program, closing
+ *  both streams when done.  The counterpart to StreamGobbler.
+ *
+ *  @author Jason M. Wood
+ *  @copyright GNU General Public License
+ */
+class StreamFeeder extends Thread {
+
+    /**
+     *  Constructor for StreamFeeder.
+     *
+     *  @param is The input stream to copy from.
+     *  @param os The output stream to copy to.
+     */
+    public StreamFeeder (InputStream is, OutputStream os) {
+        this.is = is;
+        this.os = os;
+    }
+
+    /**
+     *  Start this StreamFeeder thread.
+     */
+    public void run () {
+        try {
+            byte[] buffer = new byte[1 << 16];
+            int n;
+            while ((n = is.read (buffer)) != -1) {
+                os.write (buffer, 0, n);
+            }
+        }
+        catch (IOException ioe) {
+            ioe.printStackTrace ();
+        }
+        finally {
+            try {
+                is.close ();
+            }
+            catch (IOException ioe) {
+                ioe.printStackTrace ();
+            }
+            finally {
+                // Close the program input even if the input stream fails
+                // to close, so the program sees the end of its input.
+                try {
+                    os.close ();
+                }
+                catch (IOException ioe) {
+                    ioe.printStackTrace ();
+                }
+            }
+        }
+    }
+
+    private InputStream is;
+    private OutputStream os;
+}
@@ -65,6 +65,13 @@ public class MenuBar extends JMenuBar {
                 openSequenceFileActionPerformed ();
             }
         });
+        JMenuItem runDistanceBinning = new JMenuItem ();
+        runDistanceBinning.setText ("Run Distance Binning");
+        runDistanceBinning.addActionListener (new ActionListener () {
+            public void actionPerformed (ActionEvent evt) {
+                runDistanceBinningActionPerformed ();
+            }
+        });
         JMenuItem loadProjectFile = new JMenuItem ();
         loadProjectFile.setText ("Load Project File");
         loadProjectFile.addActionListener (new ActionListener () {
@@ -90,6 +97,7 @@ public class MenuBar extends JMenuBar {
         JMenu fileMenu = new JMenu ();
         fileMenu.setText ("File");
         fileMenu.add (openSequenceFile);
+        fileMenu.add (runDistanceBinning);
         fileMenu.addSeparator ();
         fileMenu.add (loadProjectFile);
         fileMenu.add (saveProjectFile);
@@ -147,11 +155,12 @@ public class MenuBar extends JMenuBar {
         mainVariables.setCurrentDirectory (file.getParent ());
         mainVariables.setSequenceFile (file);
         // Ask the user if they want to provide or generate a tree.
-        String[] options = { "Generate", "Newick" };
+        String[] options = { "Generate", "Neighbor Joining", "Newick" };
         int type = 0; // Default to using the Parsimony method.
         type = JOptionPane.showOptionDialog (
             this,
-            "Generate a tree with FastTree or use a Newick formatted file?",
+            "Generate a tree with FastTree or neighbor joining, or use a " +
+            "Newick formatted file?",
             "Tree Type",
             JOptionPane.YES_NO_OPTION,
             JOptionPane.QUESTION_MESSAGE,
@@ -171,8 +180,14 @@ public class MenuBar extends JMenuBar {
                 mainVariables.setPhylogenyFile (treeFile);
                 mainVariables.setCurrentDirectory (treeFile.getParent ());
                 break;
+            case "Neighbor Joining":
+                mainVariables.setPhylogenyFile (null);
+                mainVariables.setNeighborJoining (true);
+                break;
             case "Generate":
             default:
+                mainVariables.setPhylogenyFile (null);
+                mainVariables.setNeighborJoining (false);
                 break;
         }
         Thread t = new Thread (
@@ -180,16 +195,19 @@ public class MenuBar extends JMenuBar {
                 public void run () {
                     // Load the sequence file.
                     simulation.loadSequenceFile ();
-                    // Generate a tree with FastTree if needed.
-                    File treeFile = mainVariables.getPhylogenyFile ();
-                    if (treeFile == null) {
-                        treeFile = simulation.generateTree ();
-                        mainVariables.setPhylogenyFile (treeFile);
+                    // Generate a tree if needed, or load the tree file.
+                    if (mainVariables.getPhylogenyFile () == null) {
+                        simulation.generateAndLoadTree ();
+                    }
+                    else {
+                        simulation.loadTreeFile ();
                     }
-                    // Load the tree file.
-                    simulation.loadTreeFile ();
+                    if (! simulation.treeLoaded ()) return;
                     // Run binning and estimate the parameters.
                     simulation.runBinning ();
+                    if (mainVariables.getDistanceBinning ()) {
+                        simulation.runDistanceBinning ();
+                    }
                     simulation.runParameterEstimate ();
                 }
             }
@@ -197,6 +215,29 @@ public class MenuBar extends JMenuBar {
         t.start ();
     }
 
+    /**
+     *  The user has asked to bin the sequences by their pairwise distances.
+     */
+    private void runDistanceBinningActionPerformed () {
+        // Make sure the simulation isn't already running.
+        if (simulation.isRunning ()) {
+            log.append ("The simulation is currently running...\n");
+            return;
+        }
+        if (mainVariables.getSequenceFile () == null) {
+            log.append ("Load a sequence file first.\n");
+            return;
+        }
+        Thread t = new Thread (
+            new Runnable () {
+                public void run () {
+                    simulation.runDistanceBinning ();
+                }
+            }
+        );
+        t.start ();
+    }
+
     /**
      *  The user has asked to load a previously saved project file.
      */
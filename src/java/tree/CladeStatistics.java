@@ -0,0 +1,274 @@
+/*
+ *    Ecotype Simulation models the sequence diversity within a bacterial
+ *    clade as the evolutionary result of net ecotype formation and periodic
+ *    selection, yielding a certain number of ecotypes.
+ *
+ *    Copyright (C) 2019  Jason M. Wood, Montana State University
+ *
+ *    This program is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation, either version 2 of the License, or
+ *    (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+
+package ecosim.tree;
+
+import java.util.ArrayList;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ *  The clade statistics of every node of a compact tree: the clade
+ *  diameter, the number of leaf nodes, the minimum and maximum distance to a
+ *  leaf node, and the distance from the root node.  The statistics are
+ *  calculated once, in parallel, by splitting the tree into subtrees that
+ *  are small enough to be handled by a single fork/join task.  The nodes
+ *  above these subtrees are finished by the calling thread.  Removed nodes
+ *  are skipped.
+ *
+ *  @author Jason M. Wood
+ *  @copyright GNU General Public License
+ */
+public class CladeStatistics {
+
+    /**
+     *  Calculate the clade statistics of every node of a compact tree.
+     *
+     *  @param tree The CompactTree.
+     */
+    public CladeStatistics (CompactTree tree) {
+        this.tree = tree;
+        int n = tree.size ();
+        diameter = new double[n];
+        maximum = new double[n];
+        minimum = new double[n];
+        depth = new double[n];
+        leaves = new int[n];
+        first = new double[n];
+        second = new double[n];
+        count = new int[n];
+        // Split the tree into subtrees of no more than GRAIN nodes, each
+        // handled by a single task.  The nodes with larger subtrees are kept
+        // in pre-order to be handled here.
+        ArrayList<Integer> subtrees = new ArrayList<Integer> ();
+        ArrayList<Integer> upper = new ArrayList<Integer> ();
+        int i = 0;
+        while (i < n) {
+            if (tree.isRemoved (i)) {
+                i ++;
+                continue;
+            }
+            int end = tree.getSubtreeEnd (i);
+            if (end - i <= GRAIN) {
+                subtrees.add (i);
+                i = end;
+            }
+            else {
+                upper.add (i);
+                i ++;
+            }
+        }
+        // The distance from the root node of each of the larger subtrees is
+        // needed before the tasks can start.
+        for (int node: upper) {
+            int p = tree.getParent (node);
+            if (p >= 0) depth[node] = tree.getDistance (node) + depth[p];
+        }
+        new Task (subtrees, 0, subtrees.size ()).invoke ();
+        // Finish the larger subtrees, with every child finished before its
+        // parent.
+        for (int node: subtrees) {
+            addChild (node);
+        }
+        for (int k = upper.size () - 1; k >= 0; k --) {
+            int node = upper.get (k);
+            finish (node);
+            addChild (node);
+        }
+        // Release the working space.
+        first = null;
+        second = null;
+        count = null;
+    }
+
+    /**
+     *  Returns the compact tree described by these statistics.
+     *
+     *  @return The CompactTree.
+     */
+    public CompactTree getTree () {
+        return tree;
+    }
+
+    /**
+     *  Returns the clade diameter of a node, as defined by
+     *  Node.maximumDistanceBetweenLeafNodes.
+     *
+     *  @param index The index of the node.
+     *  @return The maximum distance between the leaf node descendants.
+     */
+    public double maximumDistanceBetweenLeafNodes (int index) {
+        return diameter[index];
+    }
+
+    /**
+     *  Returns the maximum distance of a node from a leaf node.
+     *
+     *  @param index The index of the node.
+     *  @return The maximum distance from a leaf node.
+     */
+    public double maximumDistanceFromLeafNode (int index) {
+        return maximum[index];
+    }
+
+    /**
+     *  Returns the minimum distance of a node from a leaf node.  The minimum
+     *  distance of a leaf node is zero.
+     *
+     *  @param index The index of the node.
+     *  @return The minimum distance from a leaf node.
+     */
+    public double minimumDistanceFromLeafNode (int index) {
+        return minimum[index];
+    }
+
+    /**
+     *  Returns the distance of a node from the root node.
+     *
+     *  @param index The index of the node.
+     *  @return The distance from the root node.
+     */
+    public double distanceFromRootNode (int index) {
+        return depth[index];
+    }
+
+    /**
+     *  Returns the number of leaf node descendants of a node.  A leaf node
+     *  is counted as its own descendant.
+     *
+     *  @param index The index of the node.
+     *  @return The number of leaf nodes.
+     */
+    public int numberOfLeaves (int index) {
+        return leaves[index];
+    }
+
+    /**
+     *  Private method to calculate the statistics of every node in a subtree
+     *  that is handled by a single task.
+     *
+     *  @param index The index of the root node of the subtree.
+     */
+    private void calculate (int index) {
+        int end = tree.getSubtreeEnd (index);
+        int p = tree.getParent (index);
+        if (p >= 0) depth[index] = tree.getDistance (index) + depth[p];
+        for (int i = index + 1; i < end; i ++) {
+            if (tree.isRemoved (i)) continue;
+            depth[i] = tree.getDistance (i) + depth[tree.getParent (i)];
+        }
+        // Visit the nodes in reverse pre-order, so that every child is
+        // finished before its parent.
+        for (int i = end - 1; i > index; i --) {
+            if (tree.isRemoved (i)) continue;
+            finish (i);
+            addChild (i);
+        }
+        finish (index);
+    }
+
+    /**
+     *  Private method to finish the statistics of a node once all of its
+     *  children have been added.
+     *
+     *  @param index The index of the node.
+     */
+    private void finish (int index) {
+        if (count[index] == 0) {
+            leaves[index] = 1;
+            return;
+        }
+        if (first[index] > 0.0d) maximum[index] = first[index];
+        if (count[index] >= 2) diameter[index] = first[index] + second[index];
+    }
+
+    /**
+     *  Private method to add the statistics of a finished node to those of
+     *  its parent.
+     *
+     *  @param index The index of the node.
+     */
+    private void addChild (int index) {
+        int p = tree.getParent (index);
+        if (p < 0) return;
+        double distance = tree.getDistance (index);
+        double length = maximum[index] + distance;
+        if (count[p] == 0 || length > first[p]) {
+            second[p] = first[p];
+            first[p] = length;
+        }
+        else if (count[p] == 1 || length > second[p]) {
+            second[p] = length;
+        }
+        double shortest = minimum[index] + distance;
+        if (count[p] == 0 || shortest < minimum[p]) minimum[p] = shortest;
+        leaves[p] += leaves[index];
+        count[p] ++;
+    }
+
+    /**
+     *  A fork/join task to calculate the statistics of a range of the
+     *  subtrees, splitting the range in half until a single subtree is left.
+     */
+    private class Task extends RecursiveAction {
+
+        public Task (ArrayList<Integer> subtrees, int from, int to) {
+            this.subtrees = subtrees;
+            this.from = from;
+            this.to = to;
+        }
+
+        protected void compute () {
+            if (to - from == 1) {
+                calculate (subtrees.get (from));
+            }
+            else if (to - from > 1) {
+                int middle = (from + to) >>> 1;
+                invokeAll (
+                    new Task (subtrees, from, middle),
+                    new Task (subtrees, middle, to)
+                );
+            }
+        }
+
+        private ArrayList<Integer> subtrees;
+        private int from;
+        private int to;
+
+    }
+
+    /**
+     *  The maximum number of nodes in a subtree handled by a single task.
+     */
+    private static final int GRAIN = 4096;
+
+    private CompactTree tree;
+    private double[] diameter;
+    private double[] maximum;
+    private double[] minimum;
+    private double[] depth;
+    private int[] leaves;
+    private double[] first;
+    private double[] second;
+    private int[] count;
+
+}
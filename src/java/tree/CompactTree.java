@@ -0,0 +1,565 @@
+/*
+ *    Ecotype Simulation models the sequence diversity within a bacterial
+ *    clade as the evolutionary result of net ecotype formation and periodic
+ *    selection, yielding a certain number of ecotypes.
+ *
+ *    Copyright (C) 2019  Jason M. Wood, Montana State University
+ *
+ *    This program is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation, either version 2 of the License, or
+ *    (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+
+package ecosim.tree;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ *  A compact, index-based representation of a phylogenetic tree.  The nodes
+ *  are stored in pre-order in a set of primitive arrays, so that the
+ *  descendants of a node always occupy the contiguous range of indices
+ *  following it, and traversals run over contiguous memory instead of
+ *  chasing Node references.
+ *
+ *  @author Jason M. Wood
+ *  @copyright GNU General Public License
+ */
+public class CompactTree {
+
+    /**
+     *  Constructor for an empty CompactTree.  Nodes are added in pre-order
+     *  using addNode.
+     */
+    public CompactTree () {
+        this (16);
+    }
+
+    /**
+     *  Constructor for an empty CompactTree with room for the given number
+     *  of nodes.
+     *
+     *  @param capacity The expected number of nodes.
+     */
+    public CompactTree (int capacity) {
+        if (capacity < 1) capacity = 1;
+        parent = new int[capacity];
+        firstChild = new int[capacity];
+        nextSibling = new int[capacity];
+        lastChild = new int[capacity];
+        subtreeSize = new int[capacity];
+        distance = new double[capacity];
+        names = new String[capacity];
+        flags = new byte[capacity];
+        size = 0;
+    }
+
+    /**
+     *  Constructor for a CompactTree containing a copy of the given Node and
+     *  all of its descendants.
+     *
+     *  @param root The root Node of the tree to copy.
+     */
+    public CompactTree (Node root) {
+        this ();
+        ArrayList<Node> stack = new ArrayList<Node> ();
+        ArrayList<Integer> stackParents = new ArrayList<Integer> ();
+        stack.add (root);
+        stackParents.add (-1);
+        while (! stack.isEmpty ()) {
+            Node node = stack.remove (stack.size () - 1);
+            int p = stackParents.remove (stackParents.size () - 1);
+            int index = addNode (p, node.getName (), node.getDistance ());
+            setOutgroup (index, node.isOutgroup ());
+            setCollapsed (index, node.isCollapsed ());
+            ArrayList<Node> children = node.getChildren ();
+            for (int i = children.size () - 1; i >= 0; i --) {
+                stack.add (children.get (i));
+                stackParents.add (index);
+            }
+        }
+        trim ();
+    }
+
+    /**
+     *  Constructor for a CompactTree containing a copy of the given Tree.
+     *
+     *  @param tree The Tree to copy.
+     */
+    public CompactTree (Tree tree) {
+        this (tree.getRoot ());
+    }
+
+    /**
+     *  Add a new node to this tree.  Nodes must be added in pre-order, that
+     *  is each node has to be added after its parent and after all of the
+     *  descendants of its previous siblings.
+     *
+     *  @param parentIndex The index of the parent node, or -1 for the root.
+     *  @param name The name of the new node.
+     *  @param length The distance from the parent node to the new node.
+     *  @return The index of the new node.
+     */
+    public int addNode (int parentIndex, String name, double length) {
+        if (size == parent.length) grow ();
+        int index = size ++;
+        parent[index] = parentIndex;
+        firstChild[index] = -1;
+        nextSibling[index] = -1;
+        lastChild[index] = -1;
+        distance[index] = length;
+        names[index] = (name == null || name.length () == 0) ? null : name;
+        flags[index] = 0;
+        if (parentIndex >= 0) appendChild (parentIndex, index);
+        // The subtree sizes and statistics need to be recalculated.
+        sized = false;
+        statistics = null;
+        return index;
+    }
+
+    /**
+     *  Release the unused capacity of this tree.
+     */
+    public void trim () {
+        if (size == parent.length) return;
+        int capacity = Math.max (size, 1);
+        parent = Arrays.copyOf (parent, capacity);
+        firstChild = Arrays.copyOf (firstChild, capacity);
+        nextSibling = Arrays.copyOf (nextSibling, capacity);
+        lastChild = Arrays.copyOf (lastChild, capacity);
+        subtreeSize = Arrays.copyOf (subtreeSize, capacity);
+        distance = Arrays.copyOf (distance, capacity);
+        names = Arrays.copyOf (names, capacity);
+        flags = Arrays.copyOf (flags, capacity);
+    }
+
+    /**
+     *  Remove a node and all of its descendants from this tree.  The nodes
+     *  are marked as removed instead of being deleted, so the indices of the
+     *  remaining nodes do not change and each subtree still occupies the
+     *  same range of indices.  If the parent of the node is left with a
+     *  single child, the parent is spliced out of the tree and its distance
+     *  is added to the distance of the remaining child, which takes the
+     *  place of the parent as the last child of the grandparent.  A parent
+     *  left without children is removed as well.
+     *
+     *  @param index The index of the node to remove.
+     */
+    public void removeNode (int index) {
+        if (isRemoved (index)) return;
+        statistics = null;
+        // The subtree sizes need to be known before the tree is changed.
+        int end = getSubtreeEnd (index);
+        for (int i = index; i < end; i ++) {
+            if ((flags[i] & REMOVED) != 0) {
+                // Skip over descendants that have already been removed.
+                i = getSubtreeEnd (i) - 1;
+                continue;
+            }
+            setFlag (i, REMOVED, true);
+        }
+        int p = parent[index];
+        while (p >= 0) {
+            unlinkChild (p, index);
+            if (firstChild[p] >= 0) break;
+            // The parent is left without children, remove it as well.
+            setFlag (p, REMOVED, true);
+            index = p;
+            p = parent[index];
+        }
+        if (p < 0) {
+            // The root node has been removed.
+            root = -1;
+        }
+        else if (nextSibling[firstChild[p]] < 0) {
+            // Splice out the parent left with a single child.
+            int child = firstChild[p];
+            int grandparent = parent[p];
+            distance[child] = distance[child] + distance[p];
+            setFlag (p, SPLICED, true);
+            firstChild[p] = -1;
+            lastChild[p] = -1;
+            parent[child] = grandparent;
+            if (grandparent < 0) {
+                root = child;
+            }
+            else {
+                unlinkChild (grandparent, p);
+                appendChild (grandparent, child);
+            }
+        }
+    }
+
+    /**
+     *  Returns whether or not a node has been removed from this tree.
+     *
+     *  @param index The index of the node.
+     *  @return True if the node has been removed.
+     */
+    public boolean isRemoved (int index) {
+        return (flags[index] & (REMOVED | SPLICED)) != 0;
+    }
+
+    /**
+     *  Returns the index of the root node of this tree.  This is 0 unless
+     *  the original root node has been spliced out or removed.
+     *
+     *  @return The index of the root node, or -1 if the tree is empty.
+     */
+    public int getRoot () {
+        return size == 0 ? -1 : root;
+    }
+
+    /**
+     *  Returns the number of nodes in this tree.
+     *
+     *  @return The number of nodes.
+     */
+    public int size () {
+        return size;
+    }
+
+    /**
+     *  Returns the index of the parent of a node.
+     *
+     *  @param index The index of the node.
+     *  @return The index of the parent node, or -1 for the root node.
+     */
+    public int getParent (int index) {
+        return parent[index];
+    }
+
+    /**
+     *  Returns the index of the first child of a node.
+     *
+     *  @param index The index of the node.
+     *  @return The index of the first child, or -1 for a leaf node.
+     */
+    public int getFirstChild (int index) {
+        return firstChild[index];
+    }
+
+    /**
+     *  Returns the index of the next sibling of a node.
+     *
+     *  @param index The index of the node.
+     *  @return The index of the next sibling, or -1 for the last child.
+     */
+    public int getNextSibling (int index) {
+        return nextSibling[index];
+    }
+
+    /**
+     *  Returns the index following the last descendant of a node.  The
+     *  descendants of a node occupy the indices between the node and this
+     *  value.
+     *
+     *  @param index The index of the node.
+     *  @return The index following the subtree of the node.
+     */
+    public int getSubtreeEnd (int index) {
+        if (! sized) calculateSubtreeSizes ();
+        return index + subtreeSize[index];
+    }
+
+    /**
+     *  Returns the distance from the parent of a node to the node.
+     *
+     *  @param index The index of the node.
+     *  @return The distance to the parent.
+     */
+    public double getDistance (int index) {
+        return distance[index];
+    }
+
+    /**
+     *  Set the distance from the parent of a node to the node.
+     *
+     *  @param index The index of the node.
+     *  @param length The distance to the parent.
+     */
+    public void setDistance (int index, double length) {
+        distance[index] = length;
+        statistics = null;
+    }
+
+    /**
+     *  Returns the name of a node.
+     *
+     *  @param index The index of the node.
+     *  @return The name of the node.
+     */
+    public String getName (int index) {
+        return names[index] == null ? "" : names[index];
+    }
+
+    /**
+     *  Set the name of a node.
+     *
+     *  @param index The index of the node.
+     *  @param name The name of the node.
+     */
+    public void setName (int index, String name) {
+        names[index] = (name == null || name.length () == 0) ? null : name;
+    }
+
+    /**
+     *  Returns whether or not a node is a leaf node.
+     *
+     *  @param index The index of the node.
+     *  @return True if the node is a leaf node.
+     */
+    public boolean isLeafNode (int index) {
+        return firstChild[index] < 0;
+    }
+
+    /**
+     *  Returns whether or not a node is the outgroup.
+     *
+     *  @param index The index of the node.
+     *  @return True if the node is the outgroup.
+     */
+    public boolean isOutgroup (int index) {
+        return (flags[index] & OUTGROUP) != 0;
+    }
+
+    /**
+     *  Set whether or not a node is the outgroup.
+     *
+     *  @param index The index of the node.
+     *  @param outgroup Whether or not the node is the outgroup.
+     */
+    public void setOutgroup (int index, boolean outgroup) {
+        setFlag (index, OUTGROUP, outgroup);
+    }
+
+    /**
+     *  Returns whether or not a node is collapsed.
+     *
+     *  @param index The index of the node.
+     *  @return True if the node is collapsed.
+     */
+    public boolean isCollapsed (int index) {
+        return (flags[index] & COLLAPSED) != 0;
+    }
+
+    /**
+     *  Set whether or not a node is collapsed.
+     *
+     *  @param index The index of the node.
+     *  @param collapsed Whether or not the node is collapsed.
+     */
+    public void setCollapsed (int index, boolean collapsed) {
+        setFlag (index, COLLAPSED, collapsed);
+    }
+
+    /**
+     *  Returns the clade statistics of every node of this tree.  The
+     *  statistics are calculated in parallel the first time they are needed,
+     *  and kept until this tree is changed.
+     *
+     *  @return The clade statistics.
+     */
+    public CladeStatistics getStatistics () {
+        if (statistics == null) {
+            // Calculate the subtree sizes before the tasks share them.
+            if (! sized) calculateSubtreeSizes ();
+            statistics = new CladeStatistics (this);
+        }
+        return statistics;
+    }
+
+    /**
+     *  Returns the number of leaf node descendants of a node.
+     *
+     *  @param index The index of the node.
+     *  @return The number of leaf nodes.
+     */
+    public int numberOfLeaves (int index) {
+        return getStatistics ().numberOfLeaves (index);
+    }
+
+    /**
+     *  Returns the clade diameter of every node.  The clade diameter of a
+     *  node is the maximum distance between the leaf node descendants of two
+     *  of its children, as defined by Node.maximumDistanceBetweenLeafNodes.
+     *
+     *  @return The clade diameter of each node.
+     */
+    public double[] cladeDiameters () {
+        if (size == 0) return new double[0];
+        return cladeDiameters (0);
+    }
+
+    /**
+     *  Returns the clade diameter of a node and each of its descendants.
+     *  Removed nodes have a clade diameter of zero.
+     *
+     *  @param index The index of the node.
+     *  @return The clade diameter of each node in the subtree, indexed
+     *  relative to the index of the node.
+     */
+    public double[] cladeDiameters (int index) {
+        CladeStatistics clade = getStatistics ();
+        double[] diameter = new double[getSubtreeEnd (index) - index];
+        for (int i = 0; i < diameter.length; i ++) {
+            diameter[i] = clade.maximumDistanceBetweenLeafNodes (index + i);
+        }
+        return diameter;
+    }
+
+    /**
+     *  Create a Node based copy of this tree, leaving out removed nodes.
+     *
+     *  @return The root Node of the copy.
+     */
+    public Node toNode () {
+        if (getRoot () < 0) return new Node ();
+        ArrayList<Node> stack = new ArrayList<Node> ();
+        ArrayList<Integer> stackIndex = new ArrayList<Integer> ();
+        Node rootNode = null;
+        stack.add (null);
+        stackIndex.add (root);
+        while (! stack.isEmpty ()) {
+            Node parentNode = stack.remove (stack.size () - 1);
+            int i = stackIndex.remove (stackIndex.size () - 1);
+            Node node = new Node (getName (i), distance[i]);
+            node.setOutgroup (isOutgroup (i));
+            node.collapse (isCollapsed (i));
+            if (parentNode == null) {
+                rootNode = node;
+            }
+            else {
+                parentNode.addChild (node);
+            }
+            // Push the children in reverse order, so that they are added to
+            // the copy in order.
+            ArrayList<Integer> children = new ArrayList<Integer> ();
+            for (int c = firstChild[i]; c >= 0; c = nextSibling[c]) {
+                children.add (c);
+            }
+            for (int k = children.size () - 1; k >= 0; k --) {
+                stack.add (node);
+                stackIndex.add (children.get (k));
+            }
+        }
+        return rootNode;
+    }
+
+    /**
+     *  Private method to set or clear a flag of a node.
+     *
+     *  @param index The index of the node.
+     *  @param flag The flag.
+     *  @param value Whether to set or clear the flag.
+     */
+    private void setFlag (int index, byte flag, boolean value) {
+        if (value) {
+            flags[index] |= flag;
+        }
+        else {
+            flags[index] &= ~flag;
+        }
+    }
+
+    /**
+     *  Private method to remove a child from the list of children of a node.
+     *
+     *  @param index The index of the node.
+     *  @param child The index of the child to remove.
+     */
+    private void unlinkChild (int index, int child) {
+        int previous = -1;
+        int c = firstChild[index];
+        while (c != child) {
+            previous = c;
+            c = nextSibling[c];
+        }
+        if (previous < 0) {
+            firstChild[index] = nextSibling[child];
+        }
+        else {
+            nextSibling[previous] = nextSibling[child];
+        }
+        if (lastChild[index] == child) lastChild[index] = previous;
+        nextSibling[child] = -1;
+    }
+
+    /**
+     *  Private method to add a child to the end of the list of children of a
+     *  node.
+     *
+     *  @param index The index of the node.
+     *  @param child The index of the child to add.
+     */
+    private void appendChild (int index, int child) {
+        if (lastChild[index] < 0) {
+            firstChild[index] = child;
+        }
+        else {
+            nextSibling[lastChild[index]] = child;
+        }
+        lastChild[index] = child;
+        nextSibling[child] = -1;
+    }
+
+    /**
+     *  Private method to calculate the number of nodes in the subtree of
+     *  every node.
+     */
+    private void calculateSubtreeSizes () {
+        Arrays.fill (subtreeSize, 0, size, 1);
+        for (int i = size - 1; i > 0; i --) {
+            // Skip the root, which is not at index 0 once the original
+            // root has been spliced out.
+            if (parent[i] < 0) continue;
+            subtreeSize[parent[i]] += subtreeSize[i];
+        }
+        sized = true;
+    }
+
+    /**
+     *  Private method to double the capacity of this tree.
+     */
+    private void grow () {
+        int capacity = parent.length * 2;
+        parent = Arrays.copyOf (parent, capacity);
+        firstChild = Arrays.copyOf (firstChild, capacity);
+        nextSibling = Arrays.copyOf (nextSibling, capacity);
+        lastChild = Arrays.copyOf (lastChild, capacity);
+        subtreeSize = Arrays.copyOf (subtreeSize, capacity);
+        distance = Arrays.copyOf (distance, capacity);
+        names = Arrays.copyOf (names, capacity);
+        flags = Arrays.copyOf (flags, capacity);
+    }
+
+    private static final byte OUTGROUP = 1;
+    private static final byte COLLAPSED = 2;
+    private static final byte REMOVED = 4;
+    private static final byte SPLICED = 8;
+
+    private int size;
+    private int root;
+    private boolean sized;
+    private int[] parent;
+    private int[] firstChild;
+    private int[] nextSibling;
+    private int[] lastChild;
+    private int[] subtreeSize;
+    private double[] distance;
+    private String[] names;
+    private byte[] flags;
+    private CladeStatistics statistics;
+
+}
@@ -32,12 +32,42 @@ package ecosim.tree;
 public class InvalidTreeException extends Exception {
 
     public InvalidTreeException (String message) {
+        this (message, 0, 0);
+    }
+
+    public InvalidTreeException (String message, int line, int column) {
         this.message = message;
+        this.line = line;
+        this.column = column;
+    }
+
+    /**
+     *  Get the line where the error was found.
+     *
+     *  @return The line number, or 0 if unknown.
+     */
+    public int getLine () {
+        return line;
+    }
+
+    /**
+     *  Get the column where the error was found.
+     *
+     *  @return The column number, or 0 if unknown.
+     */
+    public int getColumn () {
+        return column;
     }
 
     public String toString () {
-        return "Tree error: " + message;
+        String position = "";
+        if (line > 0) {
+            position = String.format (" (line %d, column %d)", line, column);
+        }
+        return "Tree error: " + message + position;
     }
 
     private String message;
+    private int line;
+    private int column;
 }
@@ -26,11 +26,17 @@ package ecosim.tree;
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.Reader;
-import java.util.ArrayList;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.util.Arrays;
 
 /**
  *  Read a Newick formated tree.
  *
+ *  The tree is parsed in a single pass over the input, without recursion,
+ *  so that the time needed is linear in the size of the tree and the extra
+ *  memory used is bounded by the depth of the tree.
+ *
  *  @author Andrew Warner
  *  @author Jason M. Wood
  *  @copyright GNU General Public License
@@ -44,139 +50,175 @@ public class NewickReader extends BufferedReader {
         super (reader);
     }
 
+    /**
+     *  Read a Newick formated tree from a UTF-8 encoded channel.
+     *
+     *  @param channel The channel to read from.
+     */
+    public NewickReader (ReadableByteChannel channel) {
+        this (Channels.newReader (channel, "UTF-8"));
+    }
+
     /**
      *  Read a Newick formated tree.
      *
      *  @return Node containing the root of the Newick tree.
      */
     public Node readTree () throws InvalidTreeException {
-        Node node = null;
+        CompactTree tree = readCompactTree ();
+        if (tree == null) return null;
+        return tree.toNode ();
+    }
+
+    /**
+     *  Read a Newick formated tree into a CompactTree.
+     *
+     *  @return The tree, or null if no tree was found.
+     */
+    public CompactTree readCompactTree () throws InvalidTreeException {
+        CompactTree tree = new CompactTree ();
+        // The stack of open internal nodes, the innermost last.
+        int[] open = new int[64];
+        int depth = 0;
+        // The node whose name and distance are currently being read.
+        int current = -1;
+        // Buffer for the name and distance of the current node.
+        StringBuilder meta = new StringBuilder ();
+        int metaLine = 0;
+        int metaColumn = 0;
+        line = 1;
+        column = 0;
+        boolean done = false;
         try {
-            // Create a buffer to hold the tree.
-            StringBuffer buffer = new StringBuffer ();
-            // Start reading the tree.
-            String line = readLine ();
-            while (line != null) {
-                // Replace spaces in the line.
-                line = line.replace (" ", "");
-                // Look for the end of the Newick tree.
-                if (line.contains (";")) {
-                    buffer.append (line.substring (0, line.indexOf (";")));
-                    break;
+            char[] buffer = new char[8192];
+            int length;
+            while (! done && (length = read (buffer, 0, buffer.length)) != -1) {
+                for (int i = 0; i < length && ! done; i ++) {
+                    char c = buffer[i];
+                    // Keep track of the current position for error messages.
+                    if (c == '\n') {
+                        line ++;
+                        column = 0;
+                        continue;
+                    }
+                    column ++;
+                    switch (c) {
+                        case ' ':
+                        case '\t':
+                        case '\r':
+                            // Ignore white space.
+                            break;
+                        case '(':
+                            // Start the first child of a new internal node.
+                            if (current < 0) {
+                                current = tree.addNode (-1, "", 0.0d);
+                            }
+                            else if (meta.length () > 0 ||
+                                ! tree.isLeafNode (current)) {
+                                throw error ("unexpected '('");
+                            }
+                            if (depth == open.length) {
+                                open = Arrays.copyOf (open, depth * 2);
+                            }
+                            open[depth ++] = current;
+                            current = tree.addNode (current, "", 0.0d);
+                            break;
+                        case ',':
+                            // Start the next child of the open internal node.
+                            if (depth == 0) {
+                                throw error ("unexpected ','");
+                            }
+                            setMeta (tree, current, meta, metaLine, metaColumn);
+                            current = tree.addNode (open[depth - 1], "", 0.0d);
+                            break;
+                        case ')':
+                            // Close the innermost open internal node.
+                            if (depth == 0) {
+                                throw error ("unmatched parentheses");
+                            }
+                            setMeta (tree, current, meta, metaLine, metaColumn);
+                            current = open[-- depth];
+                            break;
+                        case ';':
+                            // The end of the tree.
+                            done = true;
+                            break;
+                        default:
+                            // Part of the name or distance of the current
+                            // node.
+                            if (current < 0) {
+                                current = tree.addNode (-1, "", 0.0d);
+                            }
+                            if (meta.length () == 0) {
+                                metaLine = line;
+                                metaColumn = column;
+                            }
+                            meta.append (c);
+                    }
                 }
-                // Append the line to the buffer.
-                buffer.append (line);
-                // Read the next line of the file.
-                line = readLine ();
-            }
-            // If the buffer contains data, attempt to parse the tree.
-            if (buffer.length () > 0) {
-                node = parseTree (buffer.toString ());
             }
         }
         catch (IOException e) {
             throw new InvalidTreeException ("Unable to read from file.");
         }
-        return node;
+        // Make sure that all of the internal nodes have been closed.
+        if (depth > 0) {
+            throw error ("unmatched parentheses");
+        }
+        if (current < 0) return null;
+        setMeta (tree, current, meta, metaLine, metaColumn);
+        tree.trim ();
+        return tree;
     }
 
     /**
-     *  The recursive method used to parse through a Newick tree.
+     *  Private method to parse the name and distance of a node from the
+     *  buffer, and clear the buffer.
      *
-     *  @param tree The subtree to parse.
-     *  @return A Node containing the subtree.
+     *  @param tree The tree being read.
+     *  @param node The index of the node.
+     *  @param meta The buffer containing the name and distance.
+     *  @param metaLine The line where the buffer started.
+     *  @param metaColumn The column where the buffer started.
      */
-    private Node parseTree (String tree) throws InvalidTreeException {
-        Node node = new Node ();
-        String metaString;
-        // Check if the current node has a subTree.
-        if (tree.length () > 0 && tree.charAt (0) == '(') {
-            // Split the sub tree from the meta data.
-            int length = getSpaceInBetweenParens (0, tree);
-            String subTree = tree.substring (1, length);
-            metaString = tree.substring (length + 1, tree.length ());
-            // Parse this node's sub tree.
-            StringBuffer buffer = new StringBuffer ();
-            int i = 0;
-            while (i < subTree.length ()) {
-                // Check to see if this child node has a subtree, append it to
-                // the buffer.
-                if (subTree.charAt (i) == '(') {
-                    int j = getSpaceInBetweenParens (i, subTree);
-                    buffer.append (subTree.substring (i, j));
-                    i = j;
-                }
-                // Keep appending the child node's meta data to the buffer
-                // until we find a new child node.  If we do find a new child
-                // node, add it to the current node by recursion with the
-                // buffer as the subTree, then clear the buffer.
-                if (subTree.charAt (i) != ',') {
-                    buffer.append (subTree.charAt (i));
-                }
-                else {
-                    node.addChild (parseTree (buffer.toString ()));
-                    buffer = new StringBuffer ();
-                }
-                i ++;
-            }
-            // Add a new child to the current node by recursion with the
-            // buffer as the subTree.
-            node.addChild (parseTree (buffer.toString ()));
+    private void setMeta (CompactTree tree, int node, StringBuilder meta,
+        int metaLine, int metaColumn) throws InvalidTreeException {
+        if (meta.length () == 0) return;
+        int colon = meta.indexOf (":");
+        if (colon < 0) colon = meta.length ();
+        if (colon > 0) {
+            tree.setName (node, meta.substring (0, colon));
         }
-        else {
-            metaString = tree;
-        }
-        // Parse this node's meta data.
-        if (metaString.length () > 0) {
-            String[] meta = metaString.split (":", 2);
-            if (meta.length > 0 && meta[0].length () > 0) {
-                node.setName (meta[0]);
+        if (colon + 1 < meta.length ()) {
+            try {
+                Double distance = Double.parseDouble (
+                    meta.substring (colon + 1)
+                );
+                tree.setDistance (node, distance.doubleValue ());
             }
-            if (meta.length > 1 && meta[1].length () > 0) {
-                try {
-                    Double distance = Double.parseDouble (meta[1]);
-                    node.setDistance (distance.doubleValue ());
-                }
-                catch (NumberFormatException e) {
-                    throw new InvalidTreeException (
-                        "Malformed Newick tree, expected a number." + e
-                    );
-                }
+            catch (NumberFormatException e) {
+                throw new InvalidTreeException (
+                    "Malformed Newick tree, expected a number." + e,
+                    metaLine, metaColumn + colon + 1
+                );
             }
         }
-        return node;
+        meta.setLength (0);
     }
 
     /**
-     *  Get the space in between a set of parentheses, ie (   ), which could
-     *  contain other open and close parentheses within it.
+     *  Private method to create an exception at the current position.
      *
-     *  @param index The index of the first open parenthesis.
-     *  @param tree The tree, or the tree segment.
-     *  @return The index of the close parenthesis corresponding to the given
-     *  index of the open parenthesis.
+     *  @param message The error message.
+     *  @return The exception.
      */
-    private int getSpaceInBetweenParens (int index, String tree)
-        throws InvalidTreeException {
-        int numOpenParensSeen = 0;
-        for (int i = index; i < tree.length (); i ++) {
-            if (tree.charAt (i) == '(') {
-                numOpenParensSeen ++;
-            }
-            else if (tree.charAt (i) == ')') {
-                numOpenParensSeen --;
-                if (numOpenParensSeen == 0) {
-                    return i;
-                }
-            }
-        }
-        // Throw an exception if there is there are unmatched parentheses.
-        if (numOpenParensSeen != 0) {
-            throw new InvalidTreeException (
-                "Malformed Newick tree, unmatched parentheses."
-            );
-        }
-        return 0;
+    private InvalidTreeException error (String message) {
+        return new InvalidTreeException (
+            "Malformed Newick tree, " + message + ".", line, column
+        );
     }
 
+    private int line;
+    private int column;
+
 }
@@ -24,10 +24,19 @@ package ecosim.tree;
 
 import java.io.BufferedWriter;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
 import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Formatter;
 
 /**
- *  Converts a Node based tree into Newick format.
+ *  Converts a Node based or compact tree into Newick format.
+ *
+ *  The tree is written directly to the underlying Writer while it is walked
+ *  iteratively, so that the Newick formatted tree is never held in memory
+ *  and deep trees do not overflow the stack.
  *
  *  @author Jason M. Wood
  *  @copyright GNU General Public License
@@ -37,6 +46,11 @@ public class NewickWriter extends BufferedWriter {
 
     public NewickWriter (Writer writer) {
         super (writer);
+        formatter = new Formatter (this);
+    }
+
+    public NewickWriter (OutputStream stream) {
+        this (new OutputStreamWriter (stream));
     }
 
     /**
@@ -45,7 +59,100 @@ public class NewickWriter extends BufferedWriter {
      *  @param tree The tree to write.
      */
     public void write (Tree tree) throws IOException {
-        write (tree.toString () + System.getProperty ("line.separator"));
+        tree.validate ();
+        write (tree.getRoot ());
+        newLine ();
+    }
+
+    /**
+     *  Write a node and all of its descendants in Newick format.  The
+     *  terminating semicolon is only written for the root node.
+     *
+     *  @param node The node to write.
+     */
+    public void write (Node node) throws IOException {
+        ArrayList<Node> stack = new ArrayList<Node> ();
+        int[] next = new int[16];
+        stack.add (node);
+        next[0] = 0;
+        while (! stack.isEmpty ()) {
+            int top = stack.size () - 1;
+            Node current = stack.get (top);
+            ArrayList<Node> children = current.getChildren ();
+            int i = next[top];
+            if (i < children.size ()) {
+                // Write the next child of the current node.
+                write (i == 0 ? '(' : ',');
+                next[top] ++;
+                if (top + 1 == next.length) {
+                    next = Arrays.copyOf (next, next.length * 2);
+                }
+                stack.add (children.get (i));
+                next[top + 1] = 0;
+            }
+            else {
+                // All of the children have been written, finish the node.
+                if (! children.isEmpty ()) write (')');
+                if (current.isLeafNode () || current.isCollapsed ()) {
+                    write (current.getName ());
+                }
+                write (':');
+                formatter.format ("%.5f", current.getDistance ());
+                if (formatter.ioException () != null) {
+                    throw formatter.ioException ();
+                }
+                if (current.isRootNode ()) write (';');
+                stack.remove (top);
+            }
+        }
     }
 
+    /**
+     *  Write a node of a compact tree and all of its descendants in Newick
+     *  format, as a tree of its own.
+     *
+     *  @param tree The compact tree containing the node.
+     *  @param index The index of the node to write.
+     */
+    public void write (CompactTree tree, int index) throws IOException {
+        int current = index;
+        while (true) {
+            // Descend to the first child of the current node.
+            int child = tree.getFirstChild (current);
+            if (child >= 0) {
+                write ('(');
+                current = child;
+                continue;
+            }
+            // Finish nodes until one with a remaining sibling is found.
+            while (true) {
+                if (tree.isLeafNode (current) || tree.isCollapsed (current)) {
+                    write (tree.getName (current));
+                }
+                write (':');
+                formatter.format ("%.5f", tree.getDistance (current));
+                if (formatter.ioException () != null) {
+                    throw formatter.ioException ();
+                }
+                if (current == index) {
+                    write (';');
+                    return;
+                }
+                int sibling = tree.getNextSibling (current);
+                if (sibling >= 0) {
+                    write (',');
+                    current = sibling;
+                    break;
+                }
+                current = tree.getParent (current);
+                write (')');
+            }
+        }
+    }
+
+    /**
+     *  The formatter used for the branch lengths.
+     */
+    private Formatter formatter;
+
 }
@@ -23,9 +23,12 @@
 
 package ecosim.tree;
 
+import ecosim.Hashing;
 import ecosim.Heapsorter;
 import ecosim.MainVariables;
 
+import java.io.IOException;
+import java.io.StringWriter;
 import java.util.ArrayList;
 
 /**
@@ -84,19 +87,34 @@ public class Node implements Comparable<Node> {
      *
      *  @param node Node to make a copy of.
      */
-    public Node (Node node) {
+    public Node (final Node node) {
         name = node.getName ();
         distance = node.getDistance ();
         children = new ArrayList<Node> ();
-        for (Node child: node.getChildren ()) {
-            Node clone = new Node (child);
-            clone.setParent (this);
-            children.add (clone);
-        }
         outgroup = node.isOutgroup ();
         collapsed = node.isCollapsed ();
         x = 0.0d;
         y = 0.0d;
+        // Copy the descendants, keeping a stack of the copied ancestors.
+        final ArrayList<Node> clones = new ArrayList<Node> ();
+        clones.add (this);
+        node.walk (new NodeVisitor () {
+            public boolean preVisit (Node descendant) {
+                if (descendant == node) return true;
+                Node clone = new Node (
+                    descendant.getName (), descendant.getDistance ()
+                );
+                clone.setOutgroup (descendant.isOutgroup ());
+                clone.collapse (descendant.isCollapsed ());
+                clones.get (clones.size () - 1).addChild (clone);
+                clones.add (clone);
+                return true;
+            }
+            public void postVisit (Node descendant) {
+                if (descendant == node) return;
+                clones.remove (clones.size () - 1);
+            }
+        });
     }
 
     /**
@@ -161,6 +179,7 @@ public class Node implements Comparable<Node> {
      */
      public void setName (String name) {
          this.name = name;
+         markRenamed ();
      }
 
     /**
@@ -170,6 +189,7 @@ public class Node implements Comparable<Node> {
      */
     public void setDistance (Double distance) {
         this.distance = distance;
+        invalidateMetrics ();
     }
 
     /**
@@ -179,6 +199,7 @@ public class Node implements Comparable<Node> {
      */
     public void setOutgroup (Boolean outgroup) {
         this.outgroup = outgroup;
+        markModified ();
     }
 
     /**
@@ -187,7 +208,10 @@ public class Node implements Comparable<Node> {
      *  @param parent The parent of this Node.
      */
     public void setParent (Node parent) {
+        // Both the old and the new ancestors of this Node change.
+        invalidateMetrics ();
         this.parent = parent;
+        if (parent != null) parent.invalidateMetrics ();
     }
 
     /**
@@ -212,11 +236,17 @@ public class Node implements Comparable<Node> {
      *
      *  @param sorter The sorter to use.
      */
-    public void sortChildren (Heapsorter<Node> sorter) {
-        for (Node child: children) {
-            child.sortChildren (sorter);
-        }
-        sorter.sort (children);
+    public void sortChildren (final Heapsorter<Node> sorter) {
+        // Sort the children of each descendant before its parent.
+        walk (new NodeVisitor () {
+            public boolean preVisit (Node node) {
+                return true;
+            }
+            public void postVisit (Node node) {
+                sorter.sort (node.getChildren ());
+            }
+        });
+        markModified ();
     }
 
     /**
@@ -279,6 +309,7 @@ public class Node implements Comparable<Node> {
      */
     public void collapse (Boolean collapsed) {
         this.collapsed = collapsed;
+        markModified ();
     }
 
     /**
@@ -323,9 +354,16 @@ public class Node implements Comparable<Node> {
      *  @return The distance of this Node from the root node.
      */
     public Double distanceFromRootNode () {
+        // Find the path to the root node.
+        ArrayList<Node> path = new ArrayList<Node> ();
+        for (Node node = this; node.getParent () != null;
+            node = node.getParent ()) {
+            path.add (node);
+        }
+        // Sum the distances starting from the root node.
         Double distanceFromRoot = 0.0d;
-        if (parent != null) {
-            distanceFromRoot = distance + parent.distanceFromRootNode ();
+        for (int i = path.size () - 1; i >= 0; i --) {
+            distanceFromRoot = path.get (i).getDistance () + distanceFromRoot;
         }
         return distanceFromRoot;
     }
@@ -336,15 +374,8 @@ public class Node implements Comparable<Node> {
      *  @return The maximum distance of this Node from a leaf node.
      */
     public Double maximumDistanceFromLeafNode () {
-        Double maximumDistance = 0.0d;
-        for (Node child: children) {
-            Double childDistance =
-                child.maximumDistanceFromLeafNode () + child.getDistance ();
-            if (childDistance > maximumDistance) {
-                maximumDistance = childDistance;
-            }
-        }
-        return maximumDistance;
+        measure ();
+        return maximumLeafDistance;
     }
 
     /**
@@ -353,15 +384,8 @@ public class Node implements Comparable<Node> {
      *  @return The minimum distance of this Node from a leaf node.
      */
     public Double minimumDistanceFromLeafNode () {
-        Double minimumDistance = Double.MAX_VALUE;
-        for (Node child: children) {
-            Double childDistance =
-                child.minimumDistanceFromLeafNode () + child.getDistance ();
-            if (childDistance < minimumDistance) {
-                minimumDistance = childDistance;
-            }
-        }
-        return minimumDistance;
+        measure ();
+        return minimumLeafDistance;
     }
 
     /**
@@ -371,25 +395,49 @@ public class Node implements Comparable<Node> {
      *  @return The maximum distance between the leaf Node ancestors.
      */
     public Double maximumDistanceBetweenLeafNodes () {
-        ArrayList<Double> childDistance = new ArrayList<Double> ();
-        for (Node child: children) {
-            childDistance.add (
-                child.maximumDistanceFromLeafNode () + child.getDistance ()
-            );
-        }
-        Double distance = 0.0d;
-        // Sort the child distances if there are more than two children.  The
-        // two children with the maximum distance between the leaf node
-        // ancestors will be used.
-        if (childDistance.size () > 2) {
-            Heapsorter<Double> sorter = new Heapsorter<Double> ();
-            sorter.sort (childDistance);
-        }
-        // Calculate the maximum distance between the leaf Node ancestors.
-        if (childDistance.size () >= 2) {
-            distance = childDistance.get (0) + childDistance.get (1);
-        }
-        return distance;
+        measure ();
+        return leafDiameter;
+    }
+
+    /**
+     *  Returns whether or not this Node or one of its descendants has been
+     *  modified since the last call to clearModified.  The ancestors of a
+     *  modified Node are always modified as well, so a tree can check its
+     *  root node to find out if any of its nodes have been modified.
+     *
+     *  @return True if this Node has been modified.
+     */
+    public boolean isModified () {
+        return modified;
+    }
+
+    /**
+     *  Returns whether or not this Node or one of its descendants has been
+     *  renamed since the last call to clearModified.  Renaming a Node does
+     *  not change the shape of the tree or its distances, so it does not
+     *  mark the Node as modified.
+     *
+     *  @return True if this Node has been renamed.
+     */
+    public boolean isRenamed () {
+        return renamed;
+    }
+
+    /**
+     *  Clear the modified and renamed status of this Node and its
+     *  descendants.  Only the modified or renamed descendants are visited.
+     */
+    public void clearModified () {
+        walk (new NodeVisitor () {
+            public boolean preVisit (Node node) {
+                if (! node.modified && ! node.renamed) return false;
+                node.modified = false;
+                node.renamed = false;
+                return true;
+            }
+            public void postVisit (Node node) {
+            }
+        });
     }
 
     /**
@@ -398,15 +446,19 @@ public class Node implements Comparable<Node> {
      *  @return The descendants of this Node.
      */
     public ArrayList<Node> getDescendants () {
-        ArrayList<Node> descendants = new ArrayList<Node> ();
-        for (Node child: children) {
-            if (child.isLeafNode () || child.isCollapsed ()) {
-                descendants.add (child);
+        final ArrayList<Node> descendants = new ArrayList<Node> ();
+        walk (new NodeVisitor () {
+            public boolean preVisit (Node node) {
+                if (node == Node.this) return true;
+                if (node.isLeafNode () || node.isCollapsed ()) {
+                    descendants.add (node);
+                    return false;
+                }
+                return true;
             }
-            else {
-                descendants.addAll (child.getDescendants ());
+            public void postVisit (Node node) {
             }
-        }
+        });
         return descendants;
     }
 
@@ -416,35 +468,120 @@ public class Node implements Comparable<Node> {
      *  @return The collapsed descendants of this Node.
      */
     public ArrayList<Node> getCollapsed () {
-        ArrayList<Node> collapsed = new ArrayList<Node> ();
-        for (Node child: children) {
-            if (child.isCollapsed ()) {
-                collapsed.add (child);
+        final ArrayList<Node> collapsed = new ArrayList<Node> ();
+        walk (new NodeVisitor () {
+            public boolean preVisit (Node node) {
+                if (node == Node.this) return true;
+                if (node.isCollapsed ()) {
+                    collapsed.add (node);
+                    return false;
+                }
+                return true;
             }
-            else {
-                collapsed.addAll (child.getCollapsed ());
+            public void postVisit (Node node) {
             }
-        }
+        });
         return collapsed;
     }
 
     /**
      *  Returns whether or not this Node has a certain descendant.
      *
-     *  @return The collapsed descendants of this Node.
+     *  @param node The possible descendant.
+     *  @return True if the Node is a descendant of this Node.
      */
     public boolean hasDescendant (Node node) {
-        boolean has = false;
-        for (Node child: children) {
-            if (child == node) {
-                has = true;
+        // Walk up from the node looking for this Node.
+        for (Node ancestor = node.getParent (); ancestor != null;
+            ancestor = ancestor.getParent ()) {
+            if (ancestor == this) return true;
+        }
+        return false;
+    }
+
+    /**
+     *  Returns a fingerprint of this Node and all of its descendants.  The
+     *  fingerprint is a hash of the names of the nodes and of the branch
+     *  lengths rounded to five decimal places, which does not depend on the
+     *  order of the children of each node.  Nodes that are equal according
+     *  to compareTo have the same fingerprint, as long as their branch
+     *  lengths round to the same values, so nodes with different
+     *  fingerprints can be treated as different without comparing them.
+     *  The fingerprint is calculated once for each node and cached until
+     *  the node or one of its descendants is modified.
+     *
+     *  @return The fingerprint of this Node.
+     */
+    public long getFingerprint () {
+        if (fingerprinted) return fingerprint;
+        // Calculate the missing fingerprints from the bottom up.  A node
+        // with a fingerprint always has descendants with fingerprints.
+        walk (new NodeVisitor () {
+            public boolean preVisit (Node node) {
+                return ! node.fingerprinted;
             }
-            else {
-                has = child.hasDescendant (node);
+            public void postVisit (Node node) {
+                if (node.fingerprinted) return;
+                // The branch lengths of the children of the root node are
+                // compared by their sum, see compareTo.
+                Double rootLength = 0.0d;
+                if (node.isRootNode ()) {
+                    for (Node child: node.getChildren ()) {
+                        rootLength += child.getDistance ();
+                    }
+                }
+                long hash = 0L;
+                for (Node child: node.getChildren ()) {
+                    Double length = child.getDistance ();
+                    if (node.isRootNode ()) length = rootLength;
+                    hash += Hashing.mix (
+                        child.fingerprint +
+                        Hashing.PRIME * Math.round (length * 1.0e5d)
+                    );
+                }
+                hash += Hashing.PRIME * node.getName ().hashCode ();
+                if (node.isRootNode ()) hash = ~ hash;
+                node.fingerprint = Hashing.mix (hash);
+                node.fingerprinted = true;
+            }
+        });
+        return fingerprint;
+    }
+
+    /**
+     *  Walk this Node and all of its descendants depth first, calling the
+     *  visitor before and after the children of each Node are walked.  An
+     *  explicit stack is used instead of recursion, so the depth of the
+     *  tree is not limited by the size of the call stack.
+     *
+     *  @param visitor The NodeVisitor to call for each Node.
+     */
+    public void walk (NodeVisitor visitor) {
+        ArrayList<Node> stack = new ArrayList<Node> ();
+        // Whether the Node on the stack is waiting for its postVisit.
+        ArrayList<Boolean> visited = new ArrayList<Boolean> ();
+        stack.add (this);
+        visited.add (false);
+        while (! stack.isEmpty ()) {
+            int top = stack.size () - 1;
+            Node node = stack.remove (top);
+            if (visited.remove (top)) {
+                visitor.postVisit (node);
+                continue;
+            }
+            boolean descend = visitor.preVisit (node);
+            // Revisit this Node after its children.
+            stack.add (node);
+            visited.add (true);
+            if (! descend) continue;
+            // Push the children in reverse order so that they are visited
+            // in order.
+            ArrayList<Node> nodeChildren = node.getChildren ();
+            for (int i = nodeChildren.size () - 1; i >= 0; i --) {
+                stack.add (nodeChildren.get (i));
+                visited.add (false);
             }
-            if (has) break;
         }
-        return has;
     }
 
     /**
@@ -453,26 +590,16 @@ public class Node implements Comparable<Node> {
      *  @return A Newick formatted String representing this Node.
      */
     public String toString () {
-        String newick = "";
-        for (int i = 0; i < children.size (); i ++) {
-            if (i != 0) {
-                newick += ",";
-            }
-            newick += children.get (i);
-        }
-        if (newick.length () > 0) {
-            newick = "(" + newick + ")";
-        }
-        if (isLeafNode () || isCollapsed ()) {
-            newick += String.format ("%s:%.5f", name, distance);
+        StringWriter newick = new StringWriter ();
+        try {
+            NewickWriter writer = new NewickWriter (newick);
+            writer.write (this);
+            writer.flush ();
         }
-        else {
-            newick += String.format (":%.5f", distance);
+        catch (IOException e) {
+            // A StringWriter does not throw IOExceptions.
         }
-        if (parent == null) {
-            newick += ";";
-        }
-        return newick;
+        return newick.toString ();
     }
 
     /**
@@ -511,6 +638,93 @@ public class Node implements Comparable<Node> {
         this.y = y;
     }
 
+    /**
+     *  Private method to discard the cached fingerprint and distances of
+     *  this Node and of its ancestors, and mark them as modified.  Only the
+     *  path to the root node is visited, and it ends early at the first
+     *  ancestor that has already been marked and has nothing cached.  The
+     *  ancestors of such a Node have nothing cached either, since they are
+     *  always calculated from those of their descendants.
+     */
+    private void invalidateMetrics () {
+        for (Node node = this; node != null; node = node.getParent ()) {
+            if (node.modified && ! node.fingerprinted && ! node.measured) {
+                break;
+            }
+            node.modified = true;
+            node.fingerprinted = false;
+            node.measured = false;
+        }
+    }
+
+    /**
+     *  Private method to discard the cached fingerprint of this Node and of
+     *  its ancestors, which include the names of the nodes, and mark them as
+     *  renamed.  The distances do not depend on the names and are kept.
+     */
+    private void markRenamed () {
+        for (Node node = this; node != null; node = node.getParent ()) {
+            if (node.renamed && ! node.fingerprinted) break;
+            node.renamed = true;
+            node.fingerprinted = false;
+        }
+    }
+
+    /**
+     *  Private method to mark this Node and its ancestors as modified,
+     *  without discarding their cached fingerprint and distances.
+     */
+    private void markModified () {
+        for (Node node = this; node != null && ! node.modified;
+            node = node.getParent ()) {
+            node.modified = true;
+        }
+    }
+
+    /**
+     *  Private method to calculate the missing distances of this Node and
+     *  its descendants from the bottom up.  Descendants with current
+     *  distances are not visited, so after a modification only the path to
+     *  the modified Node is calculated again.
+     */
+    private void measure () {
+        if (measured) return;
+        walk (new NodeVisitor () {
+            public boolean preVisit (Node node) {
+                return ! node.measured;
+            }
+            public void postVisit (Node node) {
+                if (node.measured) return;
+                double maximum = 0.0d;
+                double minimum = Double.MAX_VALUE;
+                // The two largest distances from a child to its leaf nodes.
+                double first = 0.0d;
+                double second = 0.0d;
+                int count = 0;
+                for (Node child: node.getChildren ()) {
+                    double length =
+                        child.maximumLeafDistance + child.getDistance ();
+                    if (length > maximum) maximum = length;
+                    if (count == 0 || length > first) {
+                        second = first;
+                        first = length;
+                    }
+                    else if (count == 1 || length > second) {
+                        second = length;
+                    }
+                    count ++;
+                    double shortest =
+                        child.minimumLeafDistance + child.getDistance ();
+                    if (shortest < minimum) minimum = shortest;
+                }
+                node.maximumLeafDistance = maximum;
+                node.minimumLeafDistance = minimum;
+                node.leafDiameter = count >= 2 ? first + second : 0.0d;
+                node.measured = true;
+            }
+        });
+    }
+
     /**
      *  The name of this Node.
      */
@@ -553,4 +767,39 @@ public class Node implements Comparable<Node> {
      */
     private Double y;
 
+    /**
+     *  The cached fingerprint of this Node, valid only when fingerprinted is
+     *  true.
+     */
+    private long fingerprint;
+
+    /**
+     *  Whether or not the fingerprint of this Node has been calculated.
+     */
+    private boolean fingerprinted;
+
+    /**
+     *  The cached maximum and minimum distances of this Node from a leaf
+     *  node, and the maximum distance between its leaf nodes, valid only
+     *  when measured is true.
+     */
+    private double maximumLeafDistance;
+    private double minimumLeafDistance;
+    private double leafDiameter;
+
+    /**
+     *  Whether or not the distances of this Node have been calculated.
+     */
+    private boolean measured;
+
+    /**
+     *  Whether or not this Node or one of its descendants has been modified.
+     */
+    private boolean modified;
+
+    /**
+     *  Whether or not this Node or one of its descendants has been renamed.
+     */
+    private boolean renamed;
+
 }
@@ -0,0 +1,55 @@
+/*
+ *    Ecotype Simulation models the sequence diversity within a bacterial
+ *    clade as the evolutionary result of net ecotype formation and periodic
+ *    selection, yielding a certain number of ecotypes.
+ *
+ *    Copyright (C) 2019  Jason M. Wood, Montana State University
+ *
+ *    This program is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation, either version 2 of the License, or
+ *    (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+
+package ecosim.tree;
+
+/**
+ *  A NodeVisitor is called for each Node of a tree walked by Node.walk.
+ *  Nodes are walked depth first using an explicit stack, so that very deep
+ *  trees can be processed without growing the call stack.
+ *
+ *  @author Jason M. Wood
+ *  @copyright GNU General Public License
+ */
+public interface NodeVisitor {
+
+    /**
+     *  Visit a Node before any of its children are visited.  The children
+     *  of the Node are read after this method returns, so the visitor may
+     *  modify them.
+     *
+     *  @param node The Node being visited.
+     *  @return True if the children of the Node should be visited, false
+     *  to skip them.
+     */
+    public boolean preVisit (Node node);
+
+    /**
+     *  Visit a Node after all of its children have been visited.  This is
+     *  called even when preVisit returned false for the Node.
+     *
+     *  @param node The Node being visited.
+     */
+    public void postVisit (Node node);
+
+}
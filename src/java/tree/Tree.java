@@ -32,7 +32,11 @@ import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.Reader;
 import java.io.StringReader;
+import java.io.Writer;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
 
 /**
  *  Reads in a Newick tree from a file and provides options to traverse it.
@@ -96,6 +100,15 @@ public class Tree {
         root = new Node (tree.getRoot ());
     }
 
+    /**
+     *  Constructor for objects of class Tree.
+     *
+     *  @param tree CompactTree to use.
+     */
+    public Tree (CompactTree tree) {
+        root = tree.toNode ();
+    }
+
     /**
      *  Compare this tree with another.
      *
@@ -103,23 +116,62 @@ public class Tree {
      *  @return 0 if the trees are equal, -1 or 1 otherwise.
      */
     public int compareTo (Tree other) {
+        // Trees with different fingerprints are never equal, so the nodes
+        // only need to be compared when the fingerprints match.
+        long a = root.getFingerprint ();
+        long b = other.getRoot ().getFingerprint ();
+        if (a != b) return a < b ? -1 : 1;
         return root.compareTo (other.getRoot ());
     }
 
+    /**
+     *  Returns the fingerprint of this tree, see Node.getFingerprint.
+     *
+     *  @return The fingerprint of this tree.
+     */
+    public long getFingerprint () {
+        return root.getFingerprint ();
+    }
+
     /**
      *  Returns the maximum diversity of this tree.
      *
      *  @return The maximum diversity of this tree.
      */
     public Double getDiversity () {
+        CladeStatistics clade = getCladeStatistics ();
         Double diversity = 0.0d;
+        // The children of the root node are in the same order in the
+        // compact copy of this tree.
+        int index = clade.getTree ().getFirstChild (0);
         for (Node child: root.getChildren ()) {
-            if (child.isOutgroup ()) continue;
-            diversity = 1.0d - child.maximumDistanceBetweenLeafNodes ();
+            if (! child.isOutgroup ()) {
+                diversity =
+                    1.0d - clade.maximumDistanceBetweenLeafNodes (index);
+            }
+            index = clade.getTree ().getNextSibling (index);
         }
         return diversity;
     }
 
+    /**
+     *  Returns the clade statistics of every node of this tree, indexed by
+     *  the pre-order position of the nodes as in toCompactTree.  The
+     *  statistics are calculated in parallel the first time they are needed,
+     *  and kept until the shape or the distances of this tree change.
+     *  Renaming nodes keeps the statistics, so the names of the nodes in
+     *  their compact tree are the names at the time they were calculated.
+     *
+     *  @return The clade statistics.
+     */
+    public CladeStatistics getCladeStatistics () {
+        checkModified ();
+        if (statistics == null) {
+            statistics = toCompactTree ().getStatistics ();
+        }
+        return statistics;
+    }
+
     /**
      *  Returns the root node of this tree.
      *
@@ -129,6 +181,15 @@ public class Tree {
         return root;
     }
 
+    /**
+     *  Returns a compact copy of this tree.
+     *
+     *  @return The CompactTree copy of this tree.
+     */
+    public CompactTree toCompactTree () {
+        return new CompactTree (root);
+    }
+
     /**
      *  Get the paint method.
      *
@@ -163,7 +224,7 @@ public class Tree {
      *  @return Node maximum width of the tree.
      */
     public Double maximumWidth () {
-        return root.maximumDistanceFromLeafNode ();
+        return getCladeStatistics ().maximumDistanceFromLeafNode (0);
     }
 
     /**
@@ -175,7 +236,7 @@ public class Tree {
      *  @return Node maximum X value of the tree.
      */
     public Double maximumX () {
-        return root.maximumDistanceFromLeafNode ();
+        return getCladeStatistics ().maximumDistanceFromLeafNode (0);
     }
 
     /**
@@ -195,19 +256,23 @@ public class Tree {
      *
      *  @return The number of living descendants of the Node.
      */
-    public int numberOfDescendants (Node node) {
-        int descendants = 0;
-        boolean paintCollapsed = (paintMethod == PAINT_METHOD_COLLAPSED);
-        for (Node child: node.getChildren ()) {
-            if (child.isLeafNode () ||
-                (child.isCollapsed () && paintCollapsed)) {
-                descendants ++;
+    public int numberOfDescendants (final Node node) {
+        final boolean paintCollapsed = (paintMethod == PAINT_METHOD_COLLAPSED);
+        final int[] descendants = new int[] { 0 };
+        node.walk (new NodeVisitor () {
+            public boolean preVisit (Node child) {
+                if (child == node) return true;
+                if (child.isLeafNode () ||
+                    (child.isCollapsed () && paintCollapsed)) {
+                    descendants[0] ++;
+                    return false;
+                }
+                return true;
             }
-            else {
-                descendants += numberOfDescendants (child);
+            public void postVisit (Node child) {
             }
-        }
-        return descendants;
+        });
+        return descendants[0];
     }
 
     /**
@@ -217,13 +282,9 @@ public class Tree {
      *  @return Node of the descendant.
      */
     public Node getDescendant (String name) {
-        Node namedDescendant = new Node ();
-        for (Node descendant: root.getDescendants ()) {
-            if (descendant.getName ().equals (name)) {
-                namedDescendant = descendant;
-                break;
-            }
-        }
+        buildIndex ();
+        Node namedDescendant = descendantIndex.get (name);
+        if (namedDescendant == null) namedDescendant = new Node ();
         return namedDescendant;
     }
 
@@ -291,39 +352,62 @@ public class Tree {
             grandparent.removeChild (parent);
             grandparent.addChild (otherChild);
         }
+        invalidate ();
     }
 
     /**
-     *  Make this tree binary.
+     *  Add copies of leaf node descendants to the tree.
+     *
+     *  Each descendant with copies becomes an internal node, keeping its
+     *  distance, with the descendant and its copies as children that have
+     *  a distance of zero.  The new internal nodes are not binary, see
+     *  makeBinary.
+     *
+     *  @param copies The names of the copies, by the name of the descendant.
      */
-    public void makeBinary () {
-        makeBinary (root);
+    public void addCopies (Map<String, ArrayList<String>> copies) {
+        for (Node descendant: root.getDescendants ()) {
+            if (! descendant.isLeafNode ()) continue;
+            String name = descendant.getName ();
+            ArrayList<String> names = copies.get (name);
+            if (names == null || names.isEmpty ()) continue;
+            descendant.setName ("");
+            descendant.addChild (new Node (name, 0.0d));
+            for (String copy: names) {
+                descendant.addChild (new Node (copy, 0.0d));
+            }
+        }
+        invalidate ();
     }
 
     /**
-     *  Private recursive method to make this tree binary.
-     *
-     *  @param node The current node being analyzed.
+     *  Make this tree binary.
      */
-    private void makeBinary (Node node) {
-        ArrayList<Node> children = new ArrayList<Node> (node.getChildren ());
-        // If this node has more than 2 children, split the node in two.
-        if (children.size () > 2) {
-            // Skip the first child.
-            children.remove (0);
-            // Move all remaining children to a new parent.
-            Node parent = new Node ();
-            for (Node child: children) {
-                node.removeChild (child);
-                parent.addChild (child);
+    public void makeBinary () {
+        root.walk (new NodeVisitor () {
+            public boolean preVisit (Node node) {
+                ArrayList<Node> children =
+                    new ArrayList<Node> (node.getChildren ());
+                // If this node has more than 2 children, split the node in
+                // two.  The new parent is visited after this node, so it
+                // will be split further if needed.
+                if (children.size () > 2) {
+                    // Skip the first child.
+                    children.remove (0);
+                    // Move all remaining children to a new parent.
+                    Node parent = new Node ();
+                    for (Node child: children) {
+                        node.removeChild (child);
+                        parent.addChild (child);
+                    }
+                    // Add the new parent as a child to this node.
+                    node.addChild (parent);
+                }
+                return true;
             }
-            // Add the new parent as a child to this node.
-            node.addChild (parent);
-        }
-        // Make sure each child is binary as well.
-        for (Node child: node.getChildren ()) {
-            makeBinary (child);
-        }
+            public void postVisit (Node node) {
+            }
+        });
     }
 
     /**
@@ -371,6 +455,7 @@ public class Tree {
         }
         // Save the the new root.
         root = newRoot;
+        invalidate ();
     }
 
     /**
@@ -388,10 +473,23 @@ public class Tree {
      *  @return Newick formatted String containing the tree.
      */
     public String toString () {
-        validateTree (root);
+        validate ();
         return root.toString ();
     }
 
+    /**
+     *  Write this tree in Newick format to the given Writer, without a
+     *  trailing line separator.
+     *
+     *  @param writer The Writer to write the Newick tree to.
+     */
+    public void toNewick (Writer writer) throws IOException {
+        validate ();
+        NewickWriter out = new NewickWriter (writer);
+        out.write (root);
+        out.flush ();
+    }
+
     /**
      *  Save the tree data in this object to a Newick formatted file.
      *
@@ -420,6 +518,13 @@ public class Tree {
         return success;
     }
 
+    /**
+     *  Validate this tree, removing internal nodes with a single child.
+     */
+    void validate () {
+        validateTree (root);
+    }
+
     /**
      *  Paint the tree using the given Painter.
      *
@@ -429,20 +534,21 @@ public class Tree {
         int fontHeight = painter.fontHeight ();
         int fontWidth = painter.fontWidth ();
         int xSpacer = fontWidth / 2;
-        // Calculate the XY location of all nodes.
-        calculateNodeXY (root, 0.0d);
+        // Get the XY location of all nodes.
+        TreeLayout layout = getLayout ();
         // Calculate the max X value.
         int max = 0;
-        for (Node node: getDescendants ()) {
-            String name = node.getName ();
+        for (int i = 0; i < layout.size (); i ++) {
+            if (! layout.isDescendant (i)) continue;
+            String name = layout.getNode (i).getName ();
             int labelWidth = painter.stringWidth (name);
             int x = fontWidth + labelWidth + Math.round (
-                node.getX ().floatValue () * xModifier
+                (float)layout.getX (i) * xModifier
             );
             if (x > max) max = x;
         }
         // Calculate the height and width needed for the tree.
-        int height = fontHeight * (size () + 3);
+        int height = fontHeight * (layout.numberOfDescendants (0) + 3);
         int width = max;
         // Make room for the demarcation line if needed.
         if (paintMethod == PAINT_METHOD_DEMARCATED) {
@@ -450,8 +556,9 @@ public class Tree {
             width += 100;
             // Add room for the label.
             int maxLabel = 0;
-            for (Node node: getCollapsed ()) {
-                String name = node.getName ();
+            for (int i = 0; i < layout.size (); i ++) {
+                if (! layout.isCollapsed (i)) continue;
+                String name = layout.getNode (i).getName ();
                 int labelWidth = painter.stringWidth (name);
                 if (labelWidth > maxLabel) maxLabel = labelWidth;
             }
@@ -459,10 +566,10 @@ public class Tree {
         }
         // Paint the tree.
         painter.start (width, height);
-        paintNode (painter, root);
+        paintNode (painter, layout);
         paintScaleBar (painter, 25, height - fontHeight);
         if (paintMethod == PAINT_METHOD_DEMARCATED) {
-            paintDemarcation (painter, root, max + 10);
+            paintDemarcation (painter, layout, max + 10);
         }
         painter.end ();
     }
@@ -487,119 +594,156 @@ public class Tree {
      *  @return The last common ancestor node of the descendants.
      */
     public Node lastCommonAncestor (ArrayList<String> names) {
-        ArrayList<Node> descendants = new ArrayList<Node> ();
+        buildIndex ();
+        Node ancestor = null;
         for (String name: names) {
-            descendants.add (getDescendant (name));
+            Node descendant = descendantIndex.get (name);
+            if (descendant == null) continue;
+            if (ancestor == null) {
+                ancestor = descendant;
+            }
+            else {
+                ancestor = lastCommonAncestor (ancestor, descendant);
+            }
         }
-        if (descendants.isEmpty ()) return null;
-        return lastCommonAncestor (descendants, descendants.get (0));
+        return ancestor;
     }
 
     /**
-     *  A private recursive method to find the last common ancestor node for
-     *  the given descendants.
+     *  Find the last common ancestor node of two nodes in this tree, using
+     *  a range minimum query over the Euler tour of the tree.
      *
-     *  @param descendants The list of descendants.
-     *  @param node The current node being checked.
-     *  @return The last common ancestor node of the descendants.
+     *  @param a The first node.
+     *  @param b The second node.
+     *  @return The last common ancestor node of the two nodes.
      */
-    private Node lastCommonAncestor (ArrayList<Node> descendants, Node node) {
-        boolean has = true;
-        for (Node descendant: descendants) {
-            has &= node == descendant || node.hasDescendant (descendant);
-        }
-        if (has) {
-            return node;
-        }
-        else {
-           return lastCommonAncestor (descendants, node.getParent ());
-        }
+    public Node lastCommonAncestor (Node a, Node b) {
+        buildIndex ();
+        Integer first = tourIndex.get (a);
+        Integer second = tourIndex.get (b);
+        if (first == null || second == null) return null;
+        int low = Math.min (first, second);
+        int high = Math.max (first, second);
+        // Find the shallowest node of the tour between the two nodes using
+        // two overlapping ranges from the sparse table.
+        int level = 31 - Integer.numberOfLeadingZeros (high - low + 1);
+        int x = sparseTable[level][low];
+        int y = sparseTable[level][high - (1 << level) + 1];
+        return tourDepth[x] <= tourDepth[y] ? tour[x] : tour[y];
     }
 
     /**
-     *  Recursive method to paint a node and all of its descendants.
+     *  Discard the descendant name index, the last common ancestor index,
+     *  the clade statistics and the cached layouts, so that they are rebuilt
+     *  the next time they are needed.  Modifications made to the Nodes of
+     *  this tree are detected and discard them automatically, so this only
+     *  needs to be called after replacing the root node.
+     */
+    public void invalidate () {
+        statistics = null;
+        descendantIndex = null;
+        tourIndex = null;
+        tour = null;
+        tourDepth = null;
+        sparseTable = null;
+        layouts = null;
+    }
+
+    /**
+     *  Private method to paint the root node and all of its descendants.
      *
      *  @param painter The Painter to use.
-     *  @param node The Node to paint.
+     *  @param layout The layout of the tree.
      */
-    private void paintNode (Painter painter, Node node) {
+    private void paintNode (Painter painter, TreeLayout layout) {
         int fontHeight = painter.fontHeight ();
         int fontWidth = painter.fontWidth ();
         int stroke = 1;
-        int demarcationStroke = 10;
         int yModifier = fontHeight;
         int xSpacer = (int)Math.floor (0.5d * fontWidth);
         int ySpacer = (int)Math.floor (0.5d * fontHeight);
-        int nodeX = fontWidth + Math.round (
-            node.getX ().floatValue () * xModifier
-        );
-        int nodeY = fontHeight + Math.round (
-            node.getY ().floatValue () * yModifier
-        );
         boolean paintCollapsed = (paintMethod == PAINT_METHOD_COLLAPSED);
-        boolean paintDemarcated = (paintMethod == PAINT_METHOD_DEMARCATED);
-        // Is this a leaf node or a collapsed node?
-        if (node.isLeafNode () || (node.isCollapsed () && paintCollapsed)) {
-            // Paint the name of the node.
-            painter.drawString (
-                node.getName (), nodeX + xSpacer, nodeY + ySpacer - 2
+        // The nodes of the layout are in pre-order, so each node is painted
+        // after its parent.
+        for (int i = 0; i < layout.size (); i ++) {
+            Node node = layout.getNode (i);
+            int nodeX = fontWidth + Math.round (
+                (float)layout.getX (i) * xModifier
             );
-        }
-        else {
-            for (Node child: node.getChildren ()) {
-                int childX = fontWidth + Math.round (
-                    child.getX ().floatValue () * xModifier
+            int nodeY = fontHeight + Math.round (
+                (float)layout.getY (i) * yModifier
+            );
+            // Paint the lines connecting the node to its parent.
+            int p = layout.getParent (i);
+            if (p >= 0) {
+                int parentX = fontWidth + Math.round (
+                    (float)layout.getX (p) * xModifier
                 );
-                int childY = fontHeight + Math.round (
-                    child.getY ().floatValue () * yModifier
+                int parentY = fontHeight + Math.round (
+                    (float)layout.getY (p) * yModifier
                 );
-                // Paint a vertical line connecting the node to its
-                // parent.
-                painter.drawLine (nodeX, nodeY, nodeX, childY, stroke);
-                // Paint a triangle if the child node is collapsed,
-                // otherwise draw a horizontal line.
-                int num = numberOfDescendants (child);
-                if (child.isCollapsed () && paintCollapsed && num > 1) {
-                    int a = childY - ySpacer + 1;
-                    int b = childY + ySpacer - 1;
+                // Paint a vertical line connecting the node to its parent.
+                painter.drawLine (parentX, parentY, parentX, nodeY, stroke);
+                // Paint a triangle if the node is collapsed, otherwise draw
+                // a horizontal line.
+                int num = layout.numberOfDescendants (i);
+                if (node.isCollapsed () && paintCollapsed && num > 1) {
+                    int a = nodeY - ySpacer + 1;
+                    int b = nodeY + ySpacer - 1;
                     // Paint a triangle.
-                    painter.drawLine (nodeX, childY, childX, a, stroke);
-                    painter.drawLine (nodeX, childY, childX, b, stroke);
-                    painter.drawLine (childX, a, childX, b, stroke);
+                    painter.drawLine (parentX, nodeY, nodeX, a, stroke);
+                    painter.drawLine (parentX, nodeY, nodeX, b, stroke);
+                    painter.drawLine (nodeX, a, nodeX, b, stroke);
                 }
                 else {
                     // Paint a horizontal line.
-                    painter.drawLine (
-                        nodeX, childY, childX, childY, stroke
-                    );
+                    painter.drawLine (parentX, nodeY, nodeX, nodeY, stroke);
                 }
-                // Paint the child node.
-                paintNode (painter, child);
+            }
+            // Paint the name of a leaf node or a collapsed node.
+            if (layout.isPaintLeaf (i)) {
+                painter.drawString (
+                    node.getName (), nodeX + xSpacer, nodeY + ySpacer - 2
+                );
             }
         }
     }
 
     /**
-     *  Recursive method to paint demarcation bars for the tree.
+     *  Private method to paint demarcation bars for the tree.
      *
      *  @param painter The Painter to use.
-     *  @param node The current Node to paint.
+     *  @param layout The layout of the tree.
      *  @param x The X location to start the demarcation bars.
      */
-    private void paintDemarcation (Painter painter, Node node, int x) {
-        if (node.isCollapsed ()) {
-            int fontHeight = painter.fontHeight ();
-            int fontWidth = painter.fontWidth ();
-            int demarcationStroke = 10;
-            int ySpacer = (int)Math.floor (0.5d * fontHeight);
+    private void paintDemarcation (Painter painter, TreeLayout layout,
+        int x) {
+        int fontHeight = painter.fontHeight ();
+        int fontWidth = painter.fontWidth ();
+        int demarcationStroke = 10;
+        int ySpacer = (int)Math.floor (0.5d * fontHeight);
+        for (int i = 0; i < layout.size (); i ++) {
+            if (! layout.isCollapsed (i)) continue;
+            Node node = layout.getNode (i);
             int minY = Integer.MAX_VALUE;
             int maxY = 0;
-            for (Node descendant: node.getDescendants ()) {
-                int y = fontHeight + Math.round (
-                    descendant.getY ().floatValue () * fontHeight
-                );
-                if (y < minY) minY = y;
-                if (y > maxY) maxY = y;
+            // Find the range of the descendants of the collapsed node, as
+            // returned by its getDescendants.
+            int end = layout.getSubtreeEnd (i);
+            int j = i + 1;
+            while (j < end) {
+                Node descendant = layout.getNode (j);
+                if (descendant.isLeafNode () || descendant.isCollapsed ()) {
+                    int y = fontHeight + Math.round (
+                        (float)layout.getY (j) * fontHeight
+                    );
+                    if (y < minY) minY = y;
+                    if (y > maxY) maxY = y;
+                    j = layout.getSubtreeEnd (j);
+                }
+                else {
+                    j ++;
+                }
             }
             int a = minY - ySpacer + 2;
             int b = maxY + ySpacer - 2;
@@ -607,11 +751,6 @@ public class Tree {
             painter.drawLine (x, a, x, b, demarcationStroke);
             painter.drawString (node.getName (), x + fontWidth, c);
         }
-        else {
-            for (Node child: node.getChildren ()) {
-                paintDemarcation (painter, child, x);
-            }
-        }
     }
 
     /**
@@ -637,6 +776,84 @@ public class Tree {
         painter.drawString (size.toString (), x3, y + fontHeight);
     }
 
+    /**
+     *  Private method to build the descendant name index and the last
+     *  common ancestor index if they are not current.  The name index
+     *  contains the same descendants as getDescendants, the first one found
+     *  for each name.  The last common ancestor index is a sparse table of
+     *  the shallowest node in each power of two sized range of the Euler
+     *  tour of the tree.
+     */
+    private void buildIndex () {
+        checkModified ();
+        if (descendantIndex == null) {
+            descendantIndex = new HashMap<String, Node> ();
+            for (Node node: root.getDescendants ()) {
+                if (descendantIndex.containsKey (node.getName ())) continue;
+                descendantIndex.put (node.getName (), node);
+            }
+        }
+        if (tour != null) return;
+        tourIndex = new IdentityHashMap<Node, Integer> ();
+        ArrayList<Node> nodes = new ArrayList<Node> ();
+        ArrayList<Integer> depths = new ArrayList<Integer> ();
+        // Walk the tree iteratively, recording each node when it is first
+        // entered and again each time one of its children is finished.
+        ArrayList<Node> stack = new ArrayList<Node> ();
+        ArrayList<Integer> next = new ArrayList<Integer> ();
+        stack.add (root);
+        next.add (0);
+        while (! stack.isEmpty ()) {
+            int top = stack.size () - 1;
+            Node node = stack.get (top);
+            int i = next.get (top);
+            ArrayList<Node> children = node.getChildren ();
+            if (i == 0) {
+                tourIndex.put (node, nodes.size ());
+                nodes.add (node);
+                depths.add (top);
+            }
+            if (i < children.size ()) {
+                next.set (top, i + 1);
+                stack.add (children.get (i));
+                next.add (0);
+            }
+            else {
+                stack.remove (top);
+                next.remove (top);
+                // Record the parent again now that this child is finished.
+                if (top > 0) {
+                    nodes.add (stack.get (top - 1));
+                    depths.add (top - 1);
+                }
+            }
+        }
+        int size = nodes.size ();
+        tour = nodes.toArray (new Node[size]);
+        tourDepth = new int[size];
+        for (int i = 0; i < size; i ++) {
+            tourDepth[i] = depths.get (i);
+        }
+        int levels = 32 - Integer.numberOfLeadingZeros (size);
+        sparseTable = new int[levels][];
+        sparseTable[0] = new int[size];
+        for (int i = 0; i < size; i ++) {
+            sparseTable[0][i] = i;
+        }
+        for (int k = 1; k < levels; k ++) {
+            int half = 1 << (k - 1);
+            int length = size - (1 << k) + 1;
+            int[] previous = sparseTable[k - 1];
+            int[] current = new int[length];
+            for (int i = 0; i < length; i ++) {
+                int x = previous[i];
+                int y = previous[i + half];
+                current[i] = tourDepth[x] <= tourDepth[y] ? x : y;
+            }
+            sparseTable[k] = current;
+        }
+    }
+
     /**
      *  Read a Newick formatted tree.
      *
@@ -655,79 +872,84 @@ public class Tree {
     }
 
     /**
-     *  Private recursive method to calculate the XY location of the node
-     *  and all of its descendants.
+     *  Private method to get the layout of the tree for the current paint
+     *  method.  Layouts are cached for each paint method until the tree is
+     *  modified.
      *
-     *  @param node The current Node.
-     *  @param height The current height.
+     *  @return The layout of the tree.
      */
-    private void calculateNodeXY (Node node, double height) {
-        boolean paintCollapsed = (paintMethod == PAINT_METHOD_COLLAPSED);
-        boolean paintDemarcated = (paintMethod == PAINT_METHOD_DEMARCATED);
-        Node parent = node.getParent ();
-        double x = 0.0d;
-        // The X coordinate is based on the node's distance from its parent.
-            x += node.getDistance ();
-        // Add the parent's X coordinate.
-        if (parent != null) x += parent.getX ();
-        // If the node is collapsed, add the descendants distance as well.
-        int num = numberOfDescendants (node);
-        if (node.isCollapsed () && paintCollapsed && num > 1) {
-            double max = node.maximumDistanceFromLeafNode ();
-            if (max < 0.01d) max = 0.01d;
-            x += max;
+    private TreeLayout getLayout () {
+        checkModified ();
+        if (layouts == null) layouts = new HashMap<Integer, TreeLayout> ();
+        TreeLayout layout = layouts.get (paintMethod);
+        if (layout == null) {
+            layout = new TreeLayout (this);
+            layouts.put (paintMethod, layout);
+        }
+        return layout;
+    }
+
+    /**
+     *  Private method to discard the cached indexes, statistics and layouts
+     *  if any of the Nodes of this tree have been modified since they were
+     *  built.  Renaming Nodes only discards the descendant name index, as
+     *  the rest depend on the shape and the distances of the tree alone.
+     *  Nodes keep track of their own modifications, so only the modified
+     *  Nodes are visited.
+     */
+    private void checkModified () {
+        if (root.isModified ()) {
+            invalidate ();
         }
-        node.setX (x);
-        // The Y coordinate is calculated differently for leaf and internal
-        // nodes.
-        if (node.isLeafNode () || (node.isCollapsed () && paintCollapsed)) {
-            node.setY (height);
+        else if (root.isRenamed ()) {
+            descendantIndex = null;
         }
         else {
-            double minY = Double.MAX_VALUE;
-            double maxY = 0.0d;
-            double h = height;
-            for (Node child: node.getChildren ()) {
-                calculateNodeXY (child, h);
-                int numLeaf = 1;
-                if (! (child.isLeafNode () ||
-                    (child.isCollapsed () && paintCollapsed))) {
-                    numLeaf = numberOfDescendants (child);
-                }
-                h += numLeaf;
-                double childY = child.getY ();
-                if (childY < minY) minY = childY;
-                if (childY > maxY) maxY = childY;
-            }
-            node.setY ((minY + maxY) / 2);
+            return;
         }
+        root.clearModified ();
     }
 
     /**
-     *  A private recursive method to validate all nodes descended from the
-     *  node requested. Valid internal nodes will have two child nodes, valid
+     *  A private method to validate all nodes descended from the node
+     *  requested. Valid internal nodes will have two child nodes, valid
      *  leaf nodes will have no children.
      *
-     *  @param node The current node being validated.
+     *  @param node The node to start validating from.
      */
     private void validateTree (Node node) {
-        ArrayList<Node> children = new ArrayList<Node> (node.getChildren ());
-        Node parent = node.getParent ();
-        if (children.size () == 1) {
-            Node child = children.get (0);
-            child.setDistance (child.getDistance () + node.getDistance ());
-            parent.addChild (child);
-            parent.removeChild (node);
-            validateTree (child);
-        }
-        else {
-            for (Node child: children) {
-                validateTree (child);
+        // Nodes with a single child are spliced out of the tree while it
+        // is being walked, so keep a stack of the nodes left to validate.
+        ArrayList<Node> stack = new ArrayList<Node> ();
+        stack.add (node);
+        while (! stack.isEmpty ()) {
+            Node current = stack.remove (stack.size () - 1);
+            ArrayList<Node> children =
+                new ArrayList<Node> (current.getChildren ());
+            if (children.size () == 1) {
+                Node child = children.get (0);
+                Node parent = current.getParent ();
+                child.setDistance (
+                    child.getDistance () + current.getDistance ()
+                );
+                parent.addChild (child);
+                parent.removeChild (current);
+            }
+            // Validate the children in order.
+            for (int i = children.size () - 1; i >= 0; i --) {
+                stack.add (children.get (i));
             }
         }
     }
 
     private Node root;
+    private HashMap<String, Node> descendantIndex;
+    private IdentityHashMap<Node, Integer> tourIndex;
+    private Node[] tour;
+    private int[] tourDepth;
+    private int[][] sparseTable;
+    private HashMap<Integer, TreeLayout> layouts;
+    private CladeStatistics statistics;
     private int paintMethod = PAINT_METHOD_NORMAL;
     private int xModifier = 5000;
 
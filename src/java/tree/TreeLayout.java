@@ -0,0 +1,269 @@
+/*
+ *    Ecotype Simulation models the sequence diversity within a bacterial
+ *    clade as the evolutionary result of net ecotype formation and periodic
+ *    selection, yielding a certain number of ecotypes.
+ *
+ *    Copyright (C) 2019  Jason M. Wood, Montana State University
+ *
+ *    This program is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation, either version 2 of the License, or
+ *    (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+
+package ecosim.tree;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ *  The layout of a tree for painting.  The X and Y location of each painted
+ *  node, and the number of painted leaf nodes below it, are calculated in a
+ *  single walk of the tree.  Nodes are stored in pre-order, so that the
+ *  painted descendants of a node occupy the range of indices following it.
+ *  The locations are not scaled, so a layout can be reused for any scale.
+ *
+ *  @author Jason M. Wood
+ *  @copyright GNU General Public License
+ */
+class TreeLayout {
+
+    /**
+     *  Calculate the layout of a tree using its current paint method.
+     *
+     *  @param tree The tree to lay out.
+     */
+    public TreeLayout (final Tree tree) {
+        final boolean paintCollapsed =
+            (tree.getPaintMethod () == Tree.PAINT_METHOD_COLLAPSED);
+        final Node root = tree.getRoot ();
+        nodes = new ArrayList<Node> ();
+        int capacity = 16;
+        parent = new int[capacity];
+        end = new int[capacity];
+        leaves = new int[capacity];
+        x = new double[capacity];
+        y = new double[capacity];
+        minY = new double[capacity];
+        maxY = new double[capacity];
+        flags = new byte[capacity];
+        // The indices of the nodes being walked.
+        final ArrayList<Integer> stack = new ArrayList<Integer> ();
+        // The height of the next leaf node, and the number of collapsed
+        // nodes on the path to the current node.
+        final double[] height = new double[] { 0.0d };
+        final int[] collapsed = new int[] { 0 };
+        root.walk (new NodeVisitor () {
+            public boolean preVisit (Node node) {
+                int i = add (node);
+                int p = stack.isEmpty () ? -1 : stack.get (stack.size () - 1);
+                parent[i] = p;
+                stack.add (i);
+                // The X coordinate is based on the node's distance from its
+                // parent.
+                double nodeX = 0.0d;
+                nodeX += node.getDistance ();
+                // Add the parent's X coordinate.
+                if (p >= 0) nodeX += x[p];
+                boolean paintLeaf = node.isLeafNode () ||
+                    (node.isCollapsed () && paintCollapsed);
+                // If the node is collapsed, add the descendants distance as
+                // well.
+                if (node.isCollapsed () && paintCollapsed) {
+                    leaves[i] = tree.numberOfDescendants (node);
+                    if (leaves[i] > 1) {
+                        double max = node.maximumDistanceFromLeafNode ();
+                        if (max < 0.01d) max = 0.01d;
+                        nodeX += max;
+                    }
+                }
+                x[i] = nodeX;
+                // Keep track of the nodes returned by getDescendants and
+                // getCollapsed of the root node.
+                if (p >= 0 && collapsed[0] == 0) {
+                    if (node.isLeafNode () || node.isCollapsed ()) {
+                        flags[i] |= DESCENDANT;
+                    }
+                    if (node.isCollapsed ()) flags[i] |= COLLAPSED;
+                }
+                if (p >= 0 && node.isCollapsed ()) collapsed[0] ++;
+                // Leaf nodes are stacked one above the other, internal
+                // nodes are placed after their children.
+                if (paintLeaf) {
+                    flags[i] |= PAINT_LEAF;
+                    y[i] = height[0];
+                    height[0] += 1;
+                    return false;
+                }
+                minY[i] = Double.MAX_VALUE;
+                maxY[i] = 0.0d;
+                return true;
+            }
+            public void postVisit (Node node) {
+                int i = stack.remove (stack.size () - 1);
+                int p = parent[i];
+                if (p >= 0 && node.isCollapsed ()) collapsed[0] --;
+                end[i] = nodes.size ();
+                // The Y coordinate of an internal node is midway between
+                // its children.
+                if (! isPaintLeaf (i)) y[i] = (minY[i] + maxY[i]) / 2;
+                if (p < 0) return;
+                if (y[i] < minY[p]) minY[p] = y[i];
+                if (y[i] > maxY[p]) maxY[p] = y[i];
+                leaves[p] += isPaintLeaf (i) ? 1 : leaves[i];
+            }
+        });
+        minY = null;
+        maxY = null;
+    }
+
+    /**
+     *  Returns the number of painted nodes.
+     *
+     *  @return The number of painted nodes.
+     */
+    public int size () {
+        return nodes.size ();
+    }
+
+    /**
+     *  Returns a painted node.
+     *
+     *  @param index The index of the node.
+     *  @return The node.
+     */
+    public Node getNode (int index) {
+        return nodes.get (index);
+    }
+
+    /**
+     *  Returns the index of the parent of a painted node.
+     *
+     *  @param index The index of the node.
+     *  @return The index of the parent, or -1 for the root node.
+     */
+    public int getParent (int index) {
+        return parent[index];
+    }
+
+    /**
+     *  Returns the index following the last painted descendant of a node.
+     *
+     *  @param index The index of the node.
+     *  @return The index following the painted descendants of the node.
+     */
+    public int getSubtreeEnd (int index) {
+        return end[index];
+    }
+
+    /**
+     *  Returns the unscaled X location of a painted node.
+     *
+     *  @param index The index of the node.
+     *  @return The X location of the node.
+     */
+    public double getX (int index) {
+        return x[index];
+    }
+
+    /**
+     *  Returns the unscaled Y location of a painted node.
+     *
+     *  @param index The index of the node.
+     *  @return The Y location of the node.
+     */
+    public double getY (int index) {
+        return y[index];
+    }
+
+    /**
+     *  Returns the number of descendants of a node, as defined by
+     *  Tree.numberOfDescendants.
+     *
+     *  @param index The index of the node.
+     *  @return The number of descendants of the node.
+     */
+    public int numberOfDescendants (int index) {
+        return leaves[index];
+    }
+
+    /**
+     *  Returns whether or not a node is painted as a leaf node.
+     *
+     *  @param index The index of the node.
+     *  @return True if the node is painted as a leaf node.
+     */
+    public boolean isPaintLeaf (int index) {
+        return (flags[index] & PAINT_LEAF) != 0;
+    }
+
+    /**
+     *  Returns whether or not a node is one of the descendants returned by
+     *  getDescendants of the root node.
+     *
+     *  @param index The index of the node.
+     *  @return True if the node is a descendant.
+     */
+    public boolean isDescendant (int index) {
+        return (flags[index] & DESCENDANT) != 0;
+    }
+
+    /**
+     *  Returns whether or not a node is one of the collapsed descendants
+     *  returned by getCollapsed of the root node.
+     *
+     *  @param index The index of the node.
+     *  @return True if the node is a collapsed descendant.
+     */
+    public boolean isCollapsed (int index) {
+        return (flags[index] & COLLAPSED) != 0;
+    }
+
+    /**
+     *  Private method to add a node to the layout.
+     *
+     *  @param node The node to add.
+     *  @return The index of the node.
+     */
+    private int add (Node node) {
+        int i = nodes.size ();
+        if (i == parent.length) {
+            int capacity = parent.length * 2;
+            parent = Arrays.copyOf (parent, capacity);
+            end = Arrays.copyOf (end, capacity);
+            leaves = Arrays.copyOf (leaves, capacity);
+            x = Arrays.copyOf (x, capacity);
+            y = Arrays.copyOf (y, capacity);
+            minY = Arrays.copyOf (minY, capacity);
+            maxY = Arrays.copyOf (maxY, capacity);
+            flags = Arrays.copyOf (flags, capacity);
+        }
+        nodes.add (node);
+        return i;
+    }
+
+    private static final byte PAINT_LEAF = 1;
+    private static final byte DESCENDANT = 2;
+    private static final byte COLLAPSED = 4;
+
+    private ArrayList<Node> nodes;
+    private int[] parent;
+    private int[] end;
+    private int[] leaves;
+    private double[] x;
+    private double[] y;
+    private double[] minY;
+    private double[] maxY;
+    private byte[] flags;
+
+}
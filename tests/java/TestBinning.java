@@ -1,8 +1,15 @@
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 
 import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.file.Files;
 import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
 
 import org.junit.Before;
 import org.junit.After;
@@ -12,8 +19,14 @@ import org.junit.runner.RunWith;
 import org.junit.runners.JUnit4;
 
 import ecosim.Binning;
+import ecosim.BinningCache;
+import ecosim.DistanceBinning;
+import ecosim.DistanceMatrix;
+import ecosim.IncrementalBinning;
 import ecosim.BinLevel;
 import ecosim.MainVariables;
+import ecosim.Sequence;
+import ecosim.tree.CompactTree;
 import ecosim.tree.Tree;
 import ecosim.tree.InvalidTreeException;
 
@@ -61,6 +74,242 @@ public class TestBinning {
         }
     }
 
+    @Test
+    public void testRun () throws InvalidTreeException {
+        Tree tree = new Tree (
+            "(((A:0.01,B:0.02):0.01,(C:0.005,D:0.01):0.02):0.03,E:0.05):0.0;"
+        );
+        tree.reroot ("E");
+        Binning b = new Binning (tree);
+        b.run ();
+        Integer[] expected = {
+            1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1,
+            2, 2, 2, 2, 2, 3, 3, 3, 3, 3, 3, 3, 4, 4,
+            4, 4, 4, 4, 4, 4, 4, 4, 4, 4, 4, 4, 4, 4
+        };
+        ArrayList<BinLevel> bins = b.getBins ();
+        assertEquals ("Unexpected number of levels.", expected.length, bins.size ());
+        for (int i = 0; i < bins.size (); i ++) {
+            assertEquals (
+                "Unexpected number of bins.",
+                expected[i], bins.get (i).getLevel ()
+            );
+        }
+    }
+
+    @Test
+    public void testRunClade () throws InvalidTreeException {
+        Tree tree = new Tree (
+            "(((A:0.01,B:0.02):0.01,(C:0.005,D:0.01):0.02):0.03,E:0.05):0.0;"
+        );
+        Tree clade = new Tree (
+            "((A:0.01,B:0.02):0.01,(C:0.005,D:0.01):0.02):0.0;"
+        );
+        // Bin the clade in place, and compare with a copy of the clade.
+        Binning a = new Binning (tree.toCompactTree (), 1);
+        a.run ();
+        Binning b = new Binning (clade);
+        b.run ();
+        assertEquals ("Unexpected clade bins.", b.toString (), a.toString ());
+    }
+
+    @Test
+    public void testRunCritLevels () throws InvalidTreeException {
+        Tree tree = new Tree (
+            "(((A:0.01,B:0.02):0.01,(C:0.005,D:0.01):0.02):0.03,E:0.05):0.0;"
+        );
+        tree.reroot ("E");
+        Binning a = new Binning (tree);
+        a.run ();
+        // Asking for the number of default levels gives the default levels.
+        assertTrue (
+            "Unexpected crit levels.",
+            Binning.critLevels (42) == Binning.binLevels
+        );
+        // Fewer levels are picked from the default levels.
+        Double[] fewer = Binning.critLevels (3);
+        assertEquals ("Unexpected crit level.", 0.800d, fewer[0], 0.0d);
+        assertEquals ("Unexpected crit level.", 0.980d, fewer[1], 0.0d);
+        assertEquals ("Unexpected crit level.", 1.000d, fewer[2], 0.0d);
+        // A finer grid includes all of the default levels.
+        Binning b = new Binning (tree);
+        b.setCritLevels (Binning.critLevels (201));
+        b.run ();
+        ArrayList<BinLevel> bins = b.getBins ();
+        assertEquals ("Unexpected number of levels.", 201, bins.size ());
+        int i = 0;
+        for (BinLevel bin: a.getBins ()) {
+            while (bins.get (i).getCrit () < bin.getCrit ()) i ++;
+            assertEquals (
+                "Unexpected crit level.", bin.getCrit (), bins.get (i).getCrit ()
+            );
+            assertEquals (
+                "Unexpected number of bins.",
+                bin.getLevel (), bins.get (i).getLevel ()
+            );
+        }
+        for (i = 1; i < bins.size (); i ++) {
+            assertTrue (
+                "Crit levels should increase.",
+                bins.get (i - 1).getCrit () < bins.get (i).getCrit ()
+            );
+            assertTrue (
+                "Number of bins should not decrease.",
+                bins.get (i - 1).getLevel () <= bins.get (i).getLevel ()
+            );
+        }
+    }
+
+    @Test
+    public void testIncrementalBinning () throws InvalidTreeException {
+        Tree tree = new Tree (
+            "((((A:0.01,B:0.02):0.01,(C:0.005,D:0.01):0.02):0.03," +
+            "(F:0.04,G:0.001):0.02):0.01,E:0.05):0.0;"
+        );
+        CompactTree compact = tree.toCompactTree ();
+        IncrementalBinning incremental = new IncrementalBinning (compact);
+        // Remove leaf A, then the clade containing F and G.
+        int[] removals = { 4, 9 };
+        for (int removal = 0; removal <= removals.length; removal ++) {
+            for (int i = 0; i < compact.size (); i ++) {
+                if (compact.isRemoved (i)) continue;
+                Binning b = new Binning (compact, i);
+                b.run ();
+                assertEquals (
+                    "Unexpected clade bins.",
+                    b.toString (),
+                    incremental.getBinning (i).toString ()
+                );
+                assertEquals (
+                    "Unexpected number of leaves.",
+                    compact.numberOfLeaves (i),
+                    incremental.numberOfLeaves (i)
+                );
+            }
+            if (removal < removals.length) {
+                incremental.removeNode (removals[removal]);
+            }
+        }
+    }
+
+    @Test
+    public void testBinningCache () throws Exception {
+        Tree tree = new Tree (
+            "(((A:0.01,B:0.02):0.01,(C:0.01,D:0.02):0.01):0.03,E:0.05):0.0;"
+        );
+        CompactTree compact = tree.toCompactTree ();
+        IncrementalBinning incremental = new IncrementalBinning (compact);
+        // Clades that only differ by name have the same fingerprint.
+        assertEquals (
+            "Unexpected fingerprint.",
+            incremental.getFingerprint (2),
+            incremental.getFingerprint (5)
+        );
+        assertTrue (
+            "Fingerprints should differ.",
+            incremental.getFingerprint (1) != incremental.getFingerprint (2)
+        );
+        // Evicted results are spilled to the directory and read back.
+        File directory = Files.createTempDirectory ("es2-test-").toFile ();
+        BinningCache cache = new BinningCache (1, directory);
+        long[] keys = new long[3];
+        for (int i = 0; i < keys.length; i ++) {
+            keys[i] = BinningCache.key (
+                incremental.getFingerprint (i), Binning.binLevels
+            );
+            cache.put (keys[i], incremental.getBinning (i).getBins ());
+        }
+        for (int i = 0; i < keys.length; i ++) {
+            Binning b = new Binning ();
+            b.setBins (cache.get (keys[i]));
+            assertEquals (
+                "Unexpected cached bins.",
+                incremental.getBinning (i).toString (),
+                b.toString ()
+            );
+        }
+        assertEquals ("Unexpected number of hits.", 3, cache.getHits ());
+        assertEquals ("Unexpected result.", null, cache.get (0L));
+        // A truncated spill file is treated as a missing result.
+        File spilled = new File (
+            directory, String.format ("binningCache-%016x.dat", keys[1])
+        );
+        List<String> lines = Files.readAllLines (spilled.toPath ());
+        Files.write (spilled.toPath (), lines.subList (0, 2));
+        assertEquals ("Unexpected result.", null, cache.get (keys[1]));
+        assertTrue ("Spill file should be removed.", ! spilled.exists ());
+        for (File file: directory.listFiles ()) {
+            file.delete ();
+        }
+        directory.delete ();
+    }
+
+    @Test
+    public void testDistanceBinning () {
+        ArrayList<Sequence> sequences = new ArrayList<Sequence> ();
+        sequences.add (new Sequence ("a", "AAAAAAAAAA"));
+        sequences.add (new Sequence ("b", "AAAAAAAAAC"));
+        sequences.add (new Sequence ("c", "aaaaaaaacc"));
+        sequences.add (new Sequence ("d", "GGGGGAAAAA"));
+        sequences.add (new Sequence ("e", "GGGGGAAAA-"));
+        sequences.add (new Sequence ("f", "TTTTTTTTTT"));
+        Double[] critLevels = { 1.00d, 0.95d, 0.85d, 0.75d, 0.25d, 0.00d };
+        Integer[] expected = { 6, 5, 4, 3, 2, 2 };
+        DistanceBinning distanceBinning = new DistanceBinning (sequences);
+        distanceBinning.setCritLevels (critLevels);
+        distanceBinning.run ();
+        ArrayList<BinLevel> bins = distanceBinning.getBins ();
+        assertEquals (
+            "Unexpected number of bin levels.", expected.length, bins.size ()
+        );
+        for (int i = 0; i < expected.length; i ++) {
+            assertEquals (
+                "Unexpected number of bins.",
+                expected[i], bins.get (i).getLevel ()
+            );
+        }
+    }
+
+    @Test
+    public void testDistanceMatrix () throws Exception {
+        ArrayList<Sequence> sequences = new ArrayList<Sequence> ();
+        sequences.add (new Sequence ("a", "ACGTACGTNN"));
+        sequences.add (new Sequence ("b", "acgtacgaRA"));
+        sequences.add (new Sequence ("c", "ACGTAC--AA"));
+        DistanceMatrix matrix = new DistanceMatrix (sequences);
+        assertEquals ("Unexpected distance.", 0.125f, matrix.distance (0, 1), 1e-6);
+        assertEquals ("Unexpected distance.", 0.0f, matrix.distance (0, 2), 1e-6);
+        assertEquals ("Unexpected distance.", 0.0f, matrix.distance (1, 2), 1e-6);
+        // Compare the tiled matrix, in memory and on disk, to the pairs.
+        String[] residues = { "A", "C", "G", "T", "-", "N" };
+        Random random = new Random (1);
+        sequences.clear ();
+        for (int i = 0; i < 150; i ++) {
+            StringBuilder sequence = new StringBuilder ();
+            for (int j = 0; j < 100; j ++) {
+                sequence.append (residues[random.nextInt (j < 50 ? 4 : 6)]);
+            }
+            sequences.add (new Sequence ("s" + i, sequence.toString ()));
+        }
+        matrix = new DistanceMatrix (sequences);
+        float[] distances = new float[(int)matrix.length ()];
+        matrix.fill (distances);
+        File file = File.createTempFile ("TestDistanceMatrix", ".dat");
+        matrix.write (file);
+        FloatBuffer saved = ByteBuffer.wrap (Files.readAllBytes (file.toPath ()))
+            .order (ByteOrder.LITTLE_ENDIAN).asFloatBuffer ();
+        file.delete ();
+        assertEquals ("Unexpected matrix size.", distances.length, saved.limit ());
+        for (int i = 0; i < 150; i ++) {
+            for (int j = i + 1; j < 150; j ++) {
+                int index = (int)matrix.index (i, j);
+                float expected = matrix.distance (i, j);
+                assertEquals ("Unexpected distance.", expected, distances[index], 0.0f);
+                assertEquals ("Unexpected distance.", expected, saved.get (index), 0.0f);
+            }
+        }
+    }
+
     private Binning binning;
 
 }
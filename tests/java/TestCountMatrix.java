@@ -0,0 +1,58 @@
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import ecosim.CountMatrix;
+
+public class TestCountMatrix {
+
+    @Test
+    public void testCountMatrix () throws Exception {
+        String counts =
+            "\tseqA\tseqB\tseqC\tseqD\r\n" +
+            "sample1\t0\t5\t0\t1\r\n" +
+            "sample2\t3\t0\t0\t0\r\n" +
+            "sample3\t2\t7\t0\t4\r\n";
+        File textFile = File.createTempFile ("TestCountMatrix", ".txt");
+        File binaryFile = new File (textFile.getPath () + ".csc");
+        Files.write (textFile.toPath (), counts.getBytes (StandardCharsets.UTF_8));
+        for (int open = 0; open < 2; open ++) {
+            // The second time, the matrix is read from the binary file.
+            CountMatrix matrix = new CountMatrix (textFile);
+            assertTrue ("Binary file not found.", binaryFile.exists ());
+            assertEquals ("Unexpected number of samples.", 3, matrix.numberOfSamples ());
+            assertEquals ("Unexpected number of sequences.", 4, matrix.numberOfSequences ());
+            assertEquals ("Unexpected number of counts.", 6L, matrix.numberOfCounts ());
+            assertEquals ("Sample mismatch.", "sample2", matrix.getSample (1));
+            assertEquals ("Sequence mismatch.", "seqD", matrix.getSequence (3));
+            assertEquals ("Unexpected count.", 7, matrix.getCount (2, 1));
+            assertEquals ("Unexpected count.", 0, matrix.getCount (1, 3));
+            assertEquals (
+                "Unexpected totals.", "[6, 3, 13]",
+                Arrays.toString (matrix.getSampleTotals ())
+            );
+            ArrayList<ArrayList<String>> ecotypes =
+                new ArrayList<ArrayList<String>> ();
+            ecotypes.add (new ArrayList<String> (Arrays.asList ("seqA", "seqC")));
+            ecotypes.add (new ArrayList<String> (
+                Arrays.asList ("seqB", "seqD", "outgroup")
+            ));
+            long[][] totals = matrix.getEcotypeCounts (ecotypes);
+            assertEquals ("Unexpected totals.", "[0, 3, 2]", Arrays.toString (totals[0]));
+            assertEquals ("Unexpected totals.", "[6, 0, 11]", Arrays.toString (totals[1]));
+        }
+        textFile.delete ();
+        binaryFile.delete ();
+    }
+
+}
@@ -1,7 +1,21 @@
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
 
 import org.junit.Before;
 import org.junit.After;
@@ -10,6 +24,7 @@ import org.junit.Ignore;
 import org.junit.runner.RunWith;
 import org.junit.runners.JUnit4;
 
+import ecosim.BlockGzipInputStream;
 import ecosim.Fasta;
 import ecosim.Sequence;
 import ecosim.InvalidFastaException;
@@ -41,11 +56,197 @@ public class TestFasta {
         assertEquals ("Identifier mismatch.", "gb|CP000240.1|:c28351-26084", seq.getIdentifier ());
     }
 
+    @Test
+    public void testLastSequence () throws InvalidFastaException {
+        Sequence seq = fasta.nextSequence ();
+        seq = fasta.nextSequence ();
+        assertEquals ("Sequence length mismatch.", 2268, seq.length ());
+        // There should be no sequences after the last one.
+        assertEquals ("Unexpected sequence.", null, fasta.nextSequence ());
+        assertEquals ("Unexpected sequence.", null, fasta.nextSequence ());
+    }
+
+    @Test
+    public void testGetSequence () throws InvalidFastaException {
+        File indexFile = new File ("build/tests/java/assets/TestFasta.fa.idx");
+        assertTrue ("Index file not found.", indexFile.exists ());
+        Sequence seq = fasta.getSequence ("gb|CP000240.1|:c28351-26084");
+        assertEquals ("Sequence length mismatch.", 2268, seq.length ());
+        seq = fasta.getSequence ("test_sequence");
+        assertEquals ("Sequence mismatch.", "acgttgca", seq.getSequence ());
+        assertEquals ("Unexpected sequence.", null, fasta.getSequence ("x"));
+        assertEquals ("Size mismatch.", 3, fasta.size ());
+        // Reading by identifier should not move the next sequence.
+        seq = fasta.nextSequence ();
+        assertEquals ("Identifier mismatch.", "gb|CP000239.1|:2536947-2539214", seq.getIdentifier ());
+    }
+
+    @Test
+    public void testStaleIndex () throws Exception {
+        File fastaFile = File.createTempFile ("TestFasta", ".fa");
+        File indexFile = new File (fastaFile.getPath () + ".idx");
+        Files.write (
+            fastaFile.toPath (),
+            ">a\nacgt\n>b\ntgca\n".getBytes (StandardCharsets.UTF_8)
+        );
+        long modified = fastaFile.lastModified ();
+        new Fasta (fastaFile).close ();
+        assertTrue ("Index file not found.", indexFile.exists ());
+        // Change the fasta file without changing its last modified time.
+        Files.write (
+            fastaFile.toPath (),
+            ">a\nacgt\n>b\ntgca\n>c\naaaa\n".getBytes (StandardCharsets.UTF_8)
+        );
+        fastaFile.setLastModified (modified);
+        Fasta changed = new Fasta (fastaFile);
+        assertEquals ("Size mismatch.", 3, changed.size ());
+        assertEquals ("Sequence mismatch.", "aaaa", changed.getSequence ("c").getSequence ());
+        changed.close ();
+        fastaFile.delete ();
+        indexFile.delete ();
+    }
+
+    @Test
+    public void testTruncatedIndex () throws Exception {
+        File fastaFile = File.createTempFile ("TestFasta", ".fa");
+        File indexFile = new File (fastaFile.getPath () + ".idx");
+        Files.write (
+            fastaFile.toPath (),
+            ">a\nacgt\n>b\ntgca\n>c\naaaa\n".getBytes (StandardCharsets.UTF_8)
+        );
+        new Fasta (fastaFile).close ();
+        // Drop the last entry, as if writing the index had stopped early.
+        List<String> lines = Files.readAllLines (indexFile.toPath ());
+        Files.write (indexFile.toPath (), lines.subList (0, lines.size () - 1));
+        Fasta truncated = new Fasta (fastaFile);
+        assertEquals ("Size mismatch.", 3, truncated.size ());
+        assertEquals ("Sequence mismatch.", "aaaa", truncated.getSequence ("c").getSequence ());
+        truncated.close ();
+        // The index is written again in full.
+        assertEquals (
+            "Index size mismatch.",
+            lines.size (), Files.readAllLines (indexFile.toPath ()).size ()
+        );
+        fastaFile.delete ();
+        indexFile.delete ();
+    }
+
+    @Test
+    public void testCompressed () throws Exception {
+        File fastaFile = new File ("build/tests/java/assets/TestFasta.fa");
+        File gzipFile = File.createTempFile ("TestFasta", ".fa.gz");
+        OutputStream output = new GZIPOutputStream (
+            new FileOutputStream (gzipFile)
+        );
+        Files.copy (fastaFile.toPath (), output);
+        output.close ();
+        Fasta compressed = new Fasta (gzipFile);
+        Sequence outgroup = compressed.getOutgroup ();
+        assertEquals ("Sequence mismatch.", "acgttgca", outgroup.getSequence ());
+        Sequence seq = fasta.nextSequence ();
+        while (seq != null) {
+            Sequence other = compressed.nextSequence ();
+            assertEquals ("Identifier mismatch.", seq.getIdentifier (), other.getIdentifier ());
+            assertEquals ("Sequence mismatch.", seq.getSequence (), other.getSequence ());
+            seq = fasta.nextSequence ();
+        }
+        assertEquals ("Unexpected sequence.", null, compressed.nextSequence ());
+        compressed.close ();
+        gzipFile.delete ();
+    }
+
+    @Test
+    public void testBlockGzip () throws Exception {
+        File fastaFile = new File ("build/tests/java/assets/TestFasta.fa");
+        byte[] data = Files.readAllBytes (fastaFile.toPath ());
+        File bgzfFile = File.createTempFile ("TestFasta", ".fa.gz");
+        // Split the file into small blocks, followed by the empty EOF block.
+        ByteArrayOutputStream blocks = new ByteArrayOutputStream ();
+        for (int i = 0; i < data.length; i += 1000) {
+            blocks.write (bgzfBlock (data, i, Math.min (1000, data.length - i)));
+        }
+        byte[] eof = bgzfBlock (data, 0, 0);
+        assertEquals ("Unexpected EOF block size.", 28, eof.length);
+        blocks.write (eof);
+        Files.write (bgzfFile.toPath (), blocks.toByteArray ());
+        assertTrue ("Not enough blocks.", data.length > 2000);
+        Fasta compressed = new Fasta (bgzfFile);
+        assertEquals ("Sequence mismatch.", "acgttgca", compressed.getOutgroup ().getSequence ());
+        Sequence seq = fasta.nextSequence ();
+        while (seq != null) {
+            Sequence other = compressed.nextSequence ();
+            assertEquals ("Identifier mismatch.", seq.getIdentifier (), other.getIdentifier ());
+            assertEquals ("Sequence mismatch.", seq.getSequence (), other.getSequence ());
+            seq = fasta.nextSequence ();
+        }
+        assertEquals ("Unexpected sequence.", null, compressed.nextSequence ());
+        compressed.close ();
+        // A block with a bad checksum is reported instead of being read.
+        byte[] corrupt = blocks.toByteArray ();
+        int crc = bgzfBlock (data, 0, 1000).length - 8;
+        corrupt[crc] ^= 0xff;
+        Files.write (bgzfFile.toPath (), corrupt);
+        InputStream input = BlockGzipInputStream.open (bgzfFile);
+        boolean caught = false;
+        try {
+            while (input.read () != -1);
+        }
+        catch (IOException e) {
+            caught = true;
+        }
+        input.close ();
+        assertTrue ("Bad checksum not detected.", caught);
+        bgzfFile.delete ();
+    }
+
+    @Test
+    public void testPacked () throws InvalidFastaException {
+        File fastaFile = new File ("build/tests/java/assets/TestFasta.fa");
+        Fasta packed = new Fasta (fastaFile, true);
+        assertTrue ("Sequence not packed.", packed.getOutgroup ().isPacked ());
+        assertEquals ("Sequence mismatch.", "acgttgca", packed.getOutgroup ().getSequence ());
+        Sequence seq = fasta.nextSequence ();
+        while (seq != null) {
+            Sequence other = packed.nextSequence ();
+            assertTrue ("Sequence not packed.", other.isPacked ());
+            assertEquals ("Sequence mismatch.", seq.getSequence (), other.getSequence ());
+            seq = fasta.nextSequence ();
+        }
+        packed.close ();
+    }
+
     @After
     public void teardown () throws InvalidFastaException {
         fasta.close ();
     }
 
+    /**
+     *  Compress part of an array into a BGZF block.
+     */
+    private static byte[] bgzfBlock (byte[] data, int offset, int length) {
+        Deflater deflater = new Deflater (Deflater.DEFAULT_COMPRESSION, true);
+        deflater.setInput (data, offset, length);
+        deflater.finish ();
+        byte[] compressed = new byte[length + 1024];
+        int size = 0;
+        while (! deflater.finished ()) {
+            size += deflater.deflate (compressed, size, compressed.length - size);
+        }
+        deflater.end ();
+        CRC32 crc = new CRC32 ();
+        crc.update (data, offset, length);
+        ByteBuffer block = ByteBuffer.allocate (26 + size);
+        block.order (ByteOrder.LITTLE_ENDIAN);
+        block.put (new byte[] {
+            0x1f, (byte)0x8b, 8, 4, 0, 0, 0, 0, 0, (byte)0xff, 6, 0, 'B', 'C', 2, 0
+        });
+        block.putShort ((short)(25 + size));
+        block.put (compressed, 0, size);
+        block.putInt ((int)crc.getValue ());
+        block.putInt (length);
+        return block.array ();
+    }
+
     private Fasta fasta;
 
 }
@@ -1,5 +1,6 @@
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 
 import org.junit.Before;
 import org.junit.After;
@@ -8,7 +9,12 @@ import org.junit.Ignore;
 import org.junit.runner.RunWith;
 import org.junit.runners.JUnit4;
 
+import java.util.ArrayList;
+
+import ecosim.DistanceMatrix;
+import ecosim.PackedSequence;
 import ecosim.Sequence;
+import ecosim.SitePatterns;
 
 public class TestSequence {
 
@@ -35,6 +41,63 @@ public class TestSequence {
         assertEquals ("Sequence not equal.", seq.getSequence (), testSequence);
     }
 
+    @Test
+    public void testPackedSequence () {
+        String residues = "ACGTTGCA--NNacgtRYACGTACGTACGTACGTACGTACGTA.";
+        PackedSequence packed = new PackedSequence (residues);
+        assertEquals ("Length not equal.", residues.length (), packed.length ());
+        assertEquals ("Sequence not equal.", residues, packed.toString ());
+        assertEquals ("Residue not equal.", 'R', packed.charAt (16));
+        assertEquals ("Residue not equal.", 'c', packed.charAt (13));
+        assertEquals ("Words not equal.", 2, packed.getWords ().length);
+        assertEquals ("Exceptions not equal.", 11, packed.getExceptions ().length);
+        // Packing the sequence should not change it.
+        seq.getPackedSequence ();
+        assertTrue ("Sequence not packed.", seq.isPacked ());
+        assertEquals ("Sequence not equal.", seq.getSequence (), testSequence);
+        assertEquals ("Length not equal.", seq.length (), testSequence.length ());
+    }
+
+    @Test
+    public void testSitePatterns () {
+        ArrayList<Sequence> sequences = new ArrayList<Sequence> ();
+        sequences.add (new Sequence ("a", "ACGTACGTAC"));
+        sequences.add (new Sequence ("b", "ACGTACGTAA"));
+        sequences.add (new Sequence ("c", "acgTAC-TAC"));
+        sequences.add (new Sequence ("d", "AGGAAGGTAA"));
+        sequences.add (new Sequence ("e", "ACGTACGTA"));
+        SitePatterns patterns = new SitePatterns ();
+        for (Sequence sequence: sequences) {
+            patterns.add (sequence);
+        }
+        assertEquals ("Length not equal.", 10, patterns.length ());
+        assertEquals ("Gap stripped length not equal.", 8, patterns.getGapStrippedLength ());
+        assertEquals ("Constant sites not equal.", 5, patterns.getConstantSites ());
+        assertEquals ("Variable sites not equal.", 5, patterns.getVariableSites ().length);
+        assertEquals ("Patterns not equal.", 4, patterns.numberOfPatterns ());
+        assertEquals ("Weight not equal.", 2, patterns.getWeight (0));
+        assertEquals ("Pattern not equal.", "CCCGC", patterns.getPattern (0).toString ());
+        assertEquals ("Pattern not equal.", "CACA-", patterns.getPattern (3).toString ());
+        assertEquals (
+            "Sequence not equal.", "CTC-C", patterns.getSequence (2).getSequence ()
+        );
+        // The distances on the variable sites are the same.
+        DistanceMatrix full = new DistanceMatrix (sequences);
+        DistanceMatrix reduced = new DistanceMatrix (
+            patterns.getSequences (), patterns.getConstantSites ()
+        );
+        for (int i = 0; i < sequences.size (); i ++) {
+            for (int j = i + 1; j < sequences.size (); j ++) {
+                assertEquals (
+                    "Distance not equal.",
+                    full.distance (i, j),
+                    reduced.distance (i, j),
+                    0.0f
+                );
+            }
+        }
+    }
+
     private String testIdentifier = "test_sequence";
     private String testDescription = "Test description";
     private String testSequence = "acgttgca";
@@ -12,8 +12,15 @@ import org.junit.Ignore;
 import org.junit.runner.RunWith;
 import org.junit.runners.JUnit4;
 
+import ecosim.Dereplication;
+import ecosim.NeighborJoining;
+import ecosim.Sequence;
+import ecosim.api.Painter;
 import ecosim.tree.Tree;
+import ecosim.tree.CladeStatistics;
+import ecosim.tree.CompactTree;
 import ecosim.tree.Node;
+import ecosim.tree.NodeVisitor;
 import ecosim.tree.InvalidTreeException;
 
 public class TestTree {
@@ -54,6 +61,30 @@ public class TestTree {
         );
     }
 
+    @Test
+    public void testFingerprint () throws InvalidTreeException {
+        Tree a = new Tree (testTree);
+        // The order of the children does not matter.
+        Tree b = new Tree (
+            "(E:0.5,((D:0.1,C:0.1):0.2,(B:0.2,A:0.1):0.1):0.3):0.0;"
+        );
+        assertEquals (
+            "Fingerprint mismatch.", a.getFingerprint (), b.getFingerprint ()
+        );
+        // The fingerprint follows changes to the tree.
+        a.getDescendant ("A").setDistance (0.2d);
+        assertEquals ("Unexpected tree match.", true, a.compareTo (b) != 0);
+        a.getDescendant ("A").setDistance (0.1d);
+        assertEquals ("Tree mismatch.", 0, a.compareTo (b));
+        a.removeDescendant ("A");
+        Tree c = new Tree (
+            "(((C:0.1,D:0.1):0.2,B:0.3):0.3,E:0.5):0.0;"
+        );
+        assertEquals (
+            "Fingerprint mismatch.", c.getFingerprint (), a.getFingerprint ()
+        );
+    }
+
     @Test
     public void testReroot () throws InvalidTreeException {
         Tree a = new Tree (testTree);
@@ -152,6 +183,382 @@ public class TestTree {
         );
     }
 
+    @Test
+    public void testLastCommonAncestorPair () throws InvalidTreeException {
+        Tree a = new Tree (testTree);
+        Node x = a.getDescendant ("A");
+        Node y = a.getDescendant ("B");
+        assertEquals (
+            "Last common ancestor failed, parent not found.",
+            x.getParent (),
+            a.lastCommonAncestor (x, y)
+        );
+        assertEquals (
+            "Last common ancestor failed, node not found.",
+            x,
+            a.lastCommonAncestor (x, x)
+        );
+        // The index needs to follow the tree after removing a descendant.
+        a.removeDescendant ("B");
+        Node z = a.getDescendant ("C");
+        assertEquals (
+            "Last common ancestor failed after removal.",
+            x.getParent (),
+            a.lastCommonAncestor (x, z)
+        );
+    }
+
+    @Test
+    public void testDeepTree () throws InvalidTreeException {
+        // A caterpillar tree deep enough to overflow a recursive walk.
+        int depth = 50000;
+        StringBuilder newick = new StringBuilder ();
+        for (int i = 0; i < depth; i ++) {
+            newick.append ('(');
+        }
+        newick.append ("L0:0.1");
+        for (int i = 1; i <= depth; i ++) {
+            newick.append (",L" + i + ":0.1):0.1");
+        }
+        newick.append (';');
+        Tree deep = new Tree (newick.toString ());
+        deep.makeBinary ();
+        assertEquals ("Unexpected number of leaves.", depth + 1, deep.size ());
+        assertEquals (
+            "Unexpected number of descendants.",
+            depth + 1,
+            deep.getDescendants ().size ()
+        );
+        Node leaf = deep.getDescendant ("L0");
+        assertEquals (
+            "Unexpected distance from root.",
+            leaf.distanceFromRootNode (),
+            deep.maximumWidth (),
+            1.0e-6
+        );
+        assertEquals (
+            "Unexpected round trip.",
+            depth + 1,
+            new Tree (deep.toString ()).size ()
+        );
+    }
+
+    @Test
+    public void testCompactTree () {
+        CompactTree compact = tree.toCompactTree ();
+        assertEquals ("Unexpected number of nodes.", 9, compact.size ());
+        assertEquals ("Unexpected number of leaves.", 5, compact.numberOfLeaves (0));
+        assertEquals ("Unexpected subtree end.", 9, compact.getSubtreeEnd (0));
+        assertEquals (
+            "Compact tree mismatch.",
+            0,
+            tree.compareTo (new Tree (compact))
+        );
+    }
+
+    @Test
+    public void testCompactTreeRemoveNode () throws InvalidTreeException {
+        CompactTree compact = new Tree (testTree).toCompactTree ();
+        // Remove leaf A, its parent is spliced out of the tree.
+        compact.removeNode (3);
+        Tree a = new Tree (
+            "(((C:0.1,D:0.1):0.2,B:0.3):0.3,E:0.5):0.0;"
+        );
+        assertEquals (
+            "Remove leaf node failed.", 0, a.compareTo (new Tree (compact))
+        );
+        assertEquals ("Unexpected number of leaves.", 4, compact.numberOfLeaves (0));
+        // Remove the clade containing C and D.
+        compact.removeNode (5);
+        Tree b = new Tree ("(B:0.6,E:0.5):0.0;");
+        assertEquals (
+            "Remove clade failed.", 0, b.compareTo (new Tree (compact))
+        );
+        assertEquals ("Unexpected number of leaves.", 2, compact.numberOfLeaves (0));
+    }
+
+    @Test
+    public void testCompactTreeRemoveRoot () throws InvalidTreeException {
+        CompactTree compact = new Tree ("((A:0.1,B:0.2):0.3,C:0.5):0.0;")
+            .toCompactTree ();
+        // Remove leaf C, the root is spliced out and its other child is the
+        // new root.
+        compact.removeNode (4);
+        assertEquals ("Unexpected root.", 1, compact.getRoot ());
+        assertEquals ("Unexpected parent.", -1, compact.getParent (1));
+        // Adding a node recalculates the subtree sizes.
+        int d = compact.addNode (1, "D", 0.1);
+        assertEquals ("Unexpected subtree end.", d + 1, compact.getSubtreeEnd (d));
+        assertEquals ("Unexpected subtree end.", 3, compact.getSubtreeEnd (2));
+    }
+
+    @Test
+    public void testCladeStatistics () throws InvalidTreeException {
+        // A balanced tree large enough to be split between several tasks.
+        ArrayList<String> clades = new ArrayList<String> ();
+        for (int i = 0; i < 16384; i ++) {
+            clades.add ("L" + i + ":" + (i % 7 + 1) * 0.001);
+        }
+        while (clades.size () > 1) {
+            ArrayList<String> joined = new ArrayList<String> ();
+            for (int i = 0; i < clades.size (); i += 2) {
+                joined.add (
+                    "(" + clades.get (i) + "," + clades.get (i + 1) + "):" +
+                    (i % 5 + 1) * 0.002
+                );
+            }
+            clades = joined;
+        }
+        final Tree big = new Tree (clades.get (0) + ";");
+        final CladeStatistics statistics = big.getCladeStatistics ();
+        final int[] index = new int[] { 0 };
+        // Compare the statistics with the Node methods in pre-order.
+        big.getRoot ().walk (new NodeVisitor () {
+            public boolean preVisit (Node node) {
+                int i = index[0] ++;
+                assertEquals (
+                    "Unexpected clade diameter.",
+                    node.maximumDistanceBetweenLeafNodes (),
+                    statistics.maximumDistanceBetweenLeafNodes (i),
+                    0.0d
+                );
+                assertEquals (
+                    "Unexpected distance from leaf.",
+                    node.maximumDistanceFromLeafNode (),
+                    statistics.maximumDistanceFromLeafNode (i),
+                    0.0d
+                );
+                assertEquals (
+                    "Unexpected distance from root.",
+                    node.distanceFromRootNode (),
+                    statistics.distanceFromRootNode (i),
+                    0.0d
+                );
+                return true;
+            }
+            public void postVisit (Node node) {
+            }
+        });
+        assertEquals ("Unexpected number of nodes.", 32767, index[0]);
+        assertEquals ("Unexpected number of leaves.", 16384, statistics.numberOfLeaves (0));
+        assertEquals (
+            "Unexpected minimum distance from leaf.",
+            0.003d,
+            statistics.minimumDistanceFromLeafNode (32764),
+            1.0e-9
+        );
+    }
+
+    @Test
+    public void testModified () throws InvalidTreeException {
+        Tree modified = new Tree (testTree);
+        Node root = modified.getRoot ();
+        Node a = modified.getDescendant ("A");
+        assertEquals ("Unexpected width.", 0.6d, modified.maximumWidth (), 1.0e-9);
+        assertEquals (
+            "Unexpected clade diameter.",
+            1.1d,
+            root.maximumDistanceBetweenLeafNodes (),
+            1.0e-9
+        );
+        assertEquals ("Root should not be modified.", false, root.isModified ());
+        // Modify a leaf node directly, without invalidating the tree.
+        a.setDistance (0.6d);
+        a.setName ("F");
+        assertEquals ("Root should be modified.", true, root.isModified ());
+        assertEquals (
+            "Unexpected clade diameter.",
+            1.5d,
+            root.maximumDistanceBetweenLeafNodes (),
+            1.0e-9
+        );
+        assertEquals ("Unexpected width.", 1.0d, modified.maximumWidth (), 1.0e-9);
+        assertEquals ("Renamed node not found.", a, modified.getDescendant ("F"));
+        assertEquals ("Root should not be modified.", false, root.isModified ());
+        // Renaming a node keeps the clade statistics.
+        CladeStatistics statistics = modified.getCladeStatistics ();
+        long fingerprint = modified.getFingerprint ();
+        a.setName ("G");
+        assertEquals ("Root should not be modified.", false, root.isModified ());
+        assertEquals ("Root should be renamed.", true, root.isRenamed ());
+        assertEquals (
+            "Clade statistics should be kept.",
+            statistics, modified.getCladeStatistics ()
+        );
+        assertEquals ("Renamed node not found.", a, modified.getDescendant ("G"));
+        assertEquals ("Old name should not be found.", null, modified.getDescendant ("F").getParent ());
+        assertEquals ("Fingerprint should change.", true, fingerprint != modified.getFingerprint ());
+        assertEquals ("Root should not be renamed.", false, root.isRenamed ());
+    }
+
+    @Test
+    public void testLayoutCache () throws InvalidTreeException {
+        Tree cached = new Tree (testTree);
+        // Look up the nodes first, looking them up checks for changes.
+        Node a = cached.getDescendant ("A");
+        Node e = cached.getDescendant ("E");
+        Node clade = cached.getDescendant ("C").getParent ();
+        clade.collapse ();
+        int[] methods = {
+            Tree.PAINT_METHOD_NORMAL,
+            Tree.PAINT_METHOD_COLLAPSED,
+            Tree.PAINT_METHOD_NORMAL
+        };
+        // The cached layout follows changes to the paint method.
+        for (int method: methods) {
+            cached.setPaintMethod (method);
+            assertEquals ("Cached layout mismatch.", paint (copy (cached)), paint (cached));
+        }
+        // The cached layout is discarded when a node is modified.
+        a.setDistance (0.6d);
+        assertEquals ("Cached layout mismatch.", paint (copy (cached)), paint (cached));
+        cached.setPaintMethod (Tree.PAINT_METHOD_COLLAPSED);
+        assertEquals ("Cached layout mismatch.", paint (copy (cached)), paint (cached));
+        clade.collapse (false);
+        assertEquals ("Cached layout mismatch.", paint (copy (cached)), paint (cached));
+        e.setDistance (0.1d);
+        assertEquals ("Cached layout mismatch.", paint (copy (cached)), paint (cached));
+    }
+
+    @Test
+    public void testParseErrorPosition () {
+        int line = 0;
+        int column = 0;
+        try {
+            new Tree ("((A:0.1,B:0.2):0.1,\n(C:0.1,D:0.1):0.2;");
+        }
+        catch (InvalidTreeException e) {
+            line = e.getLine ();
+            column = e.getColumn ();
+        }
+        assertEquals ("Unexpected error line.", 2, line);
+        assertEquals ("Unexpected error column.", 18, column);
+    }
+
+    @Test
+    public void testNeighborJoining () {
+        ArrayList<Sequence> sequences = new ArrayList<Sequence> ();
+        sequences.add (new Sequence ("A", "CAGGAAAAAAAAAAAAAAAA"));
+        sequences.add (new Sequence ("B", "ACGGAAAAAAAAAAAAAAAA"));
+        sequences.add (new Sequence ("C", "AAAACATTAAAAAAAAAAAA"));
+        sequences.add (new Sequence ("D", "AAAAACTTAAAAAAAAAAAA"));
+        sequences.add (new Sequence ("E", "AAAAAAAAGGGGAAAAAAAA"));
+        NeighborJoining nj = new NeighborJoining (sequences);
+        nj.run ();
+        Tree joined = nj.getTree ();
+        assertEquals ("Unexpected number of leaves.", 5, joined.size ());
+        Node a = joined.getDescendant ("A");
+        Node b = joined.getDescendant ("B");
+        Node c = joined.getDescendant ("C");
+        Node d = joined.getDescendant ("D");
+        assertEquals ("A and B should be joined.", a.getParent (), b.getParent ());
+        assertEquals ("C and D should be joined.", c.getParent (), d.getParent ());
+        // The branches of a joined pair add up to the corrected distance.
+        double p = 2.0d / 20;
+        assertEquals (
+            "Unexpected branch lengths.",
+            -0.75d * Math.log (1.0d - 4.0d * p / 3.0d),
+            a.getDistance () + b.getDistance (),
+            1.0e-6
+        );
+    }
+
+    @Test
+    public void testDereplication () {
+        Dereplication dereplication = new Dereplication ();
+        dereplication.add (new Sequence ("A", "CAGGAAAAAAAAAAAAAAAA"));
+        dereplication.add (new Sequence ("B", "ACGGAAAAAAAAAAAAAAAA"));
+        dereplication.add (new Sequence ("A2", "cagGAAAAAAAAAAAAAAAA"));
+        dereplication.add (new Sequence ("C", "AAAACATTAAAAAAAAAAAA"));
+        dereplication.add (new Sequence ("D", "AAAAACTTAAAAAAAAAAAA"));
+        dereplication.add (new Sequence ("A3", "CAGGAAAAAAAAAAAAAAAA"));
+        dereplication.add (new Sequence ("E", "AAAAAAAAGGGGAAAAAAAA"));
+        dereplication.add (new Sequence ("E2", "AAAAAAAAGGGGAAAAAAAA"));
+        assertEquals (
+            "Unexpected number of sequences.",
+            8,
+            dereplication.numberOfSequences ()
+        );
+        assertEquals (
+            "Unexpected number of representatives.",
+            5,
+            dereplication.numberOfRepresentatives ()
+        );
+        assertEquals ("Unexpected multiplicity.", 3, dereplication.getMultiplicity (0));
+        NeighborJoining nj = new NeighborJoining (
+            dereplication.getRepresentatives ()
+        );
+        nj.run ();
+        Tree joined = nj.getTree ();
+        double distance = joined.getDescendant ("A").getDistance ();
+        // The copies are added back as zero length siblings.
+        joined.addCopies (dereplication.getCopies ());
+        joined.makeBinary ();
+        assertEquals ("Unexpected number of leaves.", 8, joined.size ());
+        Node a = joined.getDescendant ("A");
+        Node a3 = joined.getDescendant ("A3");
+        Node e2 = joined.getDescendant ("E2");
+        assertEquals ("Unexpected distance.", 0.0d, a3.getDistance (), 0.0d);
+        assertEquals ("Unexpected distance.", 0.0d, e2.getDistance (), 0.0d);
+        assertEquals (
+            "Unexpected distance between copies.",
+            0.0d,
+            a.distanceFromRootNode () - a3.distanceFromRootNode (),
+            1.0e-9
+        );
+        assertEquals (
+            "Unexpected distance from the clade.",
+            distance,
+            a.getParent ().distanceFromRootNode () -
+                joined.getDescendant ("B").getParent ().distanceFromRootNode (),
+            1.0e-9
+        );
+    }
+
+    /**
+     *  Copy a tree and its paint method, so that the copy has a freshly
+     *  calculated layout.
+     */
+    private Tree copy (Tree tree) throws InvalidTreeException {
+        Tree copy = new Tree (tree);
+        copy.setPaintMethod (tree.getPaintMethod ());
+        return copy;
+    }
+
+    /**
+     *  Paint a tree and record everything that was drawn.
+     */
+    private String paint (Tree tree) {
+        final StringBuilder drawn = new StringBuilder ();
+        tree.setScale (1000);
+        tree.paintTree (new Painter () {
+            public void start (int width, int height) {
+                drawn.append ("start " + width + " " + height + "\n");
+            }
+            public void end () {
+                drawn.append ("end\n");
+            }
+            public void drawLine (int x1, int y1, int x2, int y2, int stroke) {
+                drawn.append (
+                    "line " + x1 + " " + y1 + " " + x2 + " " + y2 + "\n"
+                );
+            }
+            public void drawString (String str, int x, int y) {
+                drawn.append ("string " + str + " " + x + " " + y + "\n");
+            }
+            public int fontWidth () {
+                return 8;
+            }
+            public int fontHeight () {
+                return 12;
+            }
+            public int stringWidth (String str) {
+                return 8 * str.length ();
+            }
+        });
+        return drawn.toString ();
+    }
+
     private Tree tree;
 
     //       ┌─ A